@@ -0,0 +1,231 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+
+public class BackupPipeline {
+
+	private static final int prepareAheadChunks = 8;
+	private static final int readChunks = 4;
+
+	private ProtocolState state;
+	private int peerID;
+
+	// PUTCHUNK messages prepared or being prepared, kept until their chunk leaves the backup's window
+	private HashMap<Long, CompletableFuture<byte[]>> prepared = new HashMap<Long, CompletableFuture<byte[]>>();
+
+	// Chunks waiting to be read in order, the last chunk queued ahead of the chunks sent, and whether the reader is running
+	private TreeSet<Long> toRead = new TreeSet<Long>();
+	private long queuedChunkNo = -1;
+	private boolean reading = false;
+	private boolean closed = false;
+	private FileChannel file = null;
+
+	/**
+	 * Prepares the PUTCHUNK messages of a BACKUP protocol in stages. A reader on the Peer's
+	 * executor reads the chunks ahead of the chunks being sent, several chunks per read, and
+	 * hands them to the Peer's crypto pool, which encrypts and MACs them in parallel. The
+	 * prepared messages are kept until their chunk is stored or given up on, so retransmissions
+	 * don't touch the file or the cipher again.
+	 *
+	 * @param peerID the numeric identifier of the sending Peer
+	 * @param state the Protocol State object of the BACKUP protocol
+	 */
+	public BackupPipeline(int peerID, ProtocolState state) {
+		this.peerID = peerID;
+		this.state = state;
+	}
+
+	/**
+	 * Returns the PUTCHUNK message of a chunk, preparing it if it isn't prepared yet, and queues
+	 * the chunks following it so they're ready by the time they're sent.
+	 *
+	 * @param chunkNo the chunk number
+	 * @return the PUTCHUNK message, once prepared
+	 */
+	public CompletableFuture<byte[]> get(long chunkNo) {
+
+		CompletableFuture<byte[]> message;
+		boolean startReader;
+		synchronized(this) {
+
+			message = this.prepared.get(chunkNo);
+
+			// Chunks that failed to be read are read again
+			if(message == null || message.isCompletedExceptionally()) {
+				message = this.queue(chunkNo);
+			}
+
+			// Chunks replicated by a previous run of the backup won't be sent
+			SystemDatabase database = Peer.getInstance().getDatabase();
+			long last = Math.min(chunkNo + prepareAheadChunks, this.state.getChunkTotal() - 1);
+			for(long next = Math.max(chunkNo + 1, this.queuedChunkNo + 1); next <= last; next++) {
+				if(!this.prepared.containsKey(next) && !database.isChunkReplicated(this.state.getHashHex(), next, this.state.getDesiredRepDeg())) this.queue(next);
+			}
+			this.queuedChunkNo = Math.max(this.queuedChunkNo, last);
+
+			startReader = !this.reading && !this.toRead.isEmpty() && !this.closed;
+			if(startReader) this.reading = true;
+		}
+
+		if(startReader) Peer.getInstance().getExecutor().execute(() -> this.read());
+		return message;
+	}
+
+	/**
+	 * Queues a chunk for reading.
+	 *
+	 * @param chunkNo the chunk number
+	 * @return the PUTCHUNK message of the chunk, once prepared
+	 */
+	private CompletableFuture<byte[]> queue(long chunkNo) {
+
+		CompletableFuture<byte[]> message = new CompletableFuture<byte[]>();
+		this.prepared.put(chunkNo, message);
+		this.toRead.add(chunkNo);
+
+		return message;
+	}
+
+	/**
+	 * Reads the queued chunks in order, consecutive chunks with a single read, and hands each
+	 * chunk to the crypto pool.
+	 */
+	private void read() {
+
+		Thread.currentThread().setName("Backup reader " + Thread.currentThread().getId());
+
+		while(true) {
+
+			long first;
+			int count = 1;
+			FileChannel file;
+			synchronized(this) {
+				if(this.closed || this.toRead.isEmpty()) {
+					this.reading = false;
+					return;
+				}
+
+				first = this.toRead.pollFirst();
+				while(count < readChunks && this.toRead.remove(first + count)) count++;
+				file = this.file;
+			}
+
+			int chunkSize = ProtocolState.getChunksize();
+			byte[] buf = new byte[count * chunkSize];
+			int nRead = 0;
+			IOException error = null;
+
+			try {
+				if(file == null) file = this.open();
+
+				ByteBuffer buffer = ByteBuffer.wrap(buf);
+				long position = first * chunkSize;
+				while(buffer.hasRemaining()) {
+					int n = file.read(buffer, position + buffer.position());
+					if(n < 0) break;
+				}
+				nRead = buffer.position();
+			} catch(IOException e) {
+				error = e;
+			}
+
+			for(int i = 0; i < count; i++) {
+
+				long chunkNo = first + i;
+				CompletableFuture<byte[]> message;
+				synchronized(this) {
+					message = this.prepared.get(chunkNo);
+				}
+
+				// Chunk may have left the window while it was being read
+				if(message == null) continue;
+
+				if(error != null) {
+					SystemManager.getInstance().logPrint("I/O Exception reading chunk " + chunkNo + " for PUTCHUNK, " + error.getMessage(), SystemManager.LogLevel.NORMAL);
+					message.completeExceptionally(error);
+					continue;
+				}
+
+				int offset = i * chunkSize;
+				int length = Math.max(0, Math.min(chunkSize, nRead - offset));
+				this.encrypt(chunkNo, buf, offset, length, message);
+			}
+		}
+	}
+
+	/**
+	 * Encrypts and MACs a chunk on the Peer's crypto pool.
+	 *
+	 * @param chunkNo the chunk number
+	 * @param buf the data read from the file
+	 * @param offset the position of the chunk in the data read
+	 * @param length the number of bytes of the chunk
+	 * @param message the PUTCHUNK message to complete
+	 */
+	private void encrypt(long chunkNo, byte[] buf, int offset, int length, CompletableFuture<byte[]> message) {
+
+		Peer.getInstance().getCryptoPool().execute(() -> {
+
+			byte[] data = (offset == 0 && length == buf.length) ? buf : Arrays.copyOfRange(buf, offset, offset + length);
+
+			try {
+				message.complete(this.state.getParser().createPutchunkMsg(this.peerID, this.state, chunkNo, data, length));
+			} catch(IOException e) {
+				message.completeExceptionally(e);
+			}
+		});
+	}
+
+	/**
+	 * Opens the file for reading, once for the whole backup.
+	 *
+	 * @return the file channel
+	 */
+	private synchronized FileChannel open() throws IOException {
+
+		if(this.closed) throw new IOException("backup pipeline closed");
+
+		if(this.file == null) this.file = FileChannel.open(Paths.get(this.state.getFilepath()), StandardOpenOption.READ);
+		return this.file;
+	}
+
+	/**
+	 * Drops the PUTCHUNK message of a chunk that was stored or given up on.
+	 *
+	 * @param chunkNo the chunk number
+	 */
+	public synchronized void release(long chunkNo) {
+
+		this.prepared.remove(chunkNo);
+		this.toRead.remove(chunkNo);
+	}
+
+	/**
+	 * Drops every prepared message and closes the file once the backup ends.
+	 */
+	public void close() {
+
+		FileChannel file;
+		synchronized(this) {
+			this.closed = true;
+			this.prepared.clear();
+			this.toRead.clear();
+			file = this.file;
+			this.file = null;
+		}
+
+		if(file == null) return;
+
+		try {
+			file.close();
+		} catch(IOException e) {
+			SystemManager.getInstance().logPrint("I/O Exception closing backed up file!", SystemManager.LogLevel.DEBUG);
+		}
+	}
+}
@@ -1,23 +1,42 @@
+import java.io.File;
 import java.io.IOException;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.HashSet;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 public class BackupProtocol implements Runnable {
 
-	private static final int executorThreadsMax = 5;
-	
 	private String filepath;
 	private int repDeg;
+	private String key;
+	private ProtocolState state;
+	private String backMsg;
 	private boolean notEnoughResponses = false;
-	private ExecutorService executor = Executors.newFixedThreadPool(executorThreadsMax);
-	private HashSet<Future<?>> tasks = new HashSet<Future<?>>();
+	private boolean isFinished = false;
+	private boolean initialized = false;
+	private boolean cancelled = false;
+	private long completedChunks = 0;
+	private long fileSize = 0;
+	private Job job = null;
+	private DirectoryBackupJob directory = null;
+
+	// Chunks sent and waiting for STORED messages, with their retransmission timers and attempts
+	private HashSet<Long> outstanding = new HashSet<Long>();
+	private ConcurrentHashMap<Long, ScheduledFuture<?>> timers = new ConcurrentHashMap<Long, ScheduledFuture<?>>(8, 0.9f, 1);
+	private ConcurrentHashMap<Long, Integer> attempts = new ConcurrentHashMap<Long, Integer>(8, 0.9f, 1);
 	
+	// Reads, encrypts and MACs the PUTCHUNK messages ahead of the chunks sent
+	private BackupPipeline pipeline = null;
+
 	/**
 	 * Runs a BACKUP protocol procedure with specified filepath and replication degree.
-	 * 
+	 * Chunks are handed out by the Peer's {@link BackupScheduler} and wait for STORED messages,
+	 * each with its own retransmission timer on the Peer's scheduled executor. PUTCHUNK messages
+	 * are prepared ahead by a {@link BackupPipeline} and reused by retransmissions.
+	 *
 	 * @param filepath the file path to backup
 	 * @param repDeg desired replication degree
 	 */
@@ -26,82 +45,446 @@ public class BackupProtocol implements Runnable {
 		this.repDeg = repDeg;
 	}
 
+	/**
+	 * Runs a BACKUP protocol procedure requested through RMI.
+	 *
+	 * @param filepath the file path to backup
+	 * @param repDeg desired replication degree
+	 * @param job the job to report progress to
+	 */
+	public BackupProtocol(String filepath, int repDeg, Job job) {
+		this(filepath, repDeg);
+		this.job = job;
+	}
+
+	/**
+	 * Runs a BACKUP protocol procedure for a file found by a directory backup.
+	 *
+	 * @param filepath the file path to backup
+	 * @param repDeg desired replication degree
+	 * @param directory the directory backup to report progress to
+	 */
+	public BackupProtocol(String filepath, int repDeg, DirectoryBackupJob directory) {
+		this(filepath, repDeg);
+		this.directory = directory;
+	}
+
 	@Override
 	public void run() {
 
 		Thread.currentThread().setName("Backup " + Thread.currentThread().getId());
-		
-		String backMsg = "backup: " + this.filepath + " - " + this.repDeg;
-		SystemManager.getInstance().logPrint("started " + backMsg, SystemManager.LogLevel.NORMAL);
+
+		this.backMsg = "backup: " + this.filepath + " - " + this.repDeg;
+
+		// Job may have been cancelled before reaching the executor
+		if(this.job != null && !this.job.start(() -> this.cancel())) return;
+		synchronized(this) {
+			if(this.cancelled) return;
+		}
+
+		SystemManager.getInstance().logPrint("started " + this.backMsg, SystemManager.LogLevel.NORMAL);
 
 		Peer peer = Peer.getInstance();
 
 		// Initialise protocol state
-		String key = null;
 		try {
-			key = this.initializeProtocolInstance(peer);
+			this.key = this.initializeProtocolInstance(peer);
 		} catch(NoSuchAlgorithmException | IOException e) {
 			SystemManager.getInstance().logPrint("I/O Exception on backup protocol!", SystemManager.LogLevel.NORMAL);
 			e.printStackTrace();
+			this.initializeFailed();
 			return;
 		}
-		
-		if(key == null) {
-			SystemManager.getInstance().logPrint("cannot backup files larger than 64GB!", SystemManager.LogLevel.NORMAL);
+
+		if(this.key == null) {
+			this.initializeFailed();
 			return;
 		}
 
-		ProtocolState state = peer.getProtocols().get(key);
-		
-		// Submit threads for running a PUTCHUNK message for the current chunk
-		while(!state.isFinished()) {
-		
-			// Wait if no slot available in thread pool
-			while(this.tasks.size() >= BackupProtocol.executorThreadsMax) {
-				this.tasks.removeIf(t -> t.isDone());
+		if(this.job != null) this.job.addChunks(this.state.getChunkTotal());
+		if(this.directory != null) this.directory.fileStarted(this.state.getChunkTotal());
+
+		// Chunks replicated by a previous run of this backup don't need to be sent again
+		boolean done;
+		boolean cancelled;
+		synchronized(this) {
+			cancelled = this.cancelled;
+			this.initialized = !cancelled;
+			if(!cancelled) {
+				long skipped = this.skipReplicatedChunks(peer);
+				if(skipped > 0) SystemManager.getInstance().logPrint("skipping " + skipped + " chunks already replicated on " + this.backMsg, SystemManager.LogLevel.NORMAL);
 			}
 
-			Future<?> task = this.executor.submit(new BackupProtocolMsgLoop(peer, state, state.getCurrentChunkNo(), this));
-			this.tasks.add(task);
-			state.incrementCurrentChunkNo();
+			done = this.completedChunks == this.state.getChunkTotal();
+			if(done || cancelled) this.isFinished = true;
 		}
-		
-		// Wait until all threads complete
-		while(this.tasks.size() != 0) {
-			this.tasks.removeIf(t -> t.isDone());
+
+		// Cancelled while initialising
+		if(cancelled) {
+			this.abort(peer);
+			return;
+		}
+
+		if(done) {
+			this.finish(peer);
+			return;
 		}
-		
-		if(!this.notEnoughResponses) SystemManager.getInstance().logPrint("finished " + backMsg, SystemManager.LogLevel.NORMAL);
-		else SystemManager.getInstance().logPrint("failed " + backMsg + ", replication degree lower than desired", SystemManager.LogLevel.NORMAL);
 
-		peer.getDatabase().backupUpdate(state);
-		peer.getProtocols().remove(key);
-		SystemManager.getInstance().logPrint("key removed: " + key, SystemManager.LogLevel.VERBOSE);
+		peer.getBackupScheduler().schedule(this);
 	}
-	
+
+	/**
+	 * Reports a backup that couldn't be initialised.
+	 */
+	private void initializeFailed() {
+
+		if(this.job != null) this.job.finish(false);
+		if(this.directory != null) this.directory.fileFinished(this, false);
+	}
+
+	/**
+	 * Reserves the next chunk to send, called by the {@link BackupScheduler} when it has a free slot.
+	 *
+	 * @return the chunk number to send
+	 */
+	public synchronized long nextChunk() {
+
+		long chunkNo = this.state.getCurrentChunkNo();
+		this.outstanding.add(chunkNo);
+		this.attempts.put(chunkNo, 0);
+		this.state.incrementCurrentChunkNo();
+		this.skipReplicatedChunks(Peer.getInstance());
+
+		return chunkNo;
+	}
+
+	/**
+	 * Moves past the next chunks whose perceived replication degree in the database already
+	 * reaches the desired replication degree, counting them as completed.
+	 *
+	 * @param peer the singleton Peer instance
+	 * @return the number of chunks skipped
+	 */
+	private long skipReplicatedChunks(Peer peer) {
+
+		long skipped = 0;
+		while(!this.state.isFinished() && peer.getDatabase().isChunkReplicated(this.state.getHashHex(), this.state.getCurrentChunkNo(), this.repDeg)) {
+			long chunkNo = this.state.getCurrentChunkNo();
+			this.state.incrementCurrentChunkNo();
+			this.completedChunks++;
+			skipped++;
+			if(this.job != null) this.job.chunkSkipped();
+			if(this.directory != null) this.directory.chunkSkipped();
+
+			// Chunk may have been prepared ahead before it was replicated, it won't be sent
+			if(this.pipeline != null) this.pipeline.release(chunkNo);
+		}
+
+		return skipped;
+	}
+
+	/**
+	 * @return whether there are chunks that haven't been sent yet
+	 */
+	public synchronized boolean hasChunksToSend() {
+		return !this.state.isFinished();
+	}
+
+	/**
+	 * Sends the first PUTCHUNK message of a chunk reserved with {@link #nextChunk()}.
+	 *
+	 * @param chunkNo the chunk number to send
+	 */
+	public void sendChunk(long chunkNo) {
+
+		Thread.currentThread().setName("Backup " + Thread.currentThread().getId());
+
+		// Backup may have been cancelled after the chunk was reserved
+		synchronized(this) {
+			if(!this.outstanding.contains(chunkNo)) return;
+		}
+
+		Peer peer = Peer.getInstance();
+		this.sendPutchunk(peer, chunkNo, peer.getMdb().getRTT().getTimeoutMS());
+	}
+
+	/**
+	 * Sends the PUTCHUNK message for a chunk and schedules its retransmission timer.
+	 *
+	 * @param peer the singleton Peer instance
+	 * @param chunkNo the chunk number to send
+	 * @param timeoutMS the time to wait for enough STORED messages before retransmitting
+	 */
+	private void sendPutchunk(Peer peer, long chunkNo, long timeoutMS) {
+
+		// Sent once the message is prepared, right away if it was prepared ahead or by a previous attempt
+		this.pipeline.get(chunkNo).whenComplete((msg, error) -> this.sendPutchunk(peer, chunkNo, timeoutMS, msg));
+	}
+
+	/**
+	 * Sends a prepared PUTCHUNK message and schedules its retransmission timer.
+	 *
+	 * @param peer the singleton Peer instance
+	 * @param chunkNo the chunk number to send
+	 * @param timeoutMS the time to wait for enough STORED messages before retransmitting
+	 * @param msg the PUTCHUNK message, null if it couldn't be prepared
+	 */
+	private void sendPutchunk(Peer peer, long chunkNo, long timeoutMS, byte[] msg) {
+
+		int attempt = this.attempts.get(chunkNo);
+		if(attempt > 0) this.state.getSentTimes().remove(chunkNo);
+
+		// The PUTCHUNK may be delayed by the rate limit of user backups
+		long delayMS = 0;
+		try {
+			if(msg == null) throw new IOException("chunk couldn't be read");
+			delayMS = peer.getMdb().send(msg, TrafficShaper.TrafficClass.USER_BACKUP);
+		} catch(IOException e) {
+			SystemManager.getInstance().logPrint("I/O Exception sending PUTCHUNK for chunk " + chunkNo + ", retrying on timeout", SystemManager.LogLevel.NORMAL);
+			e.printStackTrace();
+		}
+
+		// Only first transmissions produce round trip time samples
+		if(attempt == 0) this.state.getSentTimes().put(chunkNo, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMS));
+
+		ScheduledFuture<?> timer = peer.getExecutor().schedule(new BackupProtocolMsgLoop(this, chunkNo, timeoutMS), delayMS + timeoutMS, TimeUnit.MILLISECONDS);
+		this.timers.put(chunkNo, timer);
+
+		// Chunk may have completed while the message was being sent
+		synchronized(this) {
+			if(!this.outstanding.contains(chunkNo)) {
+				timer.cancel(false);
+				this.timers.remove(chunkNo);
+			}
+		}
+	}
+
+	/**
+	 * Handles the arrival of a STORED message from a Peer that hadn't responded yet for a chunk.
+	 *
+	 * @param chunkNo the chunk number the STORED message refers to
+	 * @param senderID the numeric identifier of the Peer that stored the chunk
+	 * @param quorum whether the chunk reached the desired replication degree
+	 */
+	public void storedReceived(long chunkNo, int senderID, boolean quorum) {
+
+		Peer peer = Peer.getInstance();
+		peer.sampleRTT(null, senderID, this.state.getSentTimes().get(chunkNo));
+
+		if(quorum) this.chunkStored(chunkNo);
+	}
+
+	/**
+	 * Handles the arrival of enough STORED messages for a chunk.
+	 *
+	 * @param chunkNo the chunk number that reached the desired replication degree
+	 */
+	public void chunkStored(long chunkNo) {
+
+		synchronized(this) {
+			if(!this.outstanding.remove(chunkNo)) return;
+		}
+
+		// Only chunks stored without retransmission grow the congestion window
+		Peer.getInstance().getBackupScheduler().chunkDone(this.attempts.get(chunkNo) == 0);
+
+		// The time until the desired replication degree is reached drives the channel timeout
+		Long sentTime = this.state.getSentTimes().remove(chunkNo);
+		if(sentTime != null) Peer.getInstance().getMdb().getRTT().addSample((System.nanoTime() - sentTime) / 1000000.0);
+
+		ScheduledFuture<?> timer = this.timers.remove(chunkNo);
+		if(timer != null) timer.cancel(false);
+		this.pipeline.release(chunkNo);
+
+		// Persist the perceived replication degree so a resumed backup can skip this chunk
+		Peer.getInstance().getDatabase().saveProgress();
+		this.completeChunk(Peer.getInstance(), chunkNo, true);
+	}
+
+	/**
+	 * Handles the retransmission timeout of a chunk by resending its PUTCHUNK message
+	 * or giving up on the chunk if the maximum number of attempts has been reached.
+	 *
+	 * @param chunkNo the chunk number whose timer expired
+	 * @param timeoutMS the timeout that expired
+	 */
+	public void chunkTimeout(long chunkNo, long timeoutMS) {
+
+		Peer peer = Peer.getInstance();
+
+		synchronized(this) {
+			if(!this.outstanding.contains(chunkNo)) return;
+		}
+
+		this.timers.remove(chunkNo);
+
+		// STORED messages may have been counted without reaching the handler in time
+		if(this.state.getRespondedID().get(chunkNo).size() >= this.state.getDesiredRepDeg()) {
+			this.chunkStored(chunkNo);
+			return;
+		}
+
+		int attempt = this.attempts.get(chunkNo) + 1;
+		this.attempts.put(chunkNo, attempt);
+
+		if(attempt >= Peer.maxAttempts) {
+
+			SystemManager.getInstance().logPrint("giving up on chunk " + chunkNo + " after " + attempt + " attempts", SystemManager.LogLevel.DEBUG);
+			this.notEnoughResponses = true;
+
+			synchronized(this) {
+				if(!this.outstanding.remove(chunkNo)) return;
+			}
+
+			this.pipeline.release(chunkNo);
+			peer.getBackupScheduler().chunkDone(false);
+			this.completeChunk(peer, chunkNo, false);
+			return;
+		}
+
+		// Double the timeout of this chunk and keep the channel timeout backed off until a new sample arrives
+		SystemManager.getInstance().logPrint("not enough STORED messages whithin " + timeoutMS + "ms for chunk " + chunkNo, SystemManager.LogLevel.DEBUG);
+		peer.getMdb().getRTT().backoff(timeoutMS);
+		peer.getMdb().getCongestion().timeout();
+		this.sendPutchunk(peer, chunkNo, Math.max(peer.getMdb().getRTT().getTimeoutMS(), 2 * timeoutMS));
+	}
+
+	/**
+	 * Records that a chunk left the window and finishes the protocol if every chunk has completed.
+	 *
+	 * @param peer the singleton Peer instance
+	 * @param chunkNo the chunk number that left the window
+	 * @param replicated whether the chunk reached the desired replication degree
+	 */
+	private void completeChunk(Peer peer, long chunkNo, boolean replicated) {
+
+		boolean done;
+		synchronized(this) {
+			this.completedChunks++;
+			done = this.completedChunks == this.state.getChunkTotal() && !this.isFinished;
+			if(done) this.isFinished = true;
+		}
+
+		this.reportChunk(chunkNo, replicated);
+
+		if(done) this.finish(peer);
+	}
+
+	/**
+	 * Reports a chunk that was stored or given up on to the job and directory backup of this protocol.
+	 *
+	 * @param chunkNo the chunk number
+	 * @param replicated whether the chunk reached the desired replication degree
+	 */
+	private void reportChunk(long chunkNo, boolean replicated) {
+
+		long bytes = Math.max(0, Math.min(ProtocolState.getChunksize(), this.fileSize - chunkNo * ProtocolState.getChunksize()));
+
+		if(this.job != null) this.job.chunkDone(bytes, replicated);
+		if(this.directory != null) this.directory.chunkDone(bytes, replicated);
+	}
+
+	/**
+	 * Cancels this backup. Chunks already stored are kept in the database so the file can still be deleted.
+	 */
+	public void cancel() {
+
+		synchronized(this) {
+			if(this.cancelled || this.isFinished) return;
+			this.cancelled = true;
+
+			// Not initialised yet, the protocol aborts once it is
+			if(!this.initialized) return;
+			this.isFinished = true;
+		}
+
+		this.abort(Peer.getInstance());
+	}
+
+	/**
+	 * Releases the scheduler slots and timers of the chunks waiting for STORED messages and removes this protocol instance.
+	 *
+	 * @param peer the singleton Peer instance
+	 */
+	private void abort(Peer peer) {
+
+		// No more chunks of this file are handed out once it is unregistered
+		peer.getBackupScheduler().unregister(this.state.getHashHex(), this);
+
+		ArrayList<Long> released;
+		synchronized(this) {
+			released = new ArrayList<Long>(this.outstanding);
+			this.outstanding.clear();
+		}
+
+		for(long chunkNo : released) {
+			ScheduledFuture<?> timer = this.timers.remove(chunkNo);
+			if(timer != null) timer.cancel(false);
+			peer.getBackupScheduler().chunkDone(false);
+		}
+		this.pipeline.close();
+
+		SystemManager.getInstance().logPrint("cancelled " + this.backMsg + ", " + this.completedChunks + " / " + this.state.getChunkTotal() + " chunks done", SystemManager.LogLevel.NORMAL);
+
+		peer.getDatabase().backupUpdate(this.state);
+		peer.getProtocols().remove(this.key);
+		SystemManager.getInstance().logPrint("key removed: " + this.key, SystemManager.LogLevel.VERBOSE);
+
+		if(this.directory != null) this.directory.fileFinished(this, false);
+	}
+
+	/**
+	 * Updates the database with the backed up file and removes this protocol instance.
+	 *
+	 * @param peer the singleton Peer instance
+	 */
+	private void finish(Peer peer) {
+
+		if(!this.notEnoughResponses) SystemManager.getInstance().logPrint("finished " + this.backMsg, SystemManager.LogLevel.NORMAL);
+		else SystemManager.getInstance().logPrint("failed " + this.backMsg + ", replication degree lower than desired", SystemManager.LogLevel.NORMAL);
+
+		this.pipeline.close();
+		peer.getDatabase().backupUpdate(this.state);
+		peer.getBackupScheduler().unregister(this.state.getHashHex(), this);
+		peer.getProtocols().remove(this.key);
+		SystemManager.getInstance().logPrint("key removed: " + this.key, SystemManager.LogLevel.VERBOSE);
+
+		if(this.job != null) this.job.finish(!this.notEnoughResponses);
+		if(this.directory != null) this.directory.fileFinished(this, !this.notEnoughResponses);
+	}
+
 	/**
 	 * Initialises the ProtocolState object relevant to this backup procedure.
-	 * 
+	 *
 	 * @param peer the singleton Peer instance
-	 * @return the key relevant to this protocol, null on error
+	 * @return the key relevant to this protocol, null if the file is too large or already being backed up
 	 */
 	private String initializeProtocolInstance(Peer peer) throws NoSuchAlgorithmException, IOException {
-		
+
 		ProtocolState state = new ProtocolState(ProtocolState.ProtocolType.BACKUP, new ServiceMessage());
-		
-		if(!state.initBackupState(peer.getProtocolVersion(), this.filepath, this.repDeg)) return null;
-		
+
+		if(!state.initBackupState(peer.getProtocolVersion(), this.filepath, this.repDeg)) {
+			SystemManager.getInstance().logPrint("cannot backup files larger than 64GB!", SystemManager.LogLevel.NORMAL);
+			return null;
+		}
+
+		// Only one backup of the same file can run at a time
+		if(!peer.getBackupScheduler().register(state.getHashHex(), this)) {
+			SystemManager.getInstance().logPrint("ignoring " + this.backMsg + ", file is already being backed up", SystemManager.LogLevel.NORMAL);
+			return null;
+		}
+
+		state.setBackupProtocol(this);
+		this.fileSize = new File(this.filepath).length();
+		this.state = state;
+		this.pipeline = new BackupPipeline(peer.getPeerID(), state);
+
+		peer.getDatabase().backupStarted(state);
+
 		String protocolKey = peer.getPeerID() + state.getHashHex() + state.getProtocolType().name();
 		peer.getProtocols().put(protocolKey, state);
-		
+
 		SystemManager.getInstance().logPrint("key inserted: " + protocolKey, SystemManager.LogLevel.VERBOSE);
 		return protocolKey;
 	}
-
-	/**
-	 * @param notEnoughResponses whether enough responses were received for this backup protocol
-	 */
-	public void setNotEnoughResponses(boolean notEnoughResponses) {
-		this.notEnoughResponses = notEnoughResponses;
-	}
-}
\ No newline at end of file
+}
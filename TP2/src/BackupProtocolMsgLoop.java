@@ -1,62 +1,27 @@
-import java.io.IOException;
-
 public class BackupProtocolMsgLoop implements Runnable {
 
-	private Peer peer;
-	private ProtocolState state;
 	private BackupProtocol backupProtocol;
-	private int attempts = 0;
 	private long chunkNo;
-	
-	public BackupProtocolMsgLoop(Peer peer, ProtocolState state, Long currentChunkNo, BackupProtocol backupProtocol) {
-		this.peer = peer;
-		this.state = state;
-		this.chunkNo = currentChunkNo;
-		this.backupProtocol = backupProtocol;
-	}
-	
+	private long timeoutMS;
+
 	/**
-	 * Sends the required PUTCHUNK messages for backing up a chunk and waits for the reception of repDeg STORED
-	 * messages in response to the PUTCHUNK.
-	 * 
-	 * @return whether enough responses were registered
+	 * Retransmission timer for a single chunk of a BACKUP protocol. Scheduled on the Peer's
+	 * executor every time a PUTCHUNK is sent, so no thread sleeps while waiting for STORED messages.
+	 *
+	 * @param backupProtocol the BACKUP protocol the chunk belongs to
+	 * @param chunkNo the chunk number relevant to this timer
+	 * @param timeoutMS the timeout this timer was scheduled with
 	 */
-	private boolean putchunkLoop() throws InterruptedException, IOException {
-		
-		while(true) {
-
-			// Prepare and send next PUTCHUNK message
-			byte[] msg;
-			msg = state.getParser().createPutchunkMsg(this.peer.getPeerID(), this.state, this.chunkNo);
-			peer.getMdb().send(msg);
-			int timeoutMS = (int) (Peer.baseTimeoutMS * Math.pow(2, this.attempts));
-			Thread.sleep(timeoutMS);
-
-			this.attempts++;
-
-			if(this.state.getRespondedID().get(this.chunkNo).size() >= this.state.getDesiredRepDeg()) {
-				return true;
-			} else if(this.attempts >= Peer.maxAttempts) {
-				this.backupProtocol.setNotEnoughResponses(true);
-				return false;
-			}
-
-			SystemManager.getInstance().logPrint("not enough STORED messages whithin " + timeoutMS + "ms", SystemManager.LogLevel.DEBUG);
-		}
+	public BackupProtocolMsgLoop(BackupProtocol backupProtocol, long chunkNo, long timeoutMS) {
+		this.backupProtocol = backupProtocol;
+		this.chunkNo = chunkNo;
+		this.timeoutMS = timeoutMS;
 	}
 
 	@Override
 	public void run() {
-		
-		Thread.currentThread().setName("Backup loop " + Thread.currentThread().getId());
-		
-		try {
-			this.putchunkLoop();
-		} catch(InterruptedException | IOException e) {
-			SystemManager.getInstance().logPrint("I/O Exception or thread interruption on backup protocol!", SystemManager.LogLevel.NORMAL);
-			e.printStackTrace();
-			return;
-		}
+
+		Thread.currentThread().setName("Backup timeout " + Thread.currentThread().getId());
+		this.backupProtocol.chunkTimeout(this.chunkNo, this.timeoutMS);
 	}
-	
 }
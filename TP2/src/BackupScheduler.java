@@ -0,0 +1,144 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+public class BackupScheduler {
+
+	public static final int defaultMaxInFlight = 32;
+
+	private int maxInFlight = defaultMaxInFlight;
+	private int inFlight = 0;
+
+	// Backups with chunks left to send in round-robin order, and every running backup by file ID
+	private ArrayDeque<BackupProtocol> ready = new ArrayDeque<BackupProtocol>();
+	private HashMap<String, BackupProtocol> active = new HashMap<String, BackupProtocol>();
+
+	// Resumes dispatching when the backup channel's congestion window has room again
+	private Runnable dispatcher = () -> this.dispatch();
+
+	/**
+	 * Peer-wide scheduler for the chunks of every running BACKUP protocol. Limits the number of chunks
+	 * waiting for STORED messages across all files and hands out free slots one chunk per file in
+	 * round-robin order, so small files aren't stuck behind a large one.
+	 */
+	public BackupScheduler() {}
+
+	/**
+	 * Registers a BACKUP protocol for a file, unless the same file is already being backed up.
+	 *
+	 * @param fileID the SHA256 of the file
+	 * @param backup the BACKUP protocol
+	 * @return whether the protocol was registered
+	 */
+	public synchronized boolean register(String fileID, BackupProtocol backup) {
+
+		if(this.active.containsKey(fileID)) return false;
+
+		this.active.put(fileID, backup);
+		return true;
+	}
+
+	/**
+	 * Queues a registered BACKUP protocol for sending its chunks.
+	 *
+	 * @param backup the BACKUP protocol with chunks to send
+	 */
+	public void schedule(BackupProtocol backup) {
+
+		synchronized(this) {
+			if(backup.hasChunksToSend()) this.ready.add(backup);
+		}
+
+		this.dispatch();
+	}
+
+	/**
+	 * Removes a finished BACKUP protocol.
+	 *
+	 * @param fileID the SHA256 of the file
+	 * @param backup the BACKUP protocol
+	 */
+	public synchronized void unregister(String fileID, BackupProtocol backup) {
+
+		this.active.remove(fileID, backup);
+		this.ready.remove(backup);
+	}
+
+	/**
+	 * Frees the slot of a chunk that left its BACKUP protocol's window and dispatches the next chunks.
+	 *
+	 * @param acknowledged whether the chunk was stored without retransmission
+	 */
+	public void chunkDone(boolean acknowledged) {
+
+		synchronized(this) {
+			if(this.inFlight > 0) this.inFlight--;
+		}
+
+		Peer.getInstance().getMdb().getCongestion().release(acknowledged);
+		this.dispatch();
+	}
+
+	/**
+	 * Hands free slots to the queued BACKUP protocols, one chunk at a time in round-robin order,
+	 * while both the scheduler limit and the backup channel's congestion window allow it.
+	 * The PUTCHUNK messages are prepared and sent on the Peer's executor.
+	 */
+	public void dispatch() {
+
+		Peer peer = Peer.getInstance();
+		ArrayList<BackupProtocol> backups = new ArrayList<BackupProtocol>();
+		ArrayList<Long> chunks = new ArrayList<Long>();
+
+		synchronized(this) {
+			while(this.inFlight < this.maxInFlight && !this.ready.isEmpty() && peer.getMdb().getCongestion().acquire(this.dispatcher)) {
+
+				BackupProtocol backup = this.ready.poll();
+				backups.add(backup);
+				chunks.add(backup.nextChunk());
+				this.inFlight++;
+
+				if(backup.hasChunksToSend()) this.ready.add(backup);
+			}
+		}
+
+		for(int i = 0; i < backups.size(); i++) {
+			BackupProtocol backup = backups.get(i);
+			long chunkNo = chunks.get(i);
+			peer.getExecutor().execute(() -> backup.sendChunk(chunkNo));
+		}
+	}
+
+	/**
+	 * @return the number of files being backed up
+	 */
+	public synchronized int getActiveCount() {
+		return active.size();
+	}
+
+	/**
+	 * @return the number of chunks waiting for STORED messages across all files
+	 */
+	public synchronized int getInFlight() {
+		return inFlight;
+	}
+
+	/**
+	 * @return the max number of chunks waiting for STORED messages across all files
+	 */
+	public synchronized int getMaxInFlight() {
+		return maxInFlight;
+	}
+
+	/**
+	 * @param maxInFlight the max number of chunks waiting for STORED messages across all files
+	 */
+	public void setMaxInFlight(int maxInFlight) {
+
+		synchronized(this) {
+			this.maxInFlight = maxInFlight;
+		}
+
+		this.dispatch();
+	}
+}
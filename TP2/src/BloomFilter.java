@@ -0,0 +1,98 @@
+import java.util.BitSet;
+
+public class BloomFilter {
+
+	private static final int bitCount = 16384;
+	private static final int hashCount = 4;
+	private static final int fnvOffset = 0x811C9DC5;
+	private static final int fnvPrime = 0x01000193;
+
+	private BitSet bits;
+
+	/**
+	 * A Bloom filter is a compact probabilistic set of file IDs. It never reports a file ID that was
+	 * added as missing but may report a file ID that was never added as present.
+	 */
+	public BloomFilter() {
+		this.bits = new BitSet(bitCount);
+	}
+
+	/**
+	 * Creates a Bloom filter from the binary representation sent by another Peer.
+	 *
+	 * @param data the binary representation of the filter
+	 */
+	public BloomFilter(byte[] data) {
+		this.bits = BitSet.valueOf(data);
+	}
+
+	/**
+	 * Adds a key to the filter.
+	 *
+	 * @param key the key to add
+	 */
+	public synchronized void add(String key) {
+
+		int h1 = key.hashCode();
+		int h2 = this.secondaryHash(key);
+
+		for(int i = 0; i < hashCount; i++) {
+			this.bits.set(this.bitIndex(h1, h2, i));
+		}
+	}
+
+	/**
+	 * Checks whether a key might have been added to the filter.
+	 *
+	 * @param key the key to check
+	 * @return false if the key was definitely never added, true otherwise
+	 */
+	public synchronized boolean mightContain(String key) {
+
+		int h1 = key.hashCode();
+		int h2 = this.secondaryHash(key);
+
+		for(int i = 0; i < hashCount; i++) {
+			if(!this.bits.get(this.bitIndex(h1, h2, i))) return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * @return the binary representation of the filter for sending to other Peers
+	 */
+	public synchronized byte[] toByteArray() {
+		return this.bits.toByteArray();
+	}
+
+	/**
+	 * Calculates the bit index for the i-th hash function using double hashing.
+	 *
+	 * @param h1 the primary hash of the key
+	 * @param h2 the secondary hash of the key
+	 * @param i the hash function number
+	 * @return the bit index
+	 */
+	private int bitIndex(int h1, int h2, int i) {
+		return Math.floorMod(h1 + i * h2, bitCount);
+	}
+
+	/**
+	 * Computes a FNV-1a hash of the key, used as the secondary hash for double hashing.
+	 *
+	 * @param key the key to hash
+	 * @return the FNV-1a hash
+	 */
+	private int secondaryHash(String key) {
+
+		int hash = fnvOffset;
+		for(int i = 0; i < key.length(); i++) {
+			hash ^= key.charAt(i);
+			hash *= fnvPrime;
+		}
+
+		// Force an odd step so all indices are visited
+		return hash | 1;
+	}
+}
@@ -0,0 +1,329 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class ChunkCache {
+
+	// Stored chunks are encrypted, so they may be up to an AES block larger than the chunk size
+	private static final int slotSize = ProtocolState.getChunksize() + 16;
+
+	private ByteBuffer slab;
+	private int slots;
+
+	// Cached chunks by file ID and chunk number in least recently used order, and the slots holding none
+	private LinkedHashMap<String, CachedChunk> entries = new LinkedHashMap<String, CachedChunk>(16, 0.75f, true);
+	private ArrayDeque<Integer> freeSlots = new ArrayDeque<Integer>();
+
+	private long hits = 0;
+	private long misses = 0;
+	private long prefetched = 0;
+
+	// Bumped by every invalidation, so chunks read from storage meanwhile aren't cached
+	private long generation = 0;
+
+	/**
+	 * Slot of the slab holding a cached chunk.
+	 */
+	private static class CachedChunk {
+
+		private int slot;
+		private int length;
+
+		// Senders using the slot, and whether the chunk left the cache while they were
+		private int pins = 0;
+		private boolean dropped = false;
+
+		private CachedChunk(int slot, int length) {
+			this.slot = slot;
+			this.length = length;
+		}
+	}
+
+	/**
+	 * Cached chunk being sent, its slot isn't reused until it's released.
+	 */
+	public class PinnedChunk {
+
+		private CachedChunk entry;
+		private ByteBuffer data;
+		private boolean released = false;
+
+		private PinnedChunk(CachedChunk entry, ByteBuffer data) {
+			this.entry = entry;
+			this.data = data;
+		}
+
+		/**
+		 * @return a read-only view of the encrypted chunk data in the slab, positioned at its start
+		 */
+		public ByteBuffer getData() {
+			return data.duplicate();
+		}
+
+		/**
+		 * Lets the slot be reused once the chunk is sent, releasing more than once has no effect.
+		 */
+		public void release() {
+			ChunkCache.this.unpin(this);
+		}
+	}
+
+	/**
+	 * Least recently used cache of the stored chunks served to restoring Peers, so chunks requested
+	 * again are sent without touching the disk. Chunks are kept encrypted, as stored, in fixed
+	 * slots of a single direct buffer allocated up front, so the cache never holds more than its
+	 * capacity and adds nothing to the heap. Cached chunks are sent straight from their slot, which
+	 * stays pinned until the send is done.
+	 *
+	 * @param slots the maximum number of chunks cached, 0 disables the cache
+	 */
+	public ChunkCache(int slots) {
+
+		this.slots = slots;
+		this.slab = ByteBuffer.allocateDirect(slots * slotSize);
+
+		for(int i = 0; i < slots; i++) {
+			this.freeSlots.add(i);
+		}
+	}
+
+	/**
+	 * Pins a cached chunk so it can be sent straight from the slab.
+	 *
+	 * @param hash textual representation of the hexadecimal values of a SHA256
+	 * @param chunkNo the chunk number
+	 * @return the pinned chunk, to be released once sent, null if the chunk isn't cached
+	 */
+	public synchronized PinnedChunk pin(String hash, long chunkNo) {
+
+		CachedChunk entry = this.entries.get(hash + "." + chunkNo);
+		if(entry == null) {
+			this.misses++;
+			return null;
+		}
+
+		this.hits++;
+		entry.pins++;
+
+		ByteBuffer view = this.slab.duplicate();
+		view.position(entry.slot * slotSize);
+		view.limit(entry.slot * slotSize + entry.length);
+
+		return new PinnedChunk(entry, view.slice().asReadOnlyBuffer());
+	}
+
+	/**
+	 * Unpins a chunk, freeing its slot if it left the cache while pinned.
+	 *
+	 * @param pinned the pinned chunk
+	 */
+	private synchronized void unpin(PinnedChunk pinned) {
+
+		if(pinned.released) return;
+		pinned.released = true;
+
+		CachedChunk entry = pinned.entry;
+		entry.pins--;
+		if(entry.dropped && entry.pins == 0) this.freeSlots.add(entry.slot);
+	}
+
+	/**
+	 * Loads a chunk from its file into the cache, without counting as a hit or miss.
+	 *
+	 * @param hash textual representation of the hexadecimal values of a SHA256
+	 * @param chunkNo the chunk number
+	 * @param chunkPath the path of the stored chunk
+	 * @return whether the chunk was loaded, false if it was already cached or can't be cached
+	 */
+	public boolean fill(String hash, long chunkNo, String chunkPath) throws IOException {
+
+		long generation;
+		synchronized(this) {
+			if(this.slots == 0 || this.contains(hash, chunkNo)) return false;
+			generation = this.generation;
+		}
+
+		// Read outside the lock, a chunk loaded twice meanwhile is only cached once
+		byte[] data = this.read(chunkPath);
+		if(data == null) return false;
+
+		synchronized(this) {
+			if(generation != this.generation || this.contains(hash, chunkNo)) return false;
+			return this.put(hash, chunkNo, data);
+		}
+	}
+
+	/**
+	 * Loads a chunk from its file into the cache ahead of its request, without counting as a hit or miss.
+	 *
+	 * @param hash textual representation of the hexadecimal values of a SHA256
+	 * @param chunkNo the chunk number
+	 * @param chunkPath the path of the stored chunk
+	 * @return whether the chunk was loaded, false if it was already cached or can't be cached
+	 */
+	public boolean prefetch(String hash, long chunkNo, String chunkPath) throws IOException {
+
+		if(!this.fill(hash, chunkNo, chunkPath)) return false;
+
+		synchronized(this) {
+			this.prefetched++;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Reads a stored chunk from its file.
+	 *
+	 * @param chunkPath the path of the stored chunk
+	 * @return the encrypted chunk data, null if the chunk can't be cached
+	 */
+	private byte[] read(String chunkPath) throws IOException {
+
+		try(RandomAccessFile file = new RandomAccessFile(chunkPath, "r")) {
+
+			if(this.slots == 0 || file.length() > slotSize) return null;
+
+			byte[] data = new byte[(int) file.length()];
+			file.readFully(data);
+			return data;
+		}
+	}
+
+	/**
+	 * @param hash textual representation of the hexadecimal values of a SHA256
+	 * @param chunkNo the chunk number
+	 * @return whether the chunk is cached, without counting as a hit or miss
+	 */
+	public synchronized boolean contains(String hash, long chunkNo) {
+		return this.entries.containsKey(hash + "." + chunkNo);
+	}
+
+	/**
+	 * Caches a chunk, evicting the least recently used chunk not being sent if the cache is full.
+	 *
+	 * @param hash textual representation of the hexadecimal values of a SHA256
+	 * @param chunkNo the chunk number
+	 * @param data the encrypted chunk data
+	 * @return whether the chunk was cached, false if every slot is being sent
+	 */
+	public synchronized boolean put(String hash, long chunkNo, byte[] data) {
+
+		String key = hash + "." + chunkNo;
+		if(this.slots == 0 || data.length > slotSize || this.entries.containsKey(key)) return false;
+
+		if(this.freeSlots.isEmpty()) {
+			Iterator<CachedChunk> eldest = this.entries.values().iterator();
+			while(eldest.hasNext()) {
+
+				CachedChunk entry = eldest.next();
+				if(entry.pins > 0) continue;
+
+				this.freeSlots.add(entry.slot);
+				eldest.remove();
+				break;
+			}
+
+			if(this.freeSlots.isEmpty()) return false;
+		}
+
+		int slot = this.freeSlots.poll();
+		ByteBuffer view = this.slab.duplicate();
+		view.position(slot * slotSize);
+		view.put(data);
+
+		this.entries.put(key, new CachedChunk(slot, data.length));
+		return true;
+	}
+
+	/**
+	 * Drops a chunk deleted from storage.
+	 *
+	 * @param hash textual representation of the hexadecimal values of a SHA256
+	 * @param chunkNo the chunk number
+	 */
+	public synchronized void invalidate(String hash, long chunkNo) {
+
+		this.generation++;
+
+		CachedChunk entry = this.entries.remove(hash + "." + chunkNo);
+		if(entry != null) this.drop(entry);
+	}
+
+	/**
+	 * Drops every chunk of a file deleted from storage.
+	 *
+	 * @param hash textual representation of the hexadecimal values of a SHA256
+	 */
+	public synchronized void invalidateFile(String hash) {
+
+		this.generation++;
+
+		Iterator<Map.Entry<String, CachedChunk>> it = this.entries.entrySet().iterator();
+		while(it.hasNext()) {
+
+			Map.Entry<String, CachedChunk> cached = it.next();
+			if(!cached.getKey().startsWith(hash + ".")) continue;
+
+			this.drop(cached.getValue());
+			it.remove();
+		}
+	}
+
+	/**
+	 * Frees the slot of a chunk removed from the cache, once it's no longer being sent.
+	 *
+	 * @param entry the chunk removed
+	 */
+	private void drop(CachedChunk entry) {
+
+		entry.dropped = true;
+		if(entry.pins == 0) this.freeSlots.add(entry.slot);
+	}
+
+	/**
+	 * @return the number of chunks cached
+	 */
+	public synchronized int getCachedChunks() {
+		return this.entries.size();
+	}
+
+	/**
+	 * @return the maximum number of chunks cached
+	 */
+	public int getSlots() {
+		return slots;
+	}
+
+	/**
+	 * @return the number of lookups that found the chunk cached
+	 */
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	/**
+	 * @return the number of lookups that didn't find the chunk cached
+	 */
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * @return the number of chunks loaded ahead of their request
+	 */
+	public synchronized long getPrefetched() {
+		return prefetched;
+	}
+
+	/**
+	 * @return the fraction of lookups that found the chunk cached, 0 if there were none
+	 */
+	public synchronized double getHitRate() {
+		return (this.hits + this.misses == 0) ? 0 : (double) this.hits / (this.hits + this.misses);
+	}
+}
@@ -9,6 +9,8 @@ public class ChunkInfo implements Serializable {
 	private int desiredRepDeg;
 	private ConcurrentHashMap<Integer, Integer> perceivedRepDeg = new ConcurrentHashMap<Integer, Integer>(8, 0.9f, 1);
 	private int size = -1;
+	private String chunkMACHeader = null;
+	private String chunkMAC = null;
 
 	/**
 	 * Creates chunk info using specified parameters.
@@ -99,6 +101,25 @@ public class ChunkInfo implements Serializable {
 	public void setSize(int size) {
 		this.size = size;
 	}
+
+	/**
+	 * Returns the cached MAC of the CHUNK message serving this chunk, valid only for the header it was computed with.
+	 *
+	 * @param header the header of the CHUNK message
+	 * @return the MAC as hexadecimal text, null if none was cached for this header
+	 */
+	public synchronized String getChunkMAC(String header) {
+		return header.equals(chunkMACHeader) ? chunkMAC : null;
+	}
+
+	/**
+	 * @param header the header of the CHUNK message the MAC was computed with
+	 * @param mac the MAC of the CHUNK message as hexadecimal text
+	 */
+	public synchronized void setChunkMAC(String header, String mac) {
+		this.chunkMACHeader = header;
+		this.chunkMAC = mac;
+	}
 	
 	
 }
@@ -0,0 +1,66 @@
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+
+public class ChunkResponse {
+
+	// Restore servers of the enhanced requesters, and whether any requester waits on the multicast channel
+	private LinkedHashSet<String> servers = new LinkedHashSet<String>();
+	private boolean multicast = false;
+	private boolean closed = false;
+
+	/**
+	 * Requesters waiting for the CHUNK message scheduled for a chunk stored on this Peer. GETCHUNK
+	 * messages for the same chunk arriving before the CHUNK message is sent join the scheduled
+	 * response instead of scheduling their own.
+	 */
+	public ChunkResponse() {}
+
+	/**
+	 * Adds a requester to the response, unless the response was already sent.
+	 *
+	 * @param server the address and port of the requester's restore server, null if it waits on the multicast channel
+	 * @return whether the requester was added
+	 */
+	public synchronized boolean addRequester(String server) {
+
+		if(this.closed) return false;
+
+		if(server == null) this.multicast = true;
+		else this.servers.add(server);
+
+		return true;
+	}
+
+	/**
+	 * Closes the response to new requesters, right before it is sent.
+	 */
+	public synchronized void close() {
+		this.closed = true;
+	}
+
+	/**
+	 * Returns whether another holder's CHUNK message for the chunk makes this response unneeded.
+	 * A CHUNK message without data served a single enhanced requester through TCP, so it only
+	 * stands in for a response to that one requester.
+	 *
+	 * @param withData whether the CHUNK message carried the chunk data
+	 * @return whether the CHUNK message serves every requester of this response
+	 */
+	public synchronized boolean isServedBy(boolean withData) {
+		return withData || (!this.multicast && this.servers.size() <= 1);
+	}
+
+	/**
+	 * @return the address and port of the restore servers of the enhanced requesters
+	 */
+	public synchronized ArrayList<String> getServers() {
+		return new ArrayList<String>(this.servers);
+	}
+
+	/**
+	 * @return whether any requester waits for the chunk on the multicast channel
+	 */
+	public synchronized boolean isMulticast() {
+		return multicast;
+	}
+}
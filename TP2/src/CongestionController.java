@@ -0,0 +1,94 @@
+import java.util.ArrayList;
+
+public class CongestionController {
+
+	private static final double initialWindow = 4;
+	private static final double minWindow = 1;
+	private static final double maxWindow = 256;
+	private static final double decreaseFactor = 0.5;
+
+	private RTTEstimator rtt;
+	private double window = initialWindow;
+	private int inFlight = 0;
+	private long lastDecreaseTime;
+	private ArrayList<Runnable> waiters = new ArrayList<Runnable>();
+
+	/**
+	 * Limits the number of requests in flight on a channel using additive increase, multiplicative
+	 * decrease. The window grows by one request per window of timely responses and is halved on
+	 * timeouts, at most once per retransmission timeout so a burst of losses only counts once.
+	 *
+	 * @param rtt the round trip time estimator of the channel
+	 */
+	public CongestionController(RTTEstimator rtt) {
+		this.rtt = rtt;
+		this.lastDecreaseTime = System.nanoTime();
+	}
+
+	/**
+	 * Takes a slot in the window if one is free, otherwise registers a waiter that is run
+	 * on the Peer's executor the next time a slot is released.
+	 *
+	 * @param waiter the task to run when a slot is released, null to not wait
+	 * @return whether a slot was taken
+	 */
+	public synchronized boolean acquire(Runnable waiter) {
+
+		if(this.inFlight < (int) this.window) {
+			this.inFlight++;
+			return true;
+		}
+
+		if(waiter != null && !this.waiters.contains(waiter)) this.waiters.add(waiter);
+		return false;
+	}
+
+	/**
+	 * Frees a slot in the window and wakes up the waiting senders.
+	 *
+	 * @param acknowledged whether the request was answered in time, growing the window
+	 */
+	public void release(boolean acknowledged) {
+
+		ArrayList<Runnable> toWake;
+
+		synchronized(this) {
+			if(this.inFlight > 0) this.inFlight--;
+			if(acknowledged) this.window = Math.min(maxWindow, this.window + 1 / this.window);
+
+			toWake = this.waiters;
+			this.waiters = new ArrayList<Runnable>();
+		}
+
+		for(Runnable waiter : toWake) {
+			Peer.getInstance().getExecutor().execute(waiter);
+		}
+	}
+
+	/**
+	 * Halves the window after a request timed out, the slot is kept by the retransmission.
+	 */
+	public synchronized void timeout() {
+
+		long now = System.nanoTime();
+		if(now - this.lastDecreaseTime < this.rtt.getTimeoutMS() * 1000000L) return;
+
+		this.lastDecreaseTime = now;
+		this.window = Math.max(minWindow, this.window * decreaseFactor);
+		SystemManager.getInstance().logPrint("congestion window decreased to " + (int) this.window, SystemManager.LogLevel.DEBUG);
+	}
+
+	/**
+	 * @return the current window size
+	 */
+	public synchronized double getWindow() {
+		return window;
+	}
+
+	/**
+	 * @return the number of requests in flight
+	 */
+	public synchronized int getInFlight() {
+		return inFlight;
+	}
+}
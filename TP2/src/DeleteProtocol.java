@@ -3,6 +3,9 @@ import java.security.NoSuchAlgorithmException;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 public class DeleteProtocol implements Runnable {
 
@@ -14,14 +17,21 @@ public class DeleteProtocol implements Runnable {
 	private FileInfo fileInfo;
 	private int pendingPeerID;
 	private int attempts = 0;
+	private Job job = null;
+	
+	// Thread running the protocol, interrupted when the job is cancelled
+	private Thread thread = null;
+	private volatile boolean cancelled = false;
 	
 	/**
 	 * Runs a DELETE protocol procedure with specified filepath.
 	 * 
 	 * @param filepath the file path to delete
+	 * @param job the job to report progress to
 	 */
-	public DeleteProtocol(String filepath) {
+	public DeleteProtocol(String filepath, Job job) {
 		this.filepath = filepath;
+		this.job = job;
 	}
 	
 	/**
@@ -40,59 +50,119 @@ public class DeleteProtocol implements Runnable {
 	public void run() {
 
 		Thread.currentThread().setName("Delete " + Thread.currentThread().getId());
-		Peer peer = Peer.getInstance();
+		
+		// Job may have been cancelled before reaching the executor
+		if(this.job != null && !this.job.start(() -> this.cancel())) return;
+		
+		synchronized(this) {
+			this.thread = Thread.currentThread();
+		}
+		
+		boolean success = false;
+		try {
+			success = this.delete(Peer.getInstance());
+		} finally {
+			synchronized(this) {
+				this.thread = null;
+				
+				// Clear a cancellation that arrived after the protocol ended so it doesn't reach the next task of this thread
+				Thread.interrupted();
+			}
+		}
+		
+		if(this.job != null) this.job.finish(success);
+	}
+	
+	/**
+	 * Cancels the protocol, interrupting its thread if it is waiting for responses.
+	 */
+	public synchronized void cancel() {
+		
+		this.cancelled = true;
+		if(this.thread != null) this.thread.interrupt();
+	}
+	
+	/**
+	 * Retrieves the file info if needed and runs the delete protocol according to version.
+	 * 
+	 * @param peer the singleton Peer instance
+	 * @return whether the file was deleted
+	 */
+	private boolean delete(Peer peer) {
 		
 		this.fileInfo = peer.getDatabase().retrieveFileInfo(this.filepath);
 
 		// Peer is not the initiator, try to retrieve file info from other Peers
 		if(this.fileInfo == null) {
-			
-			String retrieveKey = this.initializeRetrieveProtocol(peer);
-			ProtocolState retrieveState = peer.getProtocols().get(retrieveKey);
-			
-			// Send request for file info
-			try {
-				byte[] msg = retrieveState.getParser().createRetrieveMsg(peer.getPeerID(), peer.getProtocolVersion(), this.filepath);
-				peer.getMcc().send(msg);
-			} catch(IOException e) {
-				SystemManager.getInstance().logPrint("I/O Exception retrieving info!", SystemManager.LogLevel.NORMAL);
-				e.printStackTrace();
-				return;
-			}
-			
-			// Wait for response
-			do {
-				if(Thread.interrupted()) {
-					SystemManager.getInstance().logPrint("could not retrieve file info, might not exist in the system", SystemManager.LogLevel.NORMAL);
-					return;
-				}
-
-			} while(!retrieveState.isRetrieveMsgResponded());
-			
-			this.fileInfo = retrieveState.getFileInfo();
-			
-			peer.getProtocols().remove(retrieveKey);
-			SystemManager.getInstance().logPrint("key removed: " + retrieveKey, SystemManager.LogLevel.VERBOSE);
+			this.fileInfo = this.retrieveFileInfo(peer);
+			if(this.fileInfo == null) return false;
 		}
 		
 		// Run protocol according to version
 		if(peer.getProtocolVersion().equals("1.0")) {
 			try {
-				this.normalDelete(peer);
+				return this.normalDelete(peer);
 			} catch(IOException e) {
 				SystemManager.getInstance().logPrint("I/O Exception or thread interruption on delete protocol!", SystemManager.LogLevel.NORMAL);
 				e.printStackTrace();
-				return;
+				return false;
 			}
 		} else {
 			try {
-				this.enhancedDelete(peer);
+				return this.enhancedDelete(peer);
 			} catch(IOException | InterruptedException | NoSuchAlgorithmException e) {
 				SystemManager.getInstance().logPrint("I/O Exception or thread interruption on delete protocol!", SystemManager.LogLevel.NORMAL);
 				e.printStackTrace();
-				return;
+				return false;
+			}
+		}
+	}
+	
+	/**
+	 * Asks the other Peers for the info of the file and waits for the first INFO response, asking
+	 * again with twice the timeout if none arrives, until the protocol is cancelled. The first wait
+	 * is the control channel's timeout, but at least {@value Peer#baseTimeoutMS}ms.
+	 * 
+	 * @param peer the singleton Peer instance
+	 * @return the file info, null if it couldn't be retrieved
+	 */
+	private FileInfo retrieveFileInfo(Peer peer) {
+		
+		String retrieveKey = this.initializeRetrieveProtocol(peer);
+		ProtocolState retrieveState = peer.getProtocols().get(retrieveKey);
+		
+		long timeoutMS = Math.max(Peer.baseTimeoutMS, peer.getMcc().getRTT().getTimeoutMS());
+		FileInfo info = null;
+		
+		// Send request for file info and wait for the response, a lost RETRIEVE or INFO is sent again, cancellation interrupts the wait
+		try {
+			byte[] msg = retrieveState.getParser().createRetrieveMsg(peer.getPeerID(), peer.getProtocolVersion(), this.filepath);
+			
+			for(int attempt = 1; info == null; attempt++) {
+				peer.getMcc().send(msg);
+				
+				try {
+					info = retrieveState.getRetrievedInfo().get(timeoutMS, TimeUnit.MILLISECONDS);
+				} catch(TimeoutException e) {
+					if(attempt >= Peer.maxRetrieveAttempts) throw e;
+					
+					SystemManager.getInstance().logPrint("no INFO whithin " + timeoutMS + "ms, requesting file info again", SystemManager.LogLevel.DEBUG);
+					timeoutMS *= 2;
+				}
 			}
+		} catch(TimeoutException e) {
+			SystemManager.getInstance().logPrint("could not retrieve file info after " + Peer.maxRetrieveAttempts + " attempts, might not exist in the system", SystemManager.LogLevel.NORMAL);
+		} catch(InterruptedException e) {
+			if(this.cancelled) SystemManager.getInstance().logPrint("cancelled delete: " + this.filepath, SystemManager.LogLevel.NORMAL);
+			else SystemManager.getInstance().logPrint("thread interruption retrieving info!", SystemManager.LogLevel.NORMAL);
+		} catch(IOException | ExecutionException e) {
+			SystemManager.getInstance().logPrint("I/O Exception retrieving info!", SystemManager.LogLevel.NORMAL);
+			e.printStackTrace();
 		}
+		
+		peer.getProtocols().remove(retrieveKey);
+		SystemManager.getInstance().logPrint("key removed: " + retrieveKey, SystemManager.LogLevel.VERBOSE);
+		return info;
 	}
 	
 	/**
@@ -100,8 +170,9 @@ public class DeleteProtocol implements Runnable {
 	 * Does not confirm deletion.
 	 * 
 	 * @param peer the singleton Peer instance 
+	 * @return whether the DELETE messages were sent
 	 */
-	public void normalDelete(Peer peer) throws IOException {
+	public boolean normalDelete(Peer peer) throws IOException {
 		
 		String delMsg = "delete: " + filepath;
 		SystemManager.getInstance().logPrint("started " + delMsg, SystemManager.LogLevel.NORMAL);
@@ -113,7 +184,7 @@ public class DeleteProtocol implements Runnable {
 		} catch(NoSuchAlgorithmException | IOException e) {
 			SystemManager.getInstance().logPrint("I/O Exception on delete protocol!", SystemManager.LogLevel.NORMAL);
 			e.printStackTrace();
-			return;
+			return false;
 		}
 		
 		// Create and send DELETE message 3 times
@@ -125,13 +196,17 @@ public class DeleteProtocol implements Runnable {
 			peer.getMcc().send(msg);
 			Thread.sleep(Peer.consecutiveMsgWaitMS);
 			peer.getMcc().send(msg);
-		} catch(InterruptedException | IOException e) {
+		} catch(InterruptedException e) {
+			SystemManager.getInstance().logPrint("cancelled " + delMsg, SystemManager.LogLevel.NORMAL);
+			return false;
+		} catch(IOException e) {
 			SystemManager.getInstance().logPrint("I/O Exception or thread interruption on delete protocol!", SystemManager.LogLevel.NORMAL);
 			e.printStackTrace();
-			return;
+			return false;
 		}
 
 		SystemManager.getInstance().logPrint("finished " + delMsg, SystemManager.LogLevel.NORMAL);
+		return true;
 	}
 	
 	/**
@@ -139,8 +214,9 @@ public class DeleteProtocol implements Runnable {
 	 * Confirms deletion by waiting for the expected number of responses.
 	 * 
 	 * @param peer the singleton Peer instance
+	 * @return whether every Peer with the file confirmed deletion
 	 */
-	public void enhancedDelete(Peer peer) throws IOException, InterruptedException, NoSuchAlgorithmException {
+	public boolean enhancedDelete(Peer peer) throws IOException, InterruptedException, NoSuchAlgorithmException {
 		
 		String delMsg = this.pendingDelete ? "pending delete: " + this.hash : "delete enh: " + filepath;
 		SystemManager.getInstance().logPrint("started " + delMsg, SystemManager.LogLevel.NORMAL);
@@ -171,14 +247,29 @@ public class DeleteProtocol implements Runnable {
 		SystemManager.getInstance().logPrint("unique peers with file: " + peersWithFile.size(), SystemManager.LogLevel.VERBOSE);
 		
 		// Send DELETE messages and wait for confirmations if file exists on backup service
+		boolean confirmed = true;
 		if(peersWithFile.size() != 0) {
 			
-			if(!this.deleteLoop(peer, state, peersWithFile)) {
+			try {
+				confirmed = this.deleteLoop(peer, state, peersWithFile);
+			} catch(InterruptedException e) {
+				if(!this.cancelled) throw e;
+				
+				peer.getProtocols().remove(key);
+				SystemManager.getInstance().logPrint("key removed: " + key, SystemManager.LogLevel.VERBOSE);
+				SystemManager.getInstance().logPrint("cancelled " + delMsg, SystemManager.LogLevel.NORMAL);
+				return false;
+			}
+			
+			if(!confirmed) {
 
 				SystemManager.getInstance().logPrint("not all expected peers responsed to DELETE, storing missing confirmation for later", SystemManager.LogLevel.NORMAL);
 
 				// Add to database the Peers that haven't responded to this DELETE request
-				peersWithFile.removeAll(state.getRespondedID().get(0L));
+				HashSet<Integer> responded = state.getRespondedID().get(0L);
+				synchronized(responded) {
+					peersWithFile.removeAll(responded);
+				}
 				peer.getDatabase().addToDelete(peersWithFile, state.getHashHex());
 			} else {
 				if(this.pendingDelete) {
@@ -190,12 +281,14 @@ public class DeleteProtocol implements Runnable {
 		peer.getProtocols().remove(key);
 		SystemManager.getInstance().logPrint("key removed: " + key, SystemManager.LogLevel.VERBOSE);
 		SystemManager.getInstance().logPrint("finished " + delMsg, SystemManager.LogLevel.NORMAL);
+		
+		return confirmed;
 	}
 	
 	/**
-	 * Sends DELETE messages and waits for the expected Peers to confirm deletion.
-	 * Resends a set number of times and on time out adds the remaining Peers to
-	 * the database so they can be sent the DELETE message later.
+	 * Sends DELETE messages and waits for the expected Peers to confirm deletion, returning
+	 * as soon as the last confirmation arrives. Resends a set number of times and on time
+	 * out adds the remaining Peers to the database so they can be sent the DELETE message later.
 	 * 
 	 * @param peer the singleton Peer instance
 	 * @param state the Protocol State object relevant to this operation
@@ -204,27 +297,44 @@ public class DeleteProtocol implements Runnable {
 	 */
 	private boolean deleteLoop(Peer peer, ProtocolState state, HashSet<Integer> peersWithFile) throws IOException, InterruptedException {
 		
+		HashSet<Integer> responded = state.getRespondedID().get(0L);
+		
 		while(this.attempts < DeleteProtocol.maxAttempts) {
 
+			// Only first transmissions produce round trip time samples
+			if(this.attempts == 0) state.getSentTimes().put(0L, System.nanoTime());
+			else state.getSentTimes().remove(0L);
+			
 			// Prepare and send next DELETE message
 			byte[] msg = state.getParser().createDeleteMsg(peer.getPeerID(), state);
 			peer.getMcc().send(msg);
-			int timeoutMS = (int) (Peer.baseTimeoutMS * Math.pow(2, this.attempts));
-			Thread.sleep(timeoutMS);
+			// Timeout is doubled after each failed attempt by backing off the channel estimate
+			long timeoutMS = peer.getMcc().getRTT().getTimeoutMS();
+			long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMS);
+			
+			// Sleep until every expected Peer responded or the timeout, DELETED messages wake the wait
+			int responseCount;
+			boolean confirmed;
+			synchronized(responded) {
+				long remainingNS;
+				while(!responded.containsAll(peersWithFile) && (remainingNS = deadline - System.nanoTime()) > 0) {
+					TimeUnit.NANOSECONDS.timedWait(responded, remainingNS);
+				}
+				
+				responseCount = responded.size();
+				confirmed = responded.containsAll(peersWithFile);
+			}
 
 			this.attempts++;
 			
-			// Check current response status
-			int responseCount = state.getRespondedID().get(0L).size();
-			int desiredCount = peersWithFile.size();
-			
-			String respondedMsg = responseCount + " / " + desiredCount + " unique peers have confirmed deletion";
+			String respondedMsg = responseCount + " / " + peersWithFile.size() + " unique peers have confirmed deletion";
 			SystemManager.getInstance().logPrint(respondedMsg, SystemManager.LogLevel.DEBUG);
 			
 			// Finish if responded Peer IDs and expected Peer IDs match
-			if(state.getRespondedID().get(0L).containsAll(peersWithFile)) return true;
+			if(confirmed) return true;
 
 			SystemManager.getInstance().logPrint("not enough DELETED messages whithin " + timeoutMS + "ms", SystemManager.LogLevel.DEBUG);
+			peer.getMcc().getRTT().backoff(timeoutMS);
 		}
 		
 		return false;
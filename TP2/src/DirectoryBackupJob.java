@@ -0,0 +1,202 @@
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class DirectoryBackupJob implements Runnable {
+
+	public static final int maxPendingFiles = 16;
+
+	private String dirpath;
+	private int repDeg;
+	private String jobMsg;
+	private Job job;
+	private Thread walker = null;
+	private volatile boolean walkFinished = false;
+	private volatile boolean cancelled = false;
+
+	// Files started but not finished, bounds how far the walk gets ahead of the backups
+	private Semaphore pending = new Semaphore(maxPendingFiles);
+
+	// Backups of the files in progress, cancelled along with the job
+	private ConcurrentHashMap<BackupProtocol, Boolean> backups = new ConcurrentHashMap<BackupProtocol, Boolean>(8, 0.9f, 1);
+
+	// Aggregate progress, chunks are counted by the job
+	private AtomicLong filesFound = new AtomicLong(0);
+	private AtomicLong filesFinished = new AtomicLong(0);
+	private AtomicLong filesFailed = new AtomicLong(0);
+
+	/**
+	 * Backs up every file under a directory tree with the specified replication degree. The tree is walked
+	 * on a thread of its own and each file found becomes a BACKUP protocol on the Peer's executor, which hashes
+	 * and chunks it in parallel with the others and feeds the Peer's {@link BackupScheduler}. At most
+	 * {@value #maxPendingFiles} files are in progress at once so the walk can't get ahead of the backups.
+	 *
+	 * @param dirpath the directory to backup
+	 * @param repDeg desired replication degree
+	 * @param job the job to report progress to
+	 */
+	public DirectoryBackupJob(String dirpath, int repDeg, Job job) {
+		this.dirpath = dirpath;
+		this.repDeg = repDeg;
+		this.job = job;
+	}
+
+	@Override
+	public void run() {
+
+		this.jobMsg = "directory backup: " + this.dirpath + " - " + this.repDeg;
+		Peer peer = Peer.getInstance();
+
+		// Job may have been cancelled before the walk started
+		synchronized(this) {
+			if(!this.job.start(() -> this.cancel())) {
+				peer.getDirectoryJobs().remove(this.dirpath, this);
+				return;
+			}
+
+			this.walker = Thread.currentThread();
+		}
+
+		SystemManager.getInstance().logPrint("started " + this.jobMsg, SystemManager.LogLevel.NORMAL);
+
+		try {
+			Files.walkFileTree(Paths.get(this.dirpath), new SimpleFileVisitor<Path>() {
+
+				@Override
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+
+					if(!attrs.isRegularFile()) return FileVisitResult.CONTINUE;
+
+					try {
+						pending.acquire();
+					} catch(InterruptedException e) {
+						return FileVisitResult.TERMINATE;
+					}
+
+					if(cancelled) return FileVisitResult.TERMINATE;
+
+					BackupProtocol backup = new BackupProtocol(file.toString(), repDeg, DirectoryBackupJob.this);
+					backups.put(backup, true);
+					filesFound.incrementAndGet();
+					peer.getExecutor().execute(backup);
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFileFailed(Path file, IOException e) {
+
+					SystemManager.getInstance().logPrint("can't read \"" + file + "\", skipping", SystemManager.LogLevel.NORMAL);
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		} catch(IOException e) {
+			SystemManager.getInstance().logPrint("I/O Exception walking directory on " + this.jobMsg, SystemManager.LogLevel.NORMAL);
+			e.printStackTrace();
+		}
+
+		synchronized(this) {
+			this.walker = null;
+		}
+
+		this.walkFinished = true;
+		SystemManager.getInstance().logPrint("found " + this.filesFound.get() + " files on " + this.jobMsg, SystemManager.LogLevel.DEBUG);
+
+		// Every file may have finished before the walk did
+		if(this.filesFinished.get() == this.filesFound.get()) this.finish(peer);
+	}
+
+	/**
+	 * Records the number of chunks of a file once its BACKUP protocol is initialised.
+	 *
+	 * @param chunkTotal the total number of chunks of the file
+	 */
+	public void fileStarted(long chunkTotal) {
+		this.job.addChunks(chunkTotal);
+	}
+
+	/**
+	 * Records that a chunk of a file reached the desired replication degree or was given up on.
+	 *
+	 * @param bytes the size of the chunk
+	 * @param replicated whether the chunk reached the desired replication degree
+	 */
+	public void chunkDone(long bytes, boolean replicated) {
+		this.job.chunkDone(bytes, replicated);
+	}
+
+	/**
+	 * Records that a chunk of a file was already replicated and skipped without being sent.
+	 */
+	public void chunkSkipped() {
+		this.job.chunkSkipped();
+	}
+
+	/**
+	 * Records that the BACKUP protocol of a file finished and lets the walk start another file.
+	 *
+	 * @param backup the BACKUP protocol of the file
+	 * @param success whether the file reached the desired replication degree
+	 */
+	public void fileFinished(BackupProtocol backup, boolean success) {
+
+		this.backups.remove(backup);
+		if(!success) this.filesFailed.incrementAndGet();
+		long finished = this.filesFinished.incrementAndGet();
+		this.pending.release();
+
+		SystemManager.getInstance().logPrint(this.getProgress(), SystemManager.LogLevel.DEBUG);
+
+		if(this.walkFinished && finished == this.filesFound.get()) this.finish(Peer.getInstance());
+	}
+
+	/**
+	 * Logs the result of the directory backup and removes it from the Peer.
+	 *
+	 * @param peer the singleton Peer instance
+	 */
+	private synchronized void finish(Peer peer) {
+
+		if(peer.getDirectoryJobs().remove(this.dirpath, this) && !this.cancelled) {
+			if(this.filesFailed.get() == 0) SystemManager.getInstance().logPrint("finished " + this.jobMsg, SystemManager.LogLevel.NORMAL);
+			else SystemManager.getInstance().logPrint("failed " + this.jobMsg + ", " + this.filesFailed.get() + " files failed", SystemManager.LogLevel.NORMAL);
+
+			this.job.finish(this.filesFailed.get() == 0);
+		}
+	}
+
+	/**
+	 * Cancels the directory backup, stopping the walk and cancelling the backups of the files in progress.
+	 */
+	public void cancel() {
+
+		synchronized(this) {
+			this.cancelled = true;
+			if(this.walker != null) this.walker.interrupt();
+		}
+
+		for(BackupProtocol backup : this.backups.keySet()) {
+			backup.cancel();
+		}
+
+		Peer.getInstance().getDirectoryJobs().remove(this.dirpath, this);
+		SystemManager.getInstance().logPrint("cancelled " + this.jobMsg + ", " + this.getProgress(), SystemManager.LogLevel.NORMAL);
+	}
+
+	/**
+	 * @return a textual description of the aggregate progress of this job
+	 */
+	public String getProgress() {
+
+		String found = this.filesFound.get() + (this.walkFinished ? "" : "+");
+		JobStatus status = this.job.getStatus();
+		return this.dirpath + ": " + this.filesFinished.get() + " / " + found + " files (" + this.filesFailed.get() + " failed), "
+				+ status.getChunksDone() + " / " + status.getChunksTotal() + " chunks";
+	}
+}
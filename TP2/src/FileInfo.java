@@ -10,6 +10,7 @@ public class FileInfo implements Serializable {
 	private String fileID;
 	private long totalChunks;
 	private int desiredRepDeg;
+	private Long fileSize;
 	
 	/**
 	 * Creates file info using specified parameters.
@@ -108,4 +109,18 @@ public class FileInfo implements Serializable {
 	public void setTotalChunks(long totalChunks) {
 		this.totalChunks = totalChunks;
 	}
+
+	/**
+	 * @return the size of the file in bytes, null if unknown
+	 */
+	public Long getFileSize() {
+		return fileSize;
+	}
+
+	/**
+	 * @param fileSize the size of the file in bytes to set
+	 */
+	public void setFileSize(Long fileSize) {
+		this.fileSize = fileSize;
+	}
 }
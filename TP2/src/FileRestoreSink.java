@@ -0,0 +1,113 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+public class FileRestoreSink implements RestoreSink {
+
+	private String restoredFilepath;
+	private FileChannel channel = null;
+	private long restoredSize = 0;
+
+	/**
+	 * Writes the chunks of a restore at their position in a timestamped file under the restored
+	 * files folder, so chunks are never held in memory.
+	 */
+	public FileRestoreSink() {}
+
+	@Override
+	public synchronized void open(FileInfo fileInfo, long chunkCount, Runnable drained) throws IOException {
+
+		this.createRestoredPath(Peer.getInstance(), fileInfo);
+
+		// Preallocate the space of every chunk, so chunks can be written at their position in any order
+		RandomAccessFile file = new RandomAccessFile(this.restoredFilepath, "rw");
+		file.setLength(chunkCount * ProtocolState.getChunksize());
+		this.channel = file.getChannel();
+	}
+
+	@Override
+	public void write(long index, long position, byte[] data) throws IOException {
+
+		ByteBuffer buffer = ByteBuffer.wrap(data);
+
+		while(buffer.hasRemaining()) {
+			this.channel.write(buffer, position + buffer.position());
+		}
+
+		synchronized(this) {
+			this.restoredSize = Math.max(this.restoredSize, position + data.length);
+		}
+	}
+
+	@Override
+	public int getBufferedChunks() {
+		return 0;
+	}
+
+	@Override
+	public synchronized boolean close(boolean restored) {
+
+		if(this.channel == null) return false;
+
+		// Truncate the file to the size of the restored data
+		try {
+			if(restored) this.channel.truncate(this.restoredSize);
+			this.channel.close();
+		} catch(IOException e) {
+			SystemManager.getInstance().logPrint("I/O Exception closing restored file!", SystemManager.LogLevel.NORMAL);
+			e.printStackTrace();
+			restored = false;
+		}
+
+		// Delete partial file
+		if(!restored) {
+			File file = new File(this.restoredFilepath);
+			if(file.exists()) file.delete();
+		}
+
+		return restored;
+	}
+
+	/**
+	 * Creates the file path for restoring a file.
+	 *
+	 * @param peer the singleton Peer instance
+	 * @param fileInfo the object containing info about the file
+	 */
+	private void createRestoredPath(Peer peer, FileInfo fileInfo) throws IOException {
+
+		// Create filepaths for restored file
+		String folderPath = "../" + Peer.restoredFolderName;
+		String[] split = fileInfo.getFilename().split("[.]");
+
+		// Get current date/time
+		DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH-mm-ss");
+		Date date = new Date();
+		String dateString = dateFormat.format(date);
+
+		String restoredFilename;
+		if(split.length <= 1) {
+			restoredFilename = fileInfo.getFilename() + Peer.restoredSuffix + "_" + peer.getPeerID();
+		} else {
+			split[split.length - 2] = split[split.length - 2] + Peer.restoredSuffix + "_" + peer.getPeerID();
+			restoredFilename = String.join(".", split);
+		}
+
+		peer.createDirIfNotExists(folderPath);
+
+		// Restores of the same file started within the same second are numbered when their file is created
+		String restoredFilepath = folderPath + "/" + dateString + " - " + restoredFilename;
+		for(int copy = 2; !new File(restoredFilepath).createNewFile(); copy++) {
+			restoredFilepath = folderPath + "/" + dateString + " (" + copy + ") - " + restoredFilename;
+		}
+
+		this.restoredFilepath = restoredFilepath;
+
+		SystemManager.getInstance().logPrint("restoring file in \"" + restoredFilepath + "\"", SystemManager.LogLevel.DEBUG);
+	}
+}
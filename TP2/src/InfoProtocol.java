@@ -19,6 +19,10 @@ public class InfoProtocol implements Runnable {
 		this.printSystemChunks(chunks);
 		this.printDiskUsage();
 		this.printDeletionList(toDelete);
+		this.printRTTEstimates(peer);
+		this.printBackupScheduling(peer);
+		this.printRateLimits(peer);
+		this.printChunkCache(peer);
 	}
 	
 	/**
@@ -123,6 +127,87 @@ public class InfoProtocol implements Runnable {
 		}
 	}
 	
+	/**
+	 * Prints the round trip time estimates for each channel and each responding Peer.
+	 * 
+	 * @param peer the singleton Peer instance
+	 */
+	private void printRTTEstimates(Peer peer) {
+		
+		SystemManager.getInstance().simpleLog("RTT ESTIMATES", SystemManager.LogLevel.NORMAL);
+		this.printRTTEstimate("mcc", peer.getMcc().getRTT());
+		this.printRTTEstimate("mdb", peer.getMdb().getRTT());
+		this.printRTTEstimate("mdr", peer.getMdr().getRTT());
+		
+		for(Map.Entry<Integer, RTTEstimator> entry : peer.getPeerRTTs().entrySet()) {
+			this.printRTTEstimate("Peer " + entry.getKey(), entry.getValue());
+		}
+	}
+	
+	/**
+	 * Prints the state of the backup channel's congestion window, the backup scheduler and the running directory backups.
+	 * 
+	 * @param peer the singleton Peer instance
+	 */
+	private void printBackupScheduling(Peer peer) {
+		
+		SystemManager.getInstance().simpleLog("BACKUP SCHEDULING", SystemManager.LogLevel.NORMAL);
+		
+		CongestionController congestion = peer.getMdb().getCongestion();
+		String window = String.format("\tmdb congestion window: %.1f, %d in flight", congestion.getWindow(), congestion.getInFlight());
+		SystemManager.getInstance().simpleLog(window, SystemManager.LogLevel.NORMAL);
+		
+		BackupScheduler scheduler = peer.getBackupScheduler();
+		String backups = "\tbackup scheduler: " + scheduler.getActiveCount() + " files, " + scheduler.getInFlight() + " / " + scheduler.getMaxInFlight() + " chunks in flight";
+		SystemManager.getInstance().simpleLog(backups, SystemManager.LogLevel.NORMAL);
+		
+		for(DirectoryBackupJob job : peer.getDirectoryJobs().values()) {
+			SystemManager.getInstance().simpleLog("\tdirectory backup " + job.getProgress(), SystemManager.LogLevel.NORMAL);
+		}
+	}
+	
+	/**
+	 * Prints the rate limit of each traffic class.
+	 * 
+	 * @param peer the singleton Peer instance
+	 */
+	private void printRateLimits(Peer peer) {
+		
+		SystemManager.getInstance().simpleLog("RATE LIMITS", SystemManager.LogLevel.NORMAL);
+		
+		for(TrafficShaper.TrafficClass trafficClass : TrafficShaper.TrafficClass.values()) {
+			long rate = peer.getShaper().getRate(trafficClass);
+			String limit = "\t" + trafficClass.name() + ": " + ((rate > 0) ? rate + " B/s" : "no limit");
+			SystemManager.getInstance().simpleLog(limit, SystemManager.LogLevel.NORMAL);
+		}
+	}
+	
+	/**
+	 * Prints the occupancy and hit rate of the cache of chunks served to restoring Peers.
+	 * 
+	 * @param peer the singleton Peer instance
+	 */
+	private void printChunkCache(Peer peer) {
+		
+		SystemManager.getInstance().simpleLog("CHUNK CACHE", SystemManager.LogLevel.NORMAL);
+		
+		ChunkCache cache = peer.getChunkCache();
+		String usage = String.format("\t%d / %d chunks cached, %d hits, %d misses, hit rate %.1f%%, %d prefetched", cache.getCachedChunks(), cache.getSlots(), cache.getHits(), cache.getMisses(), cache.getHitRate() * 100, cache.getPrefetched());
+		SystemManager.getInstance().simpleLog(usage, SystemManager.LogLevel.NORMAL);
+	}
+	
+	/**
+	 * Prints a single round trip time estimate.
+	 * 
+	 * @param name the channel or Peer the estimate refers to
+	 * @param rtt the round trip time estimator
+	 */
+	private void printRTTEstimate(String name, RTTEstimator rtt) {
+		
+		String estimate = String.format("\t%s: srtt %.1fms, rttvar %.1fms, timeout %dms, %d samples", name, rtt.getSrttMS(), rtt.getRttvarMS(), rtt.getTimeoutMS(), rtt.getSampleCount());
+		SystemManager.getInstance().simpleLog(estimate, SystemManager.LogLevel.NORMAL);
+	}
+	
 	/**
 	 * Prints the used disk space compared to the maximum disk space usage allowed.
 	 */
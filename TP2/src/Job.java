@@ -0,0 +1,160 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class Job {
+
+	public static enum JobType {
+		BACKUP, BACKUPDIR, RESTORE, DELETE, RECLAIM
+	}
+
+	private long jobID;
+	private JobType type;
+	private String target;
+	private long startTime = System.nanoTime();
+	private long endTime = 0;
+	private JobStatus.State state = JobStatus.State.RUNNING;
+
+	// Releases the protocol's resources when the job is cancelled, null if it can't be cancelled once started
+	private Runnable canceller = null;
+	private boolean started = false;
+
+	private AtomicLong chunksTotal = new AtomicLong(0);
+	private AtomicLong chunksDone = new AtomicLong(0);
+	private AtomicLong chunksReplicated = new AtomicLong(0);
+	private AtomicLong chunksSkipped = new AtomicLong(0);
+	private AtomicLong bytesDone = new AtomicLong(0);
+	private AtomicLong bytesLocal = new AtomicLong(0);
+
+	/**
+	 * Handle of an operation requested through RMI, the protocols running it report their progress
+	 * here so the client can query it and cancel the operation while it runs.
+	 *
+	 * @param jobID the numeric identifier of the job on its Peer
+	 * @param type the operation the job runs
+	 * @param target the file path, directory or disk space the job runs on
+	 */
+	public Job(long jobID, JobType type, String target) {
+		this.jobID = jobID;
+		this.type = type;
+		this.target = target;
+	}
+
+	/**
+	 * @param chunks the number of chunks to add to the total of this job
+	 */
+	public void addChunks(long chunks) {
+		this.chunksTotal.addAndGet(chunks);
+	}
+
+	/**
+	 * Records that a chunk was stored, given up on or restored.
+	 *
+	 * @param bytes the size of the chunk
+	 * @param replicated whether the chunk reached the desired replication degree
+	 */
+	public void chunkDone(long bytes, boolean replicated) {
+
+		this.chunksDone.incrementAndGet();
+		this.bytesDone.addAndGet(bytes);
+		if(replicated) this.chunksReplicated.incrementAndGet();
+	}
+
+	/**
+	 * Records that a chunk was already replicated and skipped without being sent, it counts
+	 * toward completion but not toward the transfer rate or the time per chunk.
+	 */
+	public void chunkSkipped() {
+
+		this.chunksDone.incrementAndGet();
+		this.chunksReplicated.incrementAndGet();
+		this.chunksSkipped.incrementAndGet();
+	}
+
+	/**
+	 * Records that a chunk was restored from this Peer's own storage instead of the network.
+	 *
+	 * @param bytes the size of the chunk
+	 */
+	public void localChunkDone(long bytes) {
+
+		this.chunkDone(bytes, false);
+		this.bytesLocal.addAndGet(bytes);
+	}
+
+	/**
+	 * Marks the job as started by its protocol and sets the way the protocol releases its resources
+	 * when cancelled. A job cancelled before starting never runs.
+	 *
+	 * @param canceller the cancel handler, null if the protocol can't be cancelled
+	 * @return whether the protocol should run, false if the job was cancelled meanwhile
+	 */
+	public synchronized boolean start(Runnable canceller) {
+
+		if(this.state == JobStatus.State.CANCELLED) return false;
+
+		this.canceller = canceller;
+		this.started = true;
+		return true;
+	}
+
+	/**
+	 * Records the end of the job, ignored if it was cancelled or already over.
+	 *
+	 * @param success whether the operation succeeded
+	 */
+	public synchronized void finish(boolean success) {
+
+		if(this.state != JobStatus.State.RUNNING) return;
+
+		this.state = success ? JobStatus.State.FINISHED : JobStatus.State.FAILED;
+		this.endTime = System.nanoTime();
+	}
+
+	/**
+	 * Cancels the job, the cancel handler runs on the calling thread.
+	 *
+	 * @return whether the job was running and can be cancelled
+	 */
+	public boolean cancel() {
+
+		Runnable canceller;
+		synchronized(this) {
+			if(this.state != JobStatus.State.RUNNING || (this.started && this.canceller == null)) return false;
+
+			this.state = JobStatus.State.CANCELLED;
+			this.endTime = System.nanoTime();
+			canceller = this.canceller;
+		}
+
+		// Protocols that haven't started yet see the cancellation when they do
+		if(canceller != null) canceller.run();
+		return true;
+	}
+
+	/**
+	 * @return the time in milliseconds since the job ended, 0 if still running
+	 */
+	public synchronized long getOverMS() {
+
+		if(this.state == JobStatus.State.RUNNING) return 0;
+		return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - this.endTime);
+	}
+
+	/**
+	 * @return a snapshot of the progress of this job
+	 */
+	public synchronized JobStatus getStatus() {
+
+		long end = (this.state == JobStatus.State.RUNNING) ? System.nanoTime() : this.endTime;
+		long elapsedMS = TimeUnit.NANOSECONDS.toMillis(end - this.startTime);
+
+		return new JobStatus(this.jobID, this.type, this.target, this.state, this.chunksTotal.get(), this.chunksDone.get(), this.chunksReplicated.get(), this.chunksSkipped.get(), this.bytesDone.get(), this.bytesLocal.get(), elapsedMS);
+	}
+
+	/**
+	 * @return the numeric identifier of the job on its Peer
+	 */
+	public long getJobID() {
+		return jobID;
+	}
+}
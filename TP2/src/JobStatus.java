@@ -0,0 +1,180 @@
+import java.io.Serializable;
+
+public class JobStatus implements Serializable {
+
+	private static final long serialVersionUID = 4385326019264310571L;
+
+	public static enum State {
+		RUNNING, FINISHED, FAILED, CANCELLED
+	}
+
+	private long jobID;
+	private Job.JobType type;
+	private String target;
+	private State state;
+	private long chunksTotal;
+	private long chunksDone;
+	private long chunksReplicated;
+	private long chunksSkipped;
+	private long bytesDone;
+	private long bytesLocal;
+	private long elapsedMS;
+
+	/**
+	 * Snapshot of the progress of a job, sent to the client through RMI.
+	 *
+	 * @param jobID the numeric identifier of the job on its Peer
+	 * @param type the operation the job runs
+	 * @param target the file path, directory or disk space the job runs on
+	 * @param state the state of the job
+	 * @param chunksTotal the total number of chunks, 0 if unknown or not applicable
+	 * @param chunksDone the number of chunks stored, given up on or restored
+	 * @param chunksReplicated the number of chunks that reached the desired replication degree
+	 * @param chunksSkipped the number of chunks done without being sent, already replicated before the job
+	 * @param bytesDone the number of bytes of the chunks done
+	 * @param bytesLocal the number of bytes of the chunks restored from the Peer's own storage
+	 * @param elapsedMS the time the job has been running, or ran for if it's over
+	 */
+	public JobStatus(long jobID, Job.JobType type, String target, State state, long chunksTotal, long chunksDone, long chunksReplicated, long chunksSkipped, long bytesDone, long bytesLocal, long elapsedMS) {
+
+		this.jobID = jobID;
+		this.type = type;
+		this.target = target;
+		this.state = state;
+		this.chunksTotal = chunksTotal;
+		this.chunksDone = chunksDone;
+		this.chunksReplicated = chunksReplicated;
+		this.chunksSkipped = chunksSkipped;
+		this.bytesDone = bytesDone;
+		this.bytesLocal = bytesLocal;
+		this.elapsedMS = elapsedMS;
+	}
+
+	/**
+	 * @return the average throughput of the job in bytes per second
+	 */
+	public long getBytesPerSec() {
+
+		if(this.elapsedMS <= 0) return 0;
+		return this.bytesDone * 1000 / this.elapsedMS;
+	}
+
+	/**
+	 * Estimates the time left from the average time taken by the chunks done so far, skipped chunks
+	 * took no time and are left out of the average.
+	 *
+	 * @return the estimated time left in milliseconds, -1 if unknown
+	 */
+	public long getEtaMS() {
+
+		long chunksSent = this.chunksDone - this.chunksSkipped;
+		if(this.state != State.RUNNING || chunksSent <= 0 || this.chunksTotal < this.chunksDone) return -1;
+		return this.elapsedMS * (this.chunksTotal - this.chunksDone) / chunksSent;
+	}
+
+	@Override
+	public String toString() {
+
+		String status = "job " + this.jobID + " " + this.type.name() + " " + this.target + ": " + this.state.name();
+
+		if(this.chunksTotal > 0) {
+			status += ", " + this.chunksDone + " / " + this.chunksTotal + " chunks";
+			if(this.type == Job.JobType.BACKUP || this.type == Job.JobType.BACKUPDIR) {
+				status += ", " + this.chunksReplicated + " replicated";
+				if(this.chunksSkipped > 0) status += " (" + this.chunksSkipped + " skipped)";
+			}
+			if(this.type == Job.JobType.RESTORE) status += ", " + this.bytesLocal + " B local / " + (this.bytesDone - this.bytesLocal) + " B remote";
+			status += ", " + this.getBytesPerSec() + " B/s";
+		}
+
+		long etaMS = this.getEtaMS();
+		if(etaMS >= 0) status += ", ETA " + (etaMS + 999) / 1000 + "s";
+		else status += ", " + this.elapsedMS + "ms elapsed";
+
+		return status;
+	}
+
+	/**
+	 * @return the numeric identifier of the job on its Peer
+	 */
+	public long getJobID() {
+		return jobID;
+	}
+
+	/**
+	 * @return the operation the job runs
+	 */
+	public Job.JobType getType() {
+		return type;
+	}
+
+	/**
+	 * @return the file path, directory or disk space the job runs on
+	 */
+	public String getTarget() {
+		return target;
+	}
+
+	/**
+	 * @return the state of the job
+	 */
+	public State getState() {
+		return state;
+	}
+
+	/**
+	 * @return the total number of chunks, 0 if unknown or not applicable
+	 */
+	public long getChunksTotal() {
+		return chunksTotal;
+	}
+
+	/**
+	 * @return the number of chunks stored, given up on or restored
+	 */
+	public long getChunksDone() {
+		return chunksDone;
+	}
+
+	/**
+	 * @return the number of chunks that reached the desired replication degree
+	 */
+	public long getChunksReplicated() {
+		return chunksReplicated;
+	}
+
+	/**
+	 * @return the number of chunks done without being sent, already replicated before the job
+	 */
+	public long getChunksSkipped() {
+		return chunksSkipped;
+	}
+
+	/**
+	 * @return the number of bytes of the chunks done
+	 */
+	public long getBytesDone() {
+		return bytesDone;
+	}
+
+	/**
+	 * @return the number of bytes of the chunks restored from the Peer's own storage
+	 */
+	public long getBytesLocal() {
+		return bytesLocal;
+	}
+
+	/**
+	 * @return the number of bytes of the chunks restored from other Peers
+	 */
+	public long getBytesRemote() {
+		return bytesDone - bytesLocal;
+	}
+
+	/**
+	 * @return the time the job has been running, or ran for if it's over
+	 */
+	public long getElapsedMS() {
+		return elapsedMS;
+	}
+}
@@ -7,6 +7,7 @@ import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.UnrecoverableEntryException;
 import java.security.cert.CertificateException;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.crypto.KeyGenerator;
 import javax.crypto.SecretKey;
@@ -15,6 +16,9 @@ public class KeystoreManager {
 
 	private char[] pw;
 	
+	// Secret keys already loaded from the keystore, by alias
+	private ConcurrentHashMap<String, SecretKey> keys = new ConcurrentHashMap<String, SecretKey>(8, 0.9f, 1);
+	
 	/**
 	 * Constructs a KeystoreManager responsible for managing the
 	 * secret keys needed for MAC and encryption of service messages.
@@ -41,13 +45,30 @@ public class KeystoreManager {
 	}
 	
 	/**
-	 * Uses the specified alias to retrieve a secret key from the keystore.
+	 * Uses the specified alias to retrieve a secret key from the keystore. The keystore is
+	 * only loaded the first time each key is retrieved.
 	 * 
 	 * @param alias the secret key alias
 	 * @return the secret key
 	 */
 	public SecretKey getKey(String alias) throws IOException, NoSuchAlgorithmException, UnrecoverableEntryException, KeyStoreException, CertificateException {
 		
+		SecretKey key = this.keys.get(alias);
+		if(key != null) return key;
+		
+		key = this.loadKey(alias);
+		this.keys.put(alias, key);
+		return key;
+	}
+	
+	/**
+	 * Loads a secret key from the keystore.
+	 * 
+	 * @param alias the secret key alias
+	 * @return the secret key
+	 */
+	private SecretKey loadKey(String alias) throws IOException, NoSuchAlgorithmException, UnrecoverableEntryException, KeyStoreException, CertificateException {
+		
 		KeyStore ks = KeyStore.getInstance("PKCS12");
 		this.loadKeystore(ks);
 		
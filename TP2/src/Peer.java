@@ -7,28 +7,38 @@ import java.nio.file.Paths;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
+import java.rmi.server.RemoteServer;
+import java.rmi.server.ServerNotActiveException;
 import java.rmi.server.UnicastRemoteObject;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.UnrecoverableEntryException;
 import java.security.cert.CertificateException;
-import java.util.Map;
+import java.util.ArrayList;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
 
 public class Peer implements RMITesting {
 
 	// Public general constants
 	public static final int baseTimeoutMS = 1000;
 	public static final int maxAttempts = 5;
+	public static final int maxRetrieveAttempts = 3;
 	public static final int minResponseWaitMS = 0;
 	public static final int maxResponseWaitMS = 400;
 	public static final int consecutiveMsgWaitMS = 100;
-	public static final int restoreBasePort = 1026;
-	public static final int restoreCountLimit = 10;
+	public static final int restoreServerPort = 0;
+	public static final int summaryDelayMS = 10000;
+	public static final int summaryExpiryMS = 3 * summaryDelayMS;
+	public static final long jobRetentionMS = 600000;
+	public static final int defaultRestoreWindow = 32;
+	public static final int maxRestoreWindow = 1024;
+	public static final int chunkCacheSlots = 64;
 	
 	public static final String storageFolderName = "Storage";
 	public static final String peerFolderPrefix = "Peer_";
@@ -57,9 +67,16 @@ public class Peer implements RMITesting {
 	public static final int nameI = 5;
 	public static final int chunkTotalI = 6;
 	
+	// Summary header indices
+	public static final int summaryPortI = 3;
+	
+	// Range GETCHUNK header indices
+	public static final int lastChunkNoI = 5;
+	public static final int rangeAddressI = 6;
+	public static final int rangeDirectedI = 7;
+	
 	// Private constants
 	private static final int executorThreadsMax = 15;
-	public static final int baseRestoreTimeoutMS = 800;
 	
 	// Peer info
 	private String protocolVersion;
@@ -73,9 +90,49 @@ public class Peer implements RMITesting {
 	private ServiceChannel mdb;
 	private ServiceChannel mdr;
 	
+	// Socket for unicast control messages sent directly to this Peer
+	private ServiceChannel ucc;
+	
+	// Summaries of stored file IDs for routing GETCHUNK messages
+	private volatile BloomFilter localFilter = new BloomFilter();
+	private Object localFilterLock = new Object();
+	private ConcurrentHashMap<Integer, SummaryInfo> summaries = new ConcurrentHashMap<Integer, SummaryInfo>(8, 0.9f, 1);
+	
+	// Round trip time estimators for responses from each Peer
+	private ConcurrentHashMap<Integer, RTTEstimator> peerRTT = new ConcurrentHashMap<Integer, RTTEstimator>(8, 0.9f, 1);
+	
 	private SystemDatabase database;
 	private ConcurrentHashMap<String, ProtocolState> protocols = new ConcurrentHashMap<String, ProtocolState>(8, 0.9f, 1);
 	private ScheduledExecutorService executor = Executors.newScheduledThreadPool(executorThreadsMax);
+	
+	// Encrypts and MACs the chunks of every running backup in parallel across cores
+	private ForkJoinPool cryptoPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+	
+	// Pacing of outgoing traffic per traffic class
+	private TrafficShaper shaper = new TrafficShaper();
+	
+	// Chunks of every running backup
+	private BackupScheduler backupScheduler = new BackupScheduler();
+	
+	// Directory backups in progress, by directory path
+	private ConcurrentHashMap<String, DirectoryBackupJob> directoryJobs = new ConcurrentHashMap<String, DirectoryBackupJob>(8, 0.9f, 1);
+	
+	// Server receiving the CHUNK messages of every enhanced restore, null if not enhanced
+	private RestoreAcceptor restoreAcceptor = null;
+	
+	// Persistent connections to the restore servers of other Peers
+	private RestoreConnectionPool restoreConnections = new RestoreConnectionPool();
+	
+	// Stored chunks recently served to restoring Peers, kept off the heap
+	private ChunkCache chunkCache = new ChunkCache(chunkCacheSlots);
+	private ReadAhead readAhead = new ReadAhead();
+	
+	// Max GETCHUNK messages waiting for CHUNK messages on each restore
+	private volatile int restoreWindow = defaultRestoreWindow;
+	
+	// Operations requested through RMI, kept for a while after they end so their status can be queried
+	private AtomicLong nextJobID = new AtomicLong(1);
+	private ConcurrentHashMap<Long, Job> jobs = new ConcurrentHashMap<Long, Job>(8, 0.9f, 1);
 
 	private static Peer singleton = new Peer();
 	
@@ -145,17 +202,60 @@ public class Peer implements RMITesting {
 		this.mcc = new ServiceChannel(mccAddr, mccPort, "mcc");
 		this.mdb = new ServiceChannel(mdbAddr, mdbPort, "mdb");
 		this.mdr = new ServiceChannel(mdrAddr, mdrPort, "mdr");
+		this.ucc = new ServiceChannel("ucc");
+		
+		// Enhanced restores receive CHUNK messages through TCP, on an ephemeral port unless configured
+		if(!this.protocolVersion.equals("1.0")) {
+			try {
+				this.restoreAcceptor = new RestoreAcceptor(Peer.restoreServerPort);
+			} catch(IOException e) {
+				SystemManager.getInstance().logPrint("failed to open restore server on port " + Peer.restoreServerPort, SystemManager.LogLevel.NORMAL);
+				e.printStackTrace();
+				System.exit(-1);
+			}
+			
+			SystemManager.getInstance().logPrint("restore server listening on port " + this.restoreAcceptor.getPort(), SystemManager.LogLevel.DEBUG);
+		}
 		
 		// Run channels and database backup service
 		new Thread(null, this.database, "database backup").start();
 		new Thread(null, this.mcc, "control channel").start();
 		new Thread(null, this.mdb, "backup channel").start();
 		new Thread(null, this.mdr, "recovery channel").start();
+		new Thread(null, this.ucc, "unicast channel").start();
+		if(this.restoreAcceptor != null) new Thread(null, this.restoreAcceptor, "restore server").start();
 		
 		this.initRMI();
 		
 		byte[] msg = new ServiceMessage().createStartedMsg(this.peerID, this.protocolVersion);
 		this.mcc.send(msg);
+		
+		// Periodically rebuild and publish the summary of stored files
+		this.executor.scheduleAtFixedRate(new SummaryProtocol(), 0, Peer.summaryDelayMS, TimeUnit.MILLISECONDS);
+		
+		this.resumeBackups();
+	}
+	
+	/**
+	 * Restarts the backups that were running when the Peer last stopped. Chunks already replicated
+	 * are skipped by the BACKUP protocol so only the missing ones are sent.
+	 */
+	private void resumeBackups() {
+		
+		for(FileInfo fileInfo : this.database.getPendingBackups().values()) {
+			
+			// The BACKUP protocol records the file again under its current SHA256
+			this.database.getPendingBackups().remove(fileInfo.getFileID());
+			
+			if(!new File(fileInfo.getFilepath()).isFile()) {
+				SystemManager.getInstance().logPrint("can't resume backup: " + fileInfo.getFilepath() + ", file no longer exists", SystemManager.LogLevel.NORMAL);
+				continue;
+			}
+			
+			Job job = this.createJob(Job.JobType.BACKUP, fileInfo.getFilepath());
+			SystemManager.getInstance().logPrint("resuming backup: " + fileInfo.getFilepath() + " - " + fileInfo.getDesiredRepDeg() + " as job " + job.getJobID(), SystemManager.LogLevel.NORMAL);
+			this.executor.execute(new BackupProtocol(fileInfo.getFilepath(), fileInfo.getDesiredRepDeg(), job));
+		}
 	}
 	
 	/**
@@ -194,36 +294,72 @@ public class Peer implements RMITesting {
 	}
 
 	/**
-	 * Calculates the next available port for this Peer, each Peer can use a reserved range of ports
-	 * and calculates the next one by seeing how many RESTORE protocols are currently running.
+	 * Finds the Peers whose last summary indicates that they might store chunks of the given file.
 	 * 
-	 * @return the port to use, -1 if no available port
+	 * @param hash textual representation of the hexadecimal values of a SHA256
+	 * @return the summaries of the candidate holders
 	 */
-	public int findNextPortAllowed() {
+	public ArrayList<SummaryInfo> findCandidateHolders(String hash) {
 		
-		int restoreCount = this.countRestoreProtocols();
-		if(restoreCount >= Peer.restoreCountLimit) {
-			SystemManager.getInstance().logPrint("can't run more than " + Peer.restoreCountLimit + " restores at the same time on the same Peer, aborting...", SystemManager.LogLevel.NORMAL);
-			return -1;
+		ArrayList<SummaryInfo> candidates = new ArrayList<SummaryInfo>();
+		for(SummaryInfo summary : this.summaries.values()) {
+			if(!summary.isExpired() && summary.getFilter().mightContain(hash)) candidates.add(summary);
 		}
 		
-		SystemManager.getInstance().logPrint("Found " + restoreCount + " restores running", SystemManager.LogLevel.VERBOSE);
-		return (Peer.restoreBasePort + (this.peerID - 1) * 10) + restoreCount + 1;
+		return candidates;
 	}
 	
 	/**
-	 * Counts the currently running RESTORE protocols and returns it.
+	 * Returns the last summary received from a Peer, unless it's too old to be trusted.
 	 * 
-	 * @return the number of currently running RESTORE protocols
+	 * @param peerID the numeric identifier of the Peer
+	 * @return the summary of the Peer, null if there is none or it expired
 	 */
-	private int countRestoreProtocols() {
+	public SummaryInfo getSummary(int peerID) {
 		
-		int count = 0;
-		for(Map.Entry<String, ProtocolState> entry : this.protocols.entrySet()) {
-			if(entry.getKey().contains(ProtocolState.ProtocolType.RESTORE.name())) count++;
-		}
+		SummaryInfo summary = this.summaries.get(peerID);
+		return (summary == null || summary.isExpired()) ? null : summary;
+	}
+	
+	/**
+	 * Forgets the summaries of Peers that stopped sending them, as they may have left the network.
+	 */
+	public void removeExpiredSummaries() {
+		this.summaries.values().removeIf(summary -> summary.isExpired());
+	}
+	
+	/**
+	 * Feeds the round trip time estimators with the time elapsed since a request was sent.
+	 * 
+	 * @param channel the channel whose estimator should be fed, null to only feed the Peer estimator
+	 * @param senderID the numeric identifier of the responding Peer
+	 * @param sentTime the {@link System#nanoTime()} when the request was sent, null if it was retransmitted
+	 */
+	public void sampleRTT(ServiceChannel channel, int senderID, Long sentTime) {
+		
+		if(sentTime == null) return;
+		
+		double rttMS = (System.nanoTime() - sentTime) / 1000000.0;
+		if(channel != null) channel.getRTT().addSample(rttMS);
+		this.getPeerRTT(senderID).addSample(rttMS);
+	}
+	
+	/**
+	 * Creates and registers the job of an operation, forgetting the jobs that ended more than
+	 * {@value #jobRetentionMS}ms ago.
+	 * 
+	 * @param type the operation the job runs
+	 * @param target the file path, directory or disk space the job runs on
+	 * @return the job
+	 */
+	public Job createJob(Job.JobType type, String target) {
+		
+		this.jobs.values().removeIf(job -> job.getOverMS() > Peer.jobRetentionMS);
+		
+		Job job = new Job(this.nextJobID.getAndIncrement(), type, target);
+		this.jobs.put(job.getJobID(), job);
 		
-		return count;
+		return job;
 	}
 	
 	/**
@@ -252,45 +388,136 @@ public class Peer implements RMITesting {
 	}
 
 	@Override
-	public void remoteBackup(String filepath, int repDeg) throws IOException, NoSuchAlgorithmException, InterruptedException {
+	public long remoteBackup(String filepath, int repDeg) throws IOException, NoSuchAlgorithmException, InterruptedException {
 		
-		executor.execute(new BackupProtocol(filepath, repDeg));
+		Job job = this.createJob(Job.JobType.BACKUP, filepath);
+		executor.execute(new BackupProtocol(filepath, repDeg, job));
+		
+		return job.getJobID();
+	}
+
+	@Override
+	public long remoteBackupDirectory(String dirpath, int repDeg) throws RemoteException {
+		
+		Job job = this.createJob(Job.JobType.BACKUPDIR, dirpath);
+		DirectoryBackupJob dirJob = new DirectoryBackupJob(dirpath, repDeg, job);
+		if(this.directoryJobs.putIfAbsent(dirpath, dirJob) != null) {
+			SystemManager.getInstance().logPrint("ignoring directory backup: " + dirpath + ", directory is already being backed up", SystemManager.LogLevel.NORMAL);
+			this.jobs.remove(job.getJobID());
+			return -1;
+		}
+		
+		// The walk waits for files in progress, so it gets a thread of its own instead of an executor thread
+		new Thread(null, dirJob, "directory backup " + dirpath).start();
+		return job.getJobID();
 	}
 
 	@Override
-	public void remoteRestore(String filepath) throws IOException, NoSuchAlgorithmException, InterruptedException {
+	public long remoteRestore(String filepath) throws IOException, NoSuchAlgorithmException, InterruptedException {
+		return this.startRestore(filepath, 0, -1, new FileRestoreSink());
+	}
+	
+	@Override
+	public long remoteRestore(String filepath, long offset, long length) throws IOException, NoSuchAlgorithmException, InterruptedException {
 		
-		Thread.currentThread().setName("Restore " + Thread.currentThread().getId());
+		if(offset < 0 || length <= 0) return -1;
+		if(RestoreRequest.startsPastEnd(this.database.retrieveFileInfo(filepath), offset)) return -1;
+		return this.startRestore(filepath, offset, length, new FileRestoreSink());
+	}
+
+	@Override
+	public long remoteRestoreStream(String filepath, int port) throws IOException, NoSuchAlgorithmException, InterruptedException {
+		
+		// Connect back to the client that invoked the method
+		InetAddress clientAddr;
+		try {
+			clientAddr = InetAddress.getByName(RemoteServer.getClientHost());
+		} catch(ServerNotActiveException e) {
+			clientAddr = InetAddress.getLoopbackAddress();
+		}
+		
+		return this.startRestore(filepath, 0, -1, new StreamRestoreSink(clientAddr, port));
+	}
+	
+	/**
+	 * Starts the restore of a range of bytes of a file as a job.
+	 * 
+	 * @param filepath path to file to restore
+	 * @param offset the position of the first byte to restore
+	 * @param length the number of bytes to restore, negative for up to the end of the file
+	 * @param sink where the restored chunks are written
+	 * @return the job ID
+	 */
+	private long startRestore(String filepath, long offset, long length, RestoreSink sink) {
 		
 		// Search database for filepath/filename
 		FileInfo fileInfo = this.database.retrieveFileInfo(filepath);
 		boolean found = (fileInfo != null) ? true : false;
-
-		long timeoutMS = baseTimeoutMS;
-		if(found) {
-			timeoutMS = fileInfo.getTotalChunks() * baseRestoreTimeoutMS;
-		}
 		
-		SystemManager.getInstance().logPrint("restore timeout: " + timeoutMS + "ms", SystemManager.LogLevel.VERBOSE);
+		Job job = this.createJob(Job.JobType.RESTORE, filepath);
+		executor.execute(new RestoreProtocol(filepath, fileInfo, found, offset, length, sink, job));
 		
-		Future<?> handler = executor.submit(new RestoreProtocol(filepath, fileInfo, found));
-
-		executor.schedule(() -> {
-			handler.cancel(true);
-		}, timeoutMS, TimeUnit.MILLISECONDS);
+		return job.getJobID();
 	}
 
 	@Override
-	public void remoteDelete(String filepath) throws IOException, NoSuchAlgorithmException, InterruptedException {
+	public long remoteDelete(String filepath) throws IOException, NoSuchAlgorithmException, InterruptedException {
 
-		executor.execute(new DeleteProtocol(filepath));
+		Job job = this.createJob(Job.JobType.DELETE, filepath);
+		executor.execute(new DeleteProtocol(filepath, job));
+		
+		return job.getJobID();
 	}
 
 	@Override
-	public void remoteReclaim(long maxKB) throws RemoteException {
+	public long remoteReclaim(long maxKB) throws RemoteException {
 		
 		this.maxDiskSpace = maxKB;
-		executor.execute(new ReclaimProtocol());
+		
+		Job job = this.createJob(Job.JobType.RECLAIM, maxKB + "KB");
+		executor.execute(new ReclaimProtocol(job));
+		
+		return job.getJobID();
+	}
+	
+	@Override
+	public JobStatus remoteGetJobStatus(long jobID) throws RemoteException {
+		
+		Job job = this.jobs.get(jobID);
+		return (job != null) ? job.getStatus() : null;
+	}
+	
+	@Override
+	public ArrayList<JobStatus> remoteGetJobStatuses(long[] jobIDs) throws RemoteException {
+		
+		ArrayList<JobStatus> statuses = new ArrayList<JobStatus>();
+		
+		// No IDs queries every job still known
+		if(jobIDs == null || jobIDs.length == 0) {
+			for(Job job : this.jobs.values()) {
+				statuses.add(job.getStatus());
+			}
+			
+			statuses.sort((a, b) -> Long.compare(a.getJobID(), b.getJobID()));
+			return statuses;
+		}
+		
+		for(long jobID : jobIDs) {
+			Job job = this.jobs.get(jobID);
+			if(job != null) statuses.add(job.getStatus());
+		}
+		
+		return statuses;
+	}
+	
+	@Override
+	public boolean remoteCancelJob(long jobID) throws RemoteException {
+		
+		Job job = this.jobs.get(jobID);
+		if(job == null || !job.cancel()) return false;
+		
+		SystemManager.getInstance().logPrint("cancelled job " + jobID, SystemManager.LogLevel.NORMAL);
+		return true;
 	}
 
 	@Override
@@ -299,6 +526,30 @@ public class Peer implements RMITesting {
 		executor.execute(new InfoProtocol());
 	}
 
+	@Override
+	public void remoteSetRate(String trafficClass, long bytesPerSec) throws RemoteException {
+		
+		try {
+			this.shaper.setRate(TrafficShaper.TrafficClass.valueOf(trafficClass.toUpperCase()), bytesPerSec);
+		} catch(IllegalArgumentException e) {
+			SystemManager.getInstance().logPrint("unknown traffic class \"" + trafficClass + "\"", SystemManager.LogLevel.NORMAL);
+		}
+	}
+
+	@Override
+	public boolean remoteSetRestoreWindow(int window) throws RemoteException {
+		
+		// Restores with an empty window would never request a chunk
+		if(window < 1 || window > maxRestoreWindow) {
+			SystemManager.getInstance().logPrint("ignoring restore window of " + window + " chunks, must be between 1 and " + maxRestoreWindow, SystemManager.LogLevel.NORMAL);
+			return false;
+		}
+		
+		this.restoreWindow = window;
+		SystemManager.getInstance().logPrint("restore window set to " + window + " chunks", SystemManager.LogLevel.NORMAL);
+		return true;
+	}
+
 	/**
 	 * @return the backup system version
 	 */
@@ -341,6 +592,76 @@ public class Peer implements RMITesting {
 		return mdr;
 	}
 
+	/**
+	 * @return the unicast control channel
+	 */
+	public ServiceChannel getUcc() {
+		return ucc;
+	}
+
+	/**
+	 * @return the Bloom filter of file IDs stored by this Peer
+	 */
+	public BloomFilter getLocalFilter() {
+		return localFilter;
+	}
+
+	/**
+	 * Replaces the Bloom filter of file IDs stored by this Peer with one rebuilt from storage. File IDs
+	 * added while it's rebuilt wait for it, so they're added to the new filter instead of being lost
+	 * with the old one.
+	 * 
+	 * @param builder builds the filter from the files in storage
+	 * @return the new Bloom filter
+	 */
+	public BloomFilter rebuildLocalFilter(Supplier<BloomFilter> builder) {
+		
+		synchronized(this.localFilterLock) {
+			this.localFilter = builder.get();
+			return this.localFilter;
+		}
+	}
+
+	/**
+	 * Adds a file ID to the Bloom filter of file IDs stored by this Peer.
+	 * 
+	 * @param hash textual representation of the hexadecimal values of a SHA256
+	 * @return whether the file ID was added, false if the filter might already contain it
+	 */
+	public boolean addToLocalFilter(String hash) {
+		
+		synchronized(this.localFilterLock) {
+			if(this.localFilter.mightContain(hash)) return false;
+			
+			this.localFilter.add(hash);
+			return true;
+		}
+	}
+
+	/**
+	 * @return the last summary received from each Peer
+	 */
+	public ConcurrentHashMap<Integer, SummaryInfo> getSummaries() {
+		return summaries;
+	}
+
+	/**
+	 * Returns the round trip time estimator for responses from the given Peer, creating it if needed.
+	 * 
+	 * @param peerID the numeric identifier of the responding Peer
+	 * @return the round trip time estimator
+	 */
+	public RTTEstimator getPeerRTT(int peerID) {
+		return this.peerRTT.computeIfAbsent(peerID, id -> new RTTEstimator());
+	}
+
+	/**
+	 * @return the round trip time estimators for responses from each Peer
+	 */
+	public ConcurrentHashMap<Integer, RTTEstimator> getPeerRTTs() {
+		return peerRTT;
+	}
+
 	/**
 	 * @return the system database for this Peer
 	 */
@@ -362,6 +683,76 @@ public class Peer implements RMITesting {
 		return executor;
 	}
 	
+	/**
+	 * @return the pool encrypting and MACing the chunks of every running backup
+	 */
+	public ForkJoinPool getCryptoPool() {
+		return cryptoPool;
+	}
+
+	/**
+	 * @return the scheduler of the chunks of every running backup
+	 */
+	public BackupScheduler getBackupScheduler() {
+		return backupScheduler;
+	}
+
+	/**
+	 * @return the max GETCHUNK messages waiting for CHUNK messages on each restore
+	 */
+	public int getRestoreWindow() {
+		return restoreWindow;
+	}
+
+	/**
+	 * @param restoreWindow the max GETCHUNK messages waiting for CHUNK messages on each restore
+	 */
+	public void setRestoreWindow(int restoreWindow) {
+		this.restoreWindow = restoreWindow;
+	}
+
+	/**
+	 * @return the running directory backups by directory path
+	 */
+	public ConcurrentHashMap<String, DirectoryBackupJob> getDirectoryJobs() {
+		return directoryJobs;
+	}
+
+	/**
+	 * @return the traffic shaper pacing this Peer's outgoing traffic
+	 */
+	public TrafficShaper getShaper() {
+		return shaper;
+	}
+	
+	/**
+	 * @return the server receiving the CHUNK messages of enhanced restores, null if not enhanced
+	 */
+	public RestoreAcceptor getRestoreAcceptor() {
+		return restoreAcceptor;
+	}
+	
+	/**
+	 * @return the pool of connections to the restore servers of other Peers
+	 */
+	public RestoreConnectionPool getRestoreConnections() {
+		return restoreConnections;
+	}
+	
+	/**
+	 * @return the cache of stored chunks served to restoring Peers
+	 */
+	public ChunkCache getChunkCache() {
+		return chunkCache;
+	}
+	
+	/**
+	 * @return the detector of sequential restores prefetching stored chunks into the chunk cache
+	 */
+	public ReadAhead getReadAhead() {
+		return readAhead;
+	}
+	
 	/**
 	 * @return the keystore manager of the Peer
 	 */
@@ -8,6 +8,7 @@ import java.nio.file.Paths;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.HashSet;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 
 import javax.xml.bind.DatatypeConverter;
@@ -38,10 +39,12 @@ public class ProtocolState {
 	// Fields used for protocol logic
 	private boolean isChunkMsgAlreadySent = false;
 	private boolean isPutchunkMsgAlreadySent = false;
-	private boolean isRetrieveMsgResponded = false;
-	private FileInfo fileInfo;
+	private CompletableFuture<FileInfo> retrievedInfo = new CompletableFuture<FileInfo>();
+	private BackupProtocol backupProtocol;
+	private RestoreProtocol restoreProtocol;
+	private ChunkResponse chunkResponse;
 	private ConcurrentHashMap<Long, HashSet<Integer>> respondedID = new ConcurrentHashMap<Long, HashSet<Integer>>(8, 0.9f, 1);
-	private ConcurrentHashMap<Long, byte[]> restoredChunks = new ConcurrentHashMap<Long, byte[]>(8, 0.9f, 1);
+	private ConcurrentHashMap<Long, Long> sentTimes = new ConcurrentHashMap<Long, Long>(8, 0.9f, 1);
 	
 	private boolean isFinished;
 
@@ -166,17 +169,20 @@ public class ProtocolState {
 	
 	/**
 	 * Initialises the protocol state object for a restore procedure, calculates the total number of chunks of the file and the SHA256 hash
-	 * of the filename and metadata. Returns whether initialisation was successful.
+	 * of the filename and metadata. Returns whether initialisation was successful. Restores of a range of the file start at its first
+	 * chunk and finish after its last chunk.
 	 * 
 	 * @param protocolVersion the backup system version
 	 * @param fileInfo the database object containing file info
+	 * @param firstChunkNo the first chunk number to restore
+	 * @param lastChunkNo the last chunk number to restore, inclusive
 	 */
-	public void initRestoreState(String protocolVersion, FileInfo fileInfo) throws NoSuchAlgorithmException, IOException {
+	public void initRestoreState(String protocolVersion, FileInfo fileInfo, long firstChunkNo, long lastChunkNo) throws NoSuchAlgorithmException, IOException {
 		
 		this.protocolVersion = protocolVersion;
 		this.filepath = fileInfo.getFilepath();
-		this.chunkTotal = fileInfo.getTotalChunks();
-		this.currentChunkNo = 0;
+		this.chunkTotal = lastChunkNo + 1;
+		this.currentChunkNo = firstChunkNo;
 		this.filename = fileInfo.getFilename();
 		this.hashHex = fileInfo.getFileID();
 	}
@@ -384,6 +390,13 @@ public class ProtocolState {
 		return respondedID;
 	}
 
+	/**
+	 * @return the {@link System#nanoTime()} each chunkNo request was first sent, entries are removed on retransmission
+	 */
+	public ConcurrentHashMap<Long, Long> getSentTimes() {
+		return sentTimes;
+	}
+
 	/**
 	 * @param fields the service message header fields to set
 	 */
@@ -412,13 +425,6 @@ public class ProtocolState {
 		return isPutchunkMsgAlreadySent;
 	}
 
-	/**
-	 * @return the hash map of currently stored chunks
-	 */
-	public ConcurrentHashMap<Long, byte[]> getRestoredChunks() {
-		return restoredChunks;
-	}
-
 	/**
 	 * @return whether the protocol instance has terminated
 	 */
@@ -440,13 +446,6 @@ public class ProtocolState {
 		this.isPutchunkMsgAlreadySent = isPutchunkMsgAlreadySent;
 	}
 	
-	/**
-	 * @param restoredChunks the hash map of currently stored chunks
-	 */
-	public void setRestoredChunks(ConcurrentHashMap<Long, byte[]> restoredChunks) {
-		this.restoredChunks = restoredChunks;
-	}
-	
 	/**
 	 * @param isFinished whether the protocol instance has terminated
 	 */
@@ -455,30 +454,51 @@ public class ProtocolState {
 	}
 
 	/**
-	 * @return whether the response to a RETRIEVE message has been recorded
+	 * @return the file info received in response to a RETRIEVE message, completed when the INFO message arrives
+	 */
+	public CompletableFuture<FileInfo> getRetrievedInfo() {
+		return retrievedInfo;
+	}
+
+	/**
+	 * @return the BACKUP protocol driving this protocol state
+	 */
+	public BackupProtocol getBackupProtocol() {
+		return backupProtocol;
+	}
+
+	/**
+	 * @param backupProtocol the BACKUP protocol driving this protocol state to set
+	 */
+	public void setBackupProtocol(BackupProtocol backupProtocol) {
+		this.backupProtocol = backupProtocol;
+	}
+
+	/**
+	 * @return the RESTORE protocol receiving the chunks of this protocol state
 	 */
-	public boolean isRetrieveMsgResponded() {
-		return isRetrieveMsgResponded;
+	public RestoreProtocol getRestoreProtocol() {
+		return restoreProtocol;
 	}
 
 	/**
-	 * @param isRetrieveMsgResponded whether the response to a RETRIEVE message has been recorded
+	 * @param restoreProtocol the RESTORE protocol receiving the chunks of this protocol state to set
 	 */
-	public void setRetrieveMsgResponded(boolean isRetrieveMsgResponded) {
-		this.isRetrieveMsgResponded = isRetrieveMsgResponded;
+	public void setRestoreProtocol(RestoreProtocol restoreProtocol) {
+		this.restoreProtocol = restoreProtocol;
 	}
 
 	/**
-	 * @return the file info object containing info about a backed up file
+	 * @return the requesters waiting for the CHUNK message scheduled by this protocol state
 	 */
-	public FileInfo getFileInfo() {
-		return fileInfo;
+	public ChunkResponse getChunkResponse() {
+		return chunkResponse;
 	}
 
 	/**
-	 * @param fileInfo the file info object containing info about a backed up file to set
+	 * @param chunkResponse the requesters waiting for the CHUNK message scheduled by this protocol state to set
 	 */
-	public void setFileInfo(FileInfo fileInfo) {
-		this.fileInfo = fileInfo;
+	public void setChunkResponse(ChunkResponse chunkResponse) {
+		this.chunkResponse = chunkResponse;
 	}
 }
@@ -2,12 +2,17 @@ import java.io.IOException;
 import java.rmi.Remote;
 import java.rmi.RemoteException;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 
 /**
  * Interface used for RMI of backup service methods.
  * <br><br>
  * Allows usage of backup, restore, delete and reclaim protocol, as well as
- * getting general info about a Peer and setting max disk usage of a Peer.
+ * getting general info about a Peer, setting max disk usage of a Peer,
+ * limiting the rate of a Peer's outgoing traffic and sizing its restore window.
+ * <br><br>
+ * Protocols run asynchronously on the Peer and return a job ID, which can be
+ * used to query the progress of the protocol or cancel it.
  */
 public interface RMITesting extends Remote {
 	
@@ -16,32 +21,108 @@ public interface RMITesting extends Remote {
 	 * 
 	 * @param filepath path to file to backup
 	 * @param repDeg desired number of copies of the file in the system
+	 * @return the job ID
+	 */
+	long remoteBackup(String filepath, int repDeg) throws IOException, NoSuchAlgorithmException, InterruptedException;
+	
+	/**
+	 * Backs up every file under a directory tree with the invoking Peer as Initiator Peer.
+	 * 
+	 * @param dirpath path to directory to backup
+	 * @param repDeg desired number of copies of each file in the system
+	 * @return the job ID, -1 if the directory is already being backed up
 	 */
-	void remoteBackup(String filepath, int repDeg) throws IOException, NoSuchAlgorithmException, InterruptedException;
+	long remoteBackupDirectory(String dirpath, int repDeg) throws RemoteException;
 	
 	/**
 	 * Triggers the restore protocol with the invoking Peer as Initiator Peer.
 	 * 
 	 * @param filepath path to file to backup
+	 * @return the job ID
+	 */
+	long remoteRestore(String filepath) throws IOException, NoSuchAlgorithmException, InterruptedException;
+	
+	/**
+	 * Triggers the restore protocol for a range of bytes of a file with the invoking Peer as Initiator Peer,
+	 * fetching only the chunks covering the range. The range is cut short if it goes past the end of the file.
+	 * 
+	 * @param filepath path to file to restore
+	 * @param offset the position of the first byte to restore
+	 * @param length the number of bytes to restore
+	 * @return the job ID, -1 if the offset is negative or the length isn't positive
 	 */
-	void remoteRestore(String filepath) throws IOException, NoSuchAlgorithmException, InterruptedException;
+	long remoteRestore(String filepath, long offset, long length) throws IOException, NoSuchAlgorithmException, InterruptedException;
+	
+	/**
+	 * Triggers the restore protocol with the invoking Peer as Initiator Peer, streaming the restored
+	 * contents in order to a TCP port of the client instead of writing them to a file. The stream
+	 * ends when the restore does, the job tells whether it was complete.
+	 * 
+	 * @param filepath path to file to restore
+	 * @param port the port the client listens on for the restored contents
+	 * @return the job ID
+	 */
+	long remoteRestoreStream(String filepath, int port) throws IOException, NoSuchAlgorithmException, InterruptedException;
 	
 	/**
 	 * Triggers the delete protocol with the invoking Peer as Initiator Peer.
 	 * 
 	 * @param filepath path to file to backup
+	 * @return the job ID
 	 */
-	void remoteDelete(String filepath) throws IOException, NoSuchAlgorithmException, InterruptedException;
+	long remoteDelete(String filepath) throws IOException, NoSuchAlgorithmException, InterruptedException;
 	
 	/**
 	 * Sets max disk space the Peer is allowed to use.
 	 * 
 	 * @param maxKB max kilobytes (K = 1000) the Peer can use
+	 * @return the job ID
 	 */
-	void remoteReclaim(long maxKB) throws RemoteException;
+	long remoteReclaim(long maxKB) throws RemoteException;
 	
 	/**
 	 * Peer sends all the state info to the Client.
 	 */
 	void remoteGetInfo() throws RemoteException;
+	
+	/**
+	 * Sets the rate limit of a class of the Peer's outgoing traffic.
+	 * 
+	 * @param trafficClass USER_BACKUP, USER_RESTORE, REPAIR or CONTROL
+	 * @param bytesPerSec rate in bytes per second, 0 for no limit
+	 */
+	void remoteSetRate(String trafficClass, long bytesPerSec) throws RemoteException;
+	
+	/**
+	 * Sets the max number of GETCHUNK messages each restore keeps waiting for CHUNK messages.
+	 * Applies to restores started afterwards.
+	 * 
+	 * @param window the restore window in chunks, between 1 and 1024
+	 * @return whether the window was valid and set
+	 */
+	boolean remoteSetRestoreWindow(int window) throws RemoteException;
+	
+	/**
+	 * Gets the progress of a job. Jobs are kept for 10 minutes after they end.
+	 * 
+	 * @param jobID the job ID
+	 * @return the status of the job, null if unknown
+	 */
+	JobStatus remoteGetJobStatus(long jobID) throws RemoteException;
+	
+	/**
+	 * Gets the progress of several jobs with a single call.
+	 * 
+	 * @param jobIDs the job IDs, null or empty for every job known by the Peer
+	 * @return the status of each known job
+	 */
+	ArrayList<JobStatus> remoteGetJobStatuses(long[] jobIDs) throws RemoteException;
+	
+	/**
+	 * Cancels a running job, releasing the resources of its protocol.
+	 * 
+	 * @param jobID the job ID
+	 * @return whether the job was running and could be cancelled
+	 */
+	boolean remoteCancelJob(long jobID) throws RemoteException;
 }
\ No newline at end of file
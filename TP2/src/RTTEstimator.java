@@ -0,0 +1,83 @@
+public class RTTEstimator {
+
+	private static final double alpha = 0.125;
+	private static final double beta = 0.25;
+	private static final int varianceFactor = 4;
+	private static final long minTimeoutMS = 100;
+	private static final long maxTimeoutMS = 60000;
+
+	private double srttMS;
+	private double rttvarMS;
+	private long sampleCount = 0;
+	private long backoffMS = 0;
+
+	/**
+	 * Estimates the round trip time of request/response pairs using the smoothed RTT and RTT variation
+	 * of RFC 6298 and derives a retransmission timeout from it. Until the first sample arrives the
+	 * timeout is {@value Peer#baseTimeoutMS}ms.
+	 */
+	public RTTEstimator() {}
+
+	/**
+	 * Updates the estimate with a new round trip time sample. Samples must only come from requests
+	 * that were not retransmitted, as the response can't be matched to a specific transmission.
+	 *
+	 * @param rttMS the measured round trip time in milliseconds
+	 */
+	public synchronized void addSample(double rttMS) {
+
+		if(this.sampleCount == 0) {
+			this.srttMS = rttMS;
+			this.rttvarMS = rttMS / 2;
+		} else {
+			this.rttvarMS = (1 - beta) * this.rttvarMS + beta * Math.abs(this.srttMS - rttMS);
+			this.srttMS = (1 - alpha) * this.srttMS + alpha * rttMS;
+		}
+
+		this.sampleCount++;
+		this.backoffMS = 0;
+	}
+
+	/**
+	 * Keeps the doubled timeout of an expired request until a new sample arrives. Retransmitted requests
+	 * produce no samples, so without this the timeout could stay too low and every request would time out.
+	 *
+	 * @param expiredTimeoutMS the timeout that expired
+	 */
+	public synchronized void backoff(long expiredTimeoutMS) {
+		this.backoffMS = Math.min(maxTimeoutMS, Math.max(this.backoffMS, 2 * expiredTimeoutMS));
+	}
+
+	/**
+	 * @return the retransmission timeout in milliseconds
+	 */
+	public synchronized long getTimeoutMS() {
+
+		long timeoutMS = Peer.baseTimeoutMS;
+		if(this.sampleCount > 0) timeoutMS = (long) Math.ceil(this.srttMS + varianceFactor * this.rttvarMS);
+
+		timeoutMS = Math.max(this.backoffMS, timeoutMS);
+		return Math.max(minTimeoutMS, Math.min(maxTimeoutMS, timeoutMS));
+	}
+
+	/**
+	 * @return the smoothed round trip time in milliseconds
+	 */
+	public synchronized double getSrttMS() {
+		return srttMS;
+	}
+
+	/**
+	 * @return the round trip time variation in milliseconds
+	 */
+	public synchronized double getRttvarMS() {
+		return rttvarMS;
+	}
+
+	/**
+	 * @return the number of samples received
+	 */
+	public synchronized long getSampleCount() {
+		return sampleCount;
+	}
+}
@@ -0,0 +1,132 @@
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+public class ReadAhead {
+
+	private static final int readAheadChunks = 8;
+	private static final int sequentialChunks = 2;
+	private static final int maxStreams = 64;
+	private static final long idleTimeoutMS = 10000;
+
+	// Chunks requested by each restoring Peer for each file, by requester and file ID
+	private HashMap<String, Stream> streams = new HashMap<String, Stream>();
+
+	/**
+	 * Chunks requested by a restoring Peer for a file.
+	 */
+	private static class Stream {
+
+		// Chunk expected next if the restore is sequential, chunks requested in sequence so far and last chunk prefetched
+		private long nextChunkNo;
+		private long sequential = 0;
+		private long prefetchedChunkNo;
+		private long lastRequestTime;
+
+		private Stream(long chunkNo) {
+			this.nextChunkNo = chunkNo;
+			this.prefetchedChunkNo = chunkNo - 1;
+		}
+	}
+
+	/**
+	 * Detects restoring Peers requesting the chunks of a file in order and loads the next chunks
+	 * stored on this Peer into the chunk cache in the background, so they're served without
+	 * touching storage once requested.
+	 */
+	public ReadAhead() {}
+
+	/**
+	 * Records a request for a range of chunks, prefetching the chunks following it if the
+	 * requester has been asking for the file's chunks in order.
+	 *
+	 * @param requester the numeric identifier of the requesting Peer
+	 * @param hash textual representation of the hexadecimal values of a SHA256
+	 * @param first the first chunk number requested
+	 * @param last the last chunk number requested, inclusive
+	 */
+	public void requested(String requester, String hash, long first, long last) {
+
+		long from;
+		long to;
+		synchronized(this) {
+
+			long now = System.nanoTime();
+			if(this.streams.size() >= maxStreams) this.removeIdle(now);
+
+			String key = requester + "." + hash;
+			Stream stream = this.streams.get(key);
+
+			// Retransmitted requests for earlier chunks don't break the sequence
+			if(stream != null && first < stream.nextChunkNo) {
+				stream.lastRequestTime = now;
+				return;
+			}
+
+			// Requests skipping chunks start a new sequence, unless too many requesters are tracked
+			if(stream == null || first > stream.nextChunkNo) {
+				if(stream == null && this.streams.size() >= maxStreams) return;
+
+				stream = new Stream(first);
+				this.streams.put(key, stream);
+			}
+
+			stream.sequential += last - first + 1;
+			stream.nextChunkNo = last + 1;
+			stream.lastRequestTime = now;
+
+			if(stream.sequential < sequentialChunks) return;
+
+			from = Math.max(last + 1, stream.prefetchedChunkNo + 1);
+			to = last + readAheadChunks;
+			if(from > to) return;
+
+			stream.prefetchedChunkNo = to;
+		}
+
+		this.prefetch(hash, from, to);
+	}
+
+	/**
+	 * Loads the chunks of a range stored on this Peer into the chunk cache in the background.
+	 *
+	 * @param hash textual representation of the hexadecimal values of a SHA256
+	 * @param from the first chunk number to load
+	 * @param to the last chunk number to load, inclusive
+	 */
+	private void prefetch(String hash, long from, long to) {
+
+		Peer peer = Peer.getInstance();
+
+		for(long chunkNo = from; chunkNo <= to; chunkNo++) {
+
+			ChunkInfo chunk = peer.getDatabase().getChunkInfo(hash, chunkNo);
+			if(chunk == null || chunk.getSize() < 0) continue;
+
+			long prefetchNo = chunkNo;
+			String chunkPath = "../" + Peer.storageFolderName + "/" + Peer.peerFolderPrefix + peer.getPeerID() + "/" + hash + "/" + chunkNo;
+
+			peer.getExecutor().execute(() -> {
+				try {
+					if(peer.getChunkCache().prefetch(hash, prefetchNo, chunkPath)) SystemManager.getInstance().logPrint("prefetched " + hash + "." + prefetchNo, SystemManager.LogLevel.VERBOSE);
+				} catch(IOException e) {
+					SystemManager.getInstance().logPrint("couldn't prefetch " + hash + "." + prefetchNo + ", " + e.getMessage(), SystemManager.LogLevel.DEBUG);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Forgets the requesters that haven't requested chunks for a while.
+	 *
+	 * @param now the current time in nanoseconds
+	 */
+	private void removeIdle(long now) {
+
+		Iterator<Stream> it = this.streams.values().iterator();
+		while(it.hasNext()) {
+			if(TimeUnit.NANOSECONDS.toMillis(now - it.next().lastRequestTime) >= idleTimeoutMS) it.remove();
+		}
+	}
+}
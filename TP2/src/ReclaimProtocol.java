@@ -5,11 +5,30 @@ import java.util.concurrent.ConcurrentHashMap;
 
 public class ReclaimProtocol implements Runnable {
 
+	private Job job = null;
+	
+	/**
+	 * Runs a RECLAIM protocol procedure after the max disk space of the Peer changed or a chunk was stored.
+	 */
+	public ReclaimProtocol() {}
+	
+	/**
+	 * Runs a RECLAIM protocol procedure requested through RMI. The protocol can't be cancelled once started.
+	 * 
+	 * @param job the job to report progress to
+	 */
+	public ReclaimProtocol(Job job) {
+		this.job = job;
+	}
+	
 	@Override
 	public void run() {
 
 		Thread.currentThread().setName("Reclaim " + Thread.currentThread().getId());
 		
+		// Job may have been cancelled before reaching the executor
+		if(this.job != null && !this.job.start(null)) return;
+		
 		Peer peer = Peer.getInstance();
 		
 		long currDisk = peer.getUsedSpace();
@@ -18,6 +37,7 @@ public class ReclaimProtocol implements Runnable {
 		// Check if current disk usage is exceeding limit
 		SystemManager.getInstance().logPrint(currDisk + "KB used out of " + maxDisk + "KB", SystemManager.LogLevel.DEBUG);
 		if(maxDisk >= currDisk) {
+			if(this.job != null) this.job.finish(true);
 			return;
 		}
 		
@@ -29,10 +49,12 @@ public class ReclaimProtocol implements Runnable {
 		} catch (IOException | InterruptedException e) {
 			SystemManager.getInstance().logPrint("I/O Exception or thread interruption on restore protocol!", SystemManager.LogLevel.NORMAL);
 			e.printStackTrace();
+			if(this.job != null) this.job.finish(false);
 			return;
 		}
 		
 		SystemManager.getInstance().logPrint("finished " + reclMsg, SystemManager.LogLevel.NORMAL);
+		if(this.job != null) this.job.finish(true);
 	}
 	
 	/**
@@ -67,6 +89,7 @@ public class ReclaimProtocol implements Runnable {
 				    File file = new File(chunkPath);
 				    if(file.exists()) {
 				    	file.delete();
+				    	peer.getChunkCache().invalidate(hash, chunkEntry.getKey());
 				    	chunk.setSize(-1);
 				    	chunk.getPerceivedRepDeg().remove(peer.getPeerID());
 				    	SystemManager.getInstance().logPrint("updated chunk " + hash + "." + chunkEntry.getKey() + " with new perceived repDeg " + chunk.getPerceivedRepDeg().size(), SystemManager.LogLevel.DATABASE);
@@ -110,6 +133,7 @@ public class ReclaimProtocol implements Runnable {
 				File file = new File(chunkPath);
 				if(file.exists()) {
 					file.delete();
+					peer.getChunkCache().invalidate(hash, chunkEntry.getKey());
 					chunk.setSize(-1);
 					chunk.getPerceivedRepDeg().remove(peer.getPeerID());
 					SystemManager.getInstance().logPrint("updated chunk " + hash + "." + chunkEntry.getKey() + " with new perceived repDeg " + chunk.getPerceivedRepDeg().size(), SystemManager.LogLevel.DATABASE);
@@ -0,0 +1,185 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+
+public class RestoreAcceptor implements Runnable {
+
+	// Longer than the sending side's idle timeout so it closes the connection first
+	private static final long idleTimeoutMS = 60000;
+	private static final long idleCheckMS = 10000;
+	private static final int maxFramesInFlight = 8;
+
+	private Selector selector;
+	private ServerSocketChannel server;
+	private int port;
+
+	/**
+	 * Single TCP server receiving the CHUNK messages of every enhanced restore of this Peer. Connections
+	 * from holders are multiplexed on one thread with non-blocking I/O, and each CHUNK frame is handed
+	 * to the Peer's executor, which routes it to the restore of its file ID. A connection stops being
+	 * read while {@value #maxFramesInFlight} of its frames wait for the executor, so a fast holder
+	 * can't queue up an unbounded number of chunks in memory.
+	 *
+	 * @param port the port to listen on, 0 for an ephemeral port
+	 */
+	public RestoreAcceptor(int port) throws IOException {
+
+		this.selector = Selector.open();
+		this.server = ServerSocketChannel.open();
+		this.server.bind(new InetSocketAddress(port));
+		this.server.configureBlocking(false);
+		this.server.register(this.selector, SelectionKey.OP_ACCEPT);
+		this.port = this.server.socket().getLocalPort();
+	}
+
+	@Override
+	public void run() {
+
+		long lastIdleCheck = System.nanoTime();
+
+		while(true) {
+
+			try {
+				this.selector.select(idleCheckMS);
+			} catch(IOException e) {
+				SystemManager.getInstance().logPrint("I/O Exception on restore server!", SystemManager.LogLevel.NORMAL);
+				e.printStackTrace();
+				return;
+			}
+
+			Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+			while(keys.hasNext()) {
+
+				SelectionKey key = keys.next();
+				keys.remove();
+
+				if(!key.isValid()) continue;
+				if(key.isAcceptable()) this.accept();
+				else if(key.isReadable()) this.read(key);
+			}
+
+			if(System.nanoTime() - lastIdleCheck >= idleCheckMS * 1000000) {
+				this.closeIdle();
+				lastIdleCheck = System.nanoTime();
+			}
+		}
+	}
+
+	/**
+	 * Accepts a pending connection and registers it for reading.
+	 */
+	private void accept() {
+
+		try {
+			SocketChannel client = this.server.accept();
+			if(client == null) return;
+
+			client.configureBlocking(false);
+			client.register(this.selector, SelectionKey.OP_READ, new RestoreFrameReader());
+			SystemManager.getInstance().logPrint("client connected from " + client.getRemoteAddress(), SystemManager.LogLevel.VERBOSE);
+		} catch(IOException e) {
+			SystemManager.getInstance().logPrint("I/O Exception accepting restore connection!", SystemManager.LogLevel.NORMAL);
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Reads the data available on a connection and dispatches the CHUNK frames completed.
+	 *
+	 * @param key the selection key of the connection
+	 */
+	private void read(SelectionKey key) {
+
+		SocketChannel client = (SocketChannel) key.channel();
+		RestoreFrameReader reader = (RestoreFrameReader) key.attachment();
+
+		try {
+			for(byte[] frame : reader.read(client, maxFramesInFlight - reader.getFramesInFlight())) {
+				reader.frameDispatched();
+				Peer.getInstance().getExecutor().execute(new RestoreFrameHandler(frame, () -> this.frameHandled(key)));
+			}
+		} catch(IOException e) {
+			SystemManager.getInstance().logPrint("I/O Exception receiving from client: " + e.getMessage() + ", disconnecting", SystemManager.LogLevel.DEBUG);
+			this.close(key);
+			return;
+		}
+
+		// Stop reading until the executor catches up with the frames of this connection
+		synchronized(reader) {
+			if(reader.getFramesInFlight() >= maxFramesInFlight) key.interestOps(0);
+		}
+
+		if(reader.isClosed()) {
+			SystemManager.getInstance().logPrint("client disconnected", SystemManager.LogLevel.VERBOSE);
+			this.close(key);
+		}
+	}
+
+	/**
+	 * Resumes reading from a connection once the executor caught up with its frames.
+	 *
+	 * @param key the selection key of the connection
+	 */
+	private void frameHandled(SelectionKey key) {
+
+		RestoreFrameReader reader = (RestoreFrameReader) key.attachment();
+		synchronized(reader) {
+			if(reader.frameHandled() != maxFramesInFlight - 1) return;
+
+			// Connection may have been closed meanwhile
+			try {
+				key.interestOps(SelectionKey.OP_READ);
+			} catch(CancelledKeyException e) {
+				return;
+			}
+		}
+
+		this.selector.wakeup();
+	}
+
+	/**
+	 * Closes the connections that haven't sent data for a while.
+	 */
+	private void closeIdle() {
+
+		for(SelectionKey key : this.selector.keys()) {
+
+			if(!(key.attachment() instanceof RestoreFrameReader)) continue;
+
+			// Connections waiting for the executor aren't idle
+			RestoreFrameReader reader = (RestoreFrameReader) key.attachment();
+			if(reader.getFramesInFlight() == 0 && reader.getIdleMS() >= idleTimeoutMS) {
+				SystemManager.getInstance().logPrint("client idle for " + idleTimeoutMS + "ms, disconnecting", SystemManager.LogLevel.VERBOSE);
+				this.close(key);
+			}
+		}
+	}
+
+	/**
+	 * Cancels the registration of a connection and closes it.
+	 *
+	 * @param key the selection key of the connection
+	 */
+	private void close(SelectionKey key) {
+
+		key.cancel();
+
+		try {
+			key.channel().close();
+		} catch(IOException e) {
+			SystemManager.getInstance().logPrint("I/O Exception closing restore connection!", SystemManager.LogLevel.VERBOSE);
+		}
+	}
+
+	/**
+	 * @return the port the server listens on
+	 */
+	public int getPort() {
+		return port;
+	}
+}
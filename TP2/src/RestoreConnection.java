@@ -0,0 +1,120 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+public class RestoreConnection {
+
+	private static final int connectTimeoutMS = 5000;
+
+	private SocketChannel channel;
+	private long lastUsedTime = System.nanoTime();
+
+	/**
+	 * Persistent TCP connection to the restore server of another Peer, carrying CHUNK messages
+	 * of any number of restores as frames prefixed by their length.
+	 *
+	 * @param addr the address of the restoring Peer
+	 * @param port the port of the restoring Peer's server
+	 */
+	public RestoreConnection(InetAddress addr, int port) throws IOException {
+
+		this.channel = SocketChannel.open();
+		this.channel.socket().setTcpNoDelay(true);
+
+		try {
+			this.channel.socket().connect(new InetSocketAddress(addr, port), connectTimeoutMS);
+		} catch(IOException e) {
+			this.channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Writes a CHUNK message as a single frame, frames from concurrent senders are never interleaved.
+	 * The chunk data is transferred from its file to the socket by the kernel, without copying it
+	 * through the heap.
+	 *
+	 * @param header the header of the CHUNK message
+	 * @param body the stored chunk to send as the body
+	 * @param trailer the MAC trailer of the CHUNK message
+	 */
+	public synchronized void writeFrame(byte[] header, FileChannel body, byte[] trailer) throws IOException {
+
+		long bodySize = body.size();
+
+		ByteBuffer prefix = ByteBuffer.allocate(Integer.BYTES + header.length);
+		prefix.putInt((int) (header.length + bodySize + trailer.length));
+		prefix.put(header);
+		prefix.flip();
+		this.writeFully(prefix);
+
+		long position = 0;
+		while(position < bodySize) {
+
+			long nSent = body.transferTo(position, bodySize - position, this.channel);
+			if(nSent <= 0) throw new IOException("chunk file shrank while being sent");
+			position += nSent;
+		}
+
+		this.writeFully(ByteBuffer.wrap(trailer));
+		this.lastUsedTime = System.nanoTime();
+	}
+
+	/**
+	 * Writes a CHUNK message whose chunk data is already in memory as a single frame, with a
+	 * gathering write straight from the buffer holding it.
+	 *
+	 * @param header the header of the CHUNK message
+	 * @param body the stored chunk to send as the body, from its position to its limit
+	 * @param trailer the MAC trailer of the CHUNK message
+	 */
+	public synchronized void writeFrame(byte[] header, ByteBuffer body, byte[] trailer) throws IOException {
+
+		ByteBuffer prefix = ByteBuffer.allocate(Integer.BYTES + header.length);
+		prefix.putInt(header.length + body.remaining() + trailer.length);
+		prefix.put(header);
+		prefix.flip();
+
+		ByteBuffer[] frame = { prefix, body, ByteBuffer.wrap(trailer) };
+		while(frame[2].hasRemaining()) {
+			this.channel.write(frame);
+		}
+
+		this.lastUsedTime = System.nanoTime();
+	}
+
+	/**
+	 * Writes all the remaining bytes of a buffer to the connection.
+	 *
+	 * @param buffer the buffer to write
+	 */
+	private void writeFully(ByteBuffer buffer) throws IOException {
+
+		while(buffer.hasRemaining()) {
+			this.channel.write(buffer);
+		}
+	}
+
+	/**
+	 * @return the time in milliseconds since a frame was last written
+	 */
+	public synchronized long getIdleMS() {
+		return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - this.lastUsedTime);
+	}
+
+	/**
+	 * Closes the connection, ignoring errors since the other Peer may have closed it already.
+	 */
+	public void close() {
+
+		try {
+			this.channel.close();
+		} catch(IOException e) {
+			SystemManager.getInstance().logPrint("I/O Exception closing restore connection!", SystemManager.LogLevel.VERBOSE);
+		}
+	}
+}
@@ -0,0 +1,174 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+public class RestoreConnectionPool {
+
+	// Closed before the receiving side gives up on the connection
+	private static final long idleTimeoutMS = 30000;
+
+	private ConcurrentHashMap<String, RestoreConnection> connections = new ConcurrentHashMap<String, RestoreConnection>(8, 0.9f, 1);
+
+	// Connections being opened, so concurrent senders to a new server wait for the same one
+	private ConcurrentHashMap<String, CompletableFuture<RestoreConnection>> connecting = new ConcurrentHashMap<String, CompletableFuture<RestoreConnection>>(8, 0.9f, 1);
+
+	/**
+	 * Sends a CHUNK message to the restore server of another Peer through a pooled connection,
+	 * opening one if there is none. A pooled connection that fails is replaced once, since
+	 * the other Peer may have closed it while idle.
+	 *
+	 * @param addr the address of the restoring Peer
+	 * @param port the port of the restoring Peer's server
+	 * @param header the header of the CHUNK message
+	 * @param chunkPath the path of the stored chunk to send as the body
+	 * @param trailer the MAC trailer of the CHUNK message
+	 */
+	public void send(InetAddress addr, int port, byte[] header, String chunkPath, byte[] trailer) throws IOException {
+
+		String key = addr.getHostAddress() + ":" + port;
+		this.closeIdle();
+
+		try(FileChannel body = FileChannel.open(Paths.get(chunkPath), StandardOpenOption.READ)) {
+			this.send(key, addr, port, (connection) -> connection.writeFrame(header, body, trailer));
+		}
+	}
+
+	/**
+	 * Sends a CHUNK message whose chunk data is already in memory to the restore server of another
+	 * Peer through a pooled connection, opening one if there is none.
+	 *
+	 * @param addr the address of the restoring Peer
+	 * @param port the port of the restoring Peer's server
+	 * @param header the header of the CHUNK message
+	 * @param body the stored chunk to send as the body, from its position to its limit
+	 * @param trailer the MAC trailer of the CHUNK message
+	 */
+	public void send(InetAddress addr, int port, byte[] header, ByteBuffer body, byte[] trailer) throws IOException {
+
+		String key = addr.getHostAddress() + ":" + port;
+		this.closeIdle();
+
+		// A connection replaced after a failed write resends the whole body
+		this.send(key, addr, port, (connection) -> connection.writeFrame(header, body.duplicate(), trailer));
+	}
+
+	/**
+	 * Writes a frame to a pooled connection.
+	 */
+	private interface FrameWriter {
+		void write(RestoreConnection connection) throws IOException;
+	}
+
+	/**
+	 * Sends a CHUNK message through the pooled connection to a server, replacing it once if it fails.
+	 *
+	 * @param key the address and port of the server
+	 * @param addr the address of the restoring Peer
+	 * @param port the port of the restoring Peer's server
+	 * @param frame writes the CHUNK message to the connection
+	 */
+	private void send(String key, InetAddress addr, int port, FrameWriter frame) throws IOException {
+
+		RestoreConnection connection = this.connections.get(key);
+		if(connection != null) {
+			try {
+				frame.write(connection);
+				return;
+			} catch(IOException e) {
+				SystemManager.getInstance().logPrint("restore connection to " + key + " lost, reconnecting", SystemManager.LogLevel.DEBUG);
+				this.connections.remove(key, connection);
+				connection.close();
+			}
+		}
+
+		connection = this.connect(key, addr, port);
+
+		try {
+			frame.write(connection);
+		} catch(IOException e) {
+			this.connections.remove(key, connection);
+			connection.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Returns the pooled connection to a server, opening it if there is none. Concurrent senders
+	 * to a new server wait for a single connection, senders to other servers aren't held up by it.
+	 *
+	 * @param key the address and port of the server
+	 * @param addr the address of the restoring Peer
+	 * @param port the port of the restoring Peer's server
+	 * @return the connection to the server
+	 */
+	private RestoreConnection connect(String key, InetAddress addr, int port) throws IOException {
+
+		RestoreConnection connection = this.connections.get(key);
+		if(connection != null) return connection;
+
+		CompletableFuture<RestoreConnection> opened = new CompletableFuture<RestoreConnection>();
+		CompletableFuture<RestoreConnection> opening = this.connecting.putIfAbsent(key, opened);
+		if(opening != null) return this.await(key, opening);
+
+		try {
+			// Connection may have been pooled since it was looked up
+			connection = this.connections.get(key);
+			if(connection == null) {
+				connection = new RestoreConnection(addr, port);
+				this.connections.put(key, connection);
+				SystemManager.getInstance().logPrint("opened restore connection to " + key, SystemManager.LogLevel.VERBOSE);
+			}
+
+			opened.complete(connection);
+			return connection;
+		} catch(IOException e) {
+			opened.completeExceptionally(e);
+			throw e;
+		} finally {
+			this.connecting.remove(key, opened);
+		}
+	}
+
+	/**
+	 * Waits for a connection being opened by another sender.
+	 *
+	 * @param key the address and port of the server
+	 * @param opening the connection being opened
+	 * @return the connection to the server
+	 */
+	private RestoreConnection await(String key, CompletableFuture<RestoreConnection> opening) throws IOException {
+
+		try {
+			return opening.get();
+		} catch(ExecutionException e) {
+			throw new IOException("couldn't connect to " + key, e.getCause());
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("interrupted connecting to " + key);
+		}
+	}
+
+	/**
+	 * Closes the connections that haven't carried a frame for a while.
+	 */
+	private void closeIdle() {
+
+		for(Map.Entry<String, RestoreConnection> entry : this.connections.entrySet()) {
+
+			RestoreConnection connection = entry.getValue();
+			if(connection.getIdleMS() < idleTimeoutMS) continue;
+
+			if(this.connections.remove(entry.getKey(), connection)) {
+				connection.close();
+				SystemManager.getInstance().logPrint("closed idle restore connection to " + entry.getKey(), SystemManager.LogLevel.VERBOSE);
+			}
+		}
+	}
+}
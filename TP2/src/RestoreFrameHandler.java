@@ -0,0 +1,71 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+
+public class RestoreFrameHandler implements Runnable {
+
+	private byte[] frame;
+	private Runnable handled;
+
+	/**
+	 * RESTORE ENH handler for a CHUNK message received through TCP.
+	 *
+	 * @param frame the CHUNK message received in a single frame
+	 * @param handled run once the frame is handled, successfully or not
+	 */
+	public RestoreFrameHandler(byte[] frame, Runnable handled) {
+		this.frame = frame;
+		this.handled = handled;
+	}
+
+	/**
+	 * Passes a CHUNK message received through TCP along to the RESTORE protocol of its file.
+	 *
+	 * @param packet the packet containing the CHUNK message
+	 */
+	private void processChunk(DatagramPacket packet) throws IOException {
+
+		// Validate message as service message and extract its header
+		ProtocolState state = new ProtocolState(new ServiceMessage());
+		Peer peer = Peer.getInstance();
+		state.setPacket(packet);
+		state.setFields(state.getParser().stripHeader(state.getPacket()));
+
+		// Message was not recognised, ignore
+		if(state.getFields() == null) return;
+
+		// Validate MAC
+		if(!state.getParser().validateMAC(state.getPacket())) return;
+
+		// Check if this RESTORE protocol exists
+		String protocolKey = peer.getPeerID() + state.getFields()[Peer.hashI] + ProtocolState.ProtocolType.RESTORE.name();
+		ProtocolState currState = peer.getProtocols().get(protocolKey);
+
+		if(currState == null) {
+			SystemManager.getInstance().logPrint("received CHUNK through TCP but no RESTORE protocol matched, key: " + protocolKey, SystemManager.LogLevel.DEBUG);
+			return;
+		}
+
+		// Store chunk number and chunk data received
+		Long chunkNo = Long.parseLong(state.getFields()[Peer.chunkNoI]);
+		byte[] data = SecurityHandler.decryptAES128(state.getParser().stripBody(state.getPacket()));
+
+		peer.sampleRTT(peer.getMdr(), Integer.parseInt(state.getFields()[Peer.senderI]), currState.getSentTimes().remove(chunkNo));
+
+		SystemManager.getInstance().logPrint("restored chunk \"" + state.getFields()[Peer.hashI] + "." + chunkNo + "\"", SystemManager.LogLevel.DEBUG);
+		currState.getRestoreProtocol().chunkReceived(chunkNo, data);
+	}
+
+	@Override
+	public void run() {
+
+		// A bad message doesn't break the framing of its connection
+		try {
+			this.processChunk(new DatagramPacket(this.frame, this.frame.length));
+		} catch(IOException e) {
+			SystemManager.getInstance().logPrint("I/O Exception processing CHUNK received through TCP!", SystemManager.LogLevel.NORMAL);
+			e.printStackTrace();
+		} finally {
+			this.handled.run();
+		}
+	}
+}
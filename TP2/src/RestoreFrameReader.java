@@ -0,0 +1,109 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+public class RestoreFrameReader {
+
+	private static final int maxFrameSize = 128 * 1024;
+
+	private ByteBuffer length = ByteBuffer.allocate(Integer.BYTES);
+	private ByteBuffer frame = null;
+	private boolean closed = false;
+	private long lastReadTime = System.nanoTime();
+
+	// Frames handed to the executor and not handled yet
+	private int framesInFlight = 0;
+
+	/**
+	 * Reassembles the frames prefixed by their length that arrive on a non-blocking connection
+	 * to the restore server, across as many reads as they take to arrive.
+	 */
+	public RestoreFrameReader() {}
+
+	/**
+	 * Reads the data available on the connection without blocking, up to a number of frames.
+	 *
+	 * @param channel the connection to read from
+	 * @param maxFrames the maximum number of frames to complete
+	 * @return the frames completed by this read, in order of arrival
+	 */
+	public ArrayList<byte[]> read(SocketChannel channel, int maxFrames) throws IOException {
+
+		ArrayList<byte[]> frames = new ArrayList<byte[]>();
+
+		while(frames.size() < maxFrames) {
+
+			ByteBuffer target = (this.frame == null) ? this.length : this.frame;
+			int nRead = channel.read(target);
+
+			if(nRead < 0) {
+				this.closed = true;
+				return frames;
+			}
+
+			if(nRead == 0) return frames;
+
+			this.lastReadTime = System.nanoTime();
+			if(target.hasRemaining()) continue;
+
+			// Length complete, read the frame next
+			if(this.frame == null) {
+
+				this.length.flip();
+				int frameSize = this.length.getInt();
+				this.length.clear();
+
+				if(frameSize <= 0 || frameSize > maxFrameSize) throw new IOException("invalid frame length " + frameSize);
+				this.frame = ByteBuffer.allocate(frameSize);
+
+			// Frame complete, read the next length
+			} else {
+				frames.add(this.frame.array());
+				this.frame = null;
+			}
+		}
+
+		return frames;
+	}
+
+	/**
+	 * Records a frame handed to the executor.
+	 *
+	 * @return the number of frames in flight
+	 */
+	public synchronized int frameDispatched() {
+		return ++this.framesInFlight;
+	}
+
+	/**
+	 * Records a frame handled by the executor.
+	 *
+	 * @return the number of frames in flight
+	 */
+	public synchronized int frameHandled() {
+		return --this.framesInFlight;
+	}
+
+	/**
+	 * @return the number of frames handed to the executor and not handled yet
+	 */
+	public synchronized int getFramesInFlight() {
+		return framesInFlight;
+	}
+
+	/**
+	 * @return whether the other Peer closed the connection
+	 */
+	public boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * @return the time in milliseconds since data last arrived
+	 */
+	public long getIdleMS() {
+		return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - this.lastReadTime);
+	}
+}
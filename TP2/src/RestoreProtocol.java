@@ -1,28 +1,50 @@
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.security.NoSuchAlgorithmException;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 public class RestoreProtocol implements Runnable {
 
-	private static final int consecutiveMsgCount = 5;
+	private static final double jitterFraction = 0.25;
+	private static final int noHolder = -1;
+	private static final int maxPenaltyShift = 6;
 	
-	private ServerSocket server;
-	private int serverPort;
 	private String filepath;
 	private FileInfo fileInfo;
 	private boolean found;
-	private String restoredFilepath;
-	private long receivedChunks = 0;
-	private long currentStartChunkNo = 0;
-	private long timeElapsed = 0;
-	private long timeoutMS = 0;
+	
+	// Restore this protocol was started for, then every restore of the file attached to it and not done yet
+	private RestoreRequest request;
+	private ArrayList<RestoreRequest> requests = new ArrayList<RestoreRequest>();
+	private ArrayList<RestoreRequest> completed = new ArrayList<RestoreRequest>();
+	
+	// Chunks wanted by the attached restores and not requested yet
+	private BitSet unrequested = new BitSet();
+	
+	// Chunks requested and waiting for CHUNK messages, with the time their GETCHUNK is retransmitted
+	private HashMap<Long, Long> pending = new HashMap<Long, Long>();
+	private HashMap<Long, Long> timeouts = new HashMap<Long, Long>();
+	private HashMap<Long, Integer> attempts = new HashMap<Long, Integer>();
+	
+	// Holder each requested chunk was asked from, with the chunks in flight and timeouts in a row of each holder
+	private HashMap<Long, Integer> assigned = new HashMap<Long, Integer>();
+	private HashMap<Integer, Integer> outstanding = new HashMap<Integer, Integer>();
+	private HashMap<Integer, Integer> failures = new HashMap<Integer, Integer>();
+
+	// Set when a chunk runs out of attempts or the restore ends, restores can't attach from then on
+	private volatile boolean stopped = false;
+	private volatile CompletableFuture<FileInfo> retrieved = null;
 
 	/**
 	 * Runs a RESTORE protocol procedure with specified filepath.
@@ -30,11 +52,30 @@ public class RestoreProtocol implements Runnable {
 	 * @param filepath the file path to restore
 	 * @param fileInfo the object containing info about the file
 	 * @param found whether the file was initiated on this Peer
+	 * @param sink where the restored chunks are written
+	 * @param job the job to report progress to
+	 */
+	public RestoreProtocol(String filepath, FileInfo fileInfo, boolean found, RestoreSink sink, Job job) {
+		this(filepath, fileInfo, found, 0, -1, sink, job);
+	}
+	
+	/**
+	 * Runs a RESTORE protocol procedure for a range of bytes of the specified filepath, fetching
+	 * only the chunks covering the range.
+	 * 
+	 * @param filepath the file path to restore
+	 * @param fileInfo the object containing info about the file
+	 * @param found whether the file was initiated on this Peer
+	 * @param offset the position of the first byte to restore
+	 * @param length the number of bytes to restore, negative for up to the end of the file
+	 * @param sink where the restored chunks are written
+	 * @param job the job to report progress to
 	 */
-	public RestoreProtocol(String filepath, FileInfo fileInfo, boolean found) {
+	public RestoreProtocol(String filepath, FileInfo fileInfo, boolean found, long offset, long length, RestoreSink sink, Job job) {
 		this.filepath = filepath;
 		this.fileInfo = fileInfo;
 		this.found = found;
+		this.request = new RestoreRequest(filepath, offset, length, sink, job);
 	}
 	
 	@Override
@@ -42,56 +83,46 @@ public class RestoreProtocol implements Runnable {
 		
 		Thread.currentThread().setName("Restore " + Thread.currentThread().getId());
 		
+		// Job may have been cancelled before reaching the executor
+		if(!this.request.getJob().start(() -> this.cancel())) {
+			this.request.finish();
+			return;
+		}
+		
 		Peer peer = Peer.getInstance();
 		
 		// Peer is not the initiator, try to retrieve file info from other Peers
 		if(!found) {
+			this.fileInfo = this.retrieveFileInfo(peer);
 			
-			String retrieveKey = this.initializeRetrieveProtocol(peer);
-			ProtocolState retrieveState = peer.getProtocols().get(retrieveKey);
-			
-			// Send request for file info
-			try {
-				byte[] msg = retrieveState.getParser().createRetrieveMsg(peer.getPeerID(), peer.getProtocolVersion(), this.filepath);
-				peer.getMcc().send(msg);
-			} catch(IOException e) {
-				SystemManager.getInstance().logPrint("I/O Exception retrieving info!", SystemManager.LogLevel.NORMAL);
-				e.printStackTrace();
+			if(this.fileInfo == null) {
+				this.request.finish();
 				return;
 			}
-			
-			// Wait for response
-			do {
-				if(Thread.interrupted()) {
-					SystemManager.getInstance().logPrint("could not retrieve file info, might not exist in the system", SystemManager.LogLevel.NORMAL);
-					return;
-				}
-
-			} while(!retrieveState.isRetrieveMsgResponded());
-			
-			this.fileInfo = retrieveState.getFileInfo();
-			
-			peer.getProtocols().remove(retrieveKey);
-			SystemManager.getInstance().logPrint("key removed: " + retrieveKey, SystemManager.LogLevel.VERBOSE);
-			
-			this.timeoutMS = fileInfo.getTotalChunks() * Peer.baseRestoreTimeoutMS;
 		}
 		
-		String resMsg = "restore: " + filepath;
-		SystemManager.getInstance().logPrint("started " + resMsg, SystemManager.LogLevel.NORMAL);
+		if(!this.request.setRange(this.fileInfo)) {
+			SystemManager.getInstance().logPrint("range is past the end of " + this.filepath, SystemManager.LogLevel.NORMAL);
+			this.request.finish();
+			return;
+		}
+		
+		SystemManager.getInstance().logPrint("started " + this.request.getDescription(), SystemManager.LogLevel.NORMAL);
 
-		// Initialise protocol state
+		// Initialise protocol state, or attach to the restore of the same file already running
 		String key = null;
 		try {
+			this.request.open(this.fileInfo);
 			key = this.initializeProtocolInstance(peer);
 		} catch(NoSuchAlgorithmException | IOException e) {
 			SystemManager.getInstance().logPrint("I/O Exception on restore protocol!", SystemManager.LogLevel.NORMAL);
 			e.printStackTrace();
+			this.request.finish();
 			return;
 		}
 		
 		if(key == null) {
-			SystemManager.getInstance().logPrint("cannot restore files larger than 64GB!", SystemManager.LogLevel.NORMAL);
+			SystemManager.getInstance().logPrint("attached " + this.request.getDescription() + " to the restore of the file in progress", SystemManager.LogLevel.NORMAL);
 			return;
 		}
 		
@@ -99,74 +130,207 @@ public class RestoreProtocol implements Runnable {
 
 		// GETCHUNK message loop
 		try {
-			
-			this.createRestoredPath(peer, state);
-			
-			if(this.getchunkLoop(peer, state)) {
-				SystemManager.getInstance().logPrint("finished " + resMsg, SystemManager.LogLevel.NORMAL);
-			} else {
-				
-				// Delete partial file
-				this.deleteRestoredFile(peer, state);
-				
-				SystemManager.getInstance().logPrint("not enough chunk data received", SystemManager.LogLevel.DEBUG);
-				SystemManager.getInstance().logPrint("failed " + resMsg, SystemManager.LogLevel.NORMAL);
-			}
-			
-			// Close TCP server if enhanced Peer
-			if(!peer.getProtocolVersion().equals("1.0")) {
-				if(this.server != null) this.server.close();
-			}
-			
+			this.getchunkLoop(peer, state);
 		} catch(IOException e) {
 			SystemManager.getInstance().logPrint("I/O Exception or thread interruption on restore protocol!", SystemManager.LogLevel.NORMAL);
 			e.printStackTrace();
-			peer.getProtocols().remove(key);
-			SystemManager.getInstance().logPrint("key removed: " + key, SystemManager.LogLevel.VERBOSE);
-			return;
 		}
 
-		peer.getProtocols().remove(key);
+		// CHUNK messages arriving from now on find no protocol, restores of the file from now on start their own
+		ArrayList<RestoreRequest> remaining;
+		synchronized(this) {
+			this.stopped = true;
+			remaining = new ArrayList<RestoreRequest>(this.completed);
+			remaining.addAll(this.requests);
+			this.completed.clear();
+			this.requests.clear();
+		}
+		
+		peer.getProtocols().remove(key, state);
 		SystemManager.getInstance().logPrint("key removed: " + key, SystemManager.LogLevel.VERBOSE);
+		
+		for(RestoreRequest request : remaining) {
+			this.finishRequest(request);
+		}
+	}
+	
+	/**
+	 * Finishes the restored data of a restore that completed, failed or was cancelled.
+	 * 
+	 * @param request the restore to finish
+	 */
+	private void finishRequest(RestoreRequest request) {
+		
+		String resMsg = request.getDescription();
+		if(request.finish()) {
+			SystemManager.getInstance().logPrint("finished " + resMsg, SystemManager.LogLevel.NORMAL);
+		} else if(request.isCancelled()) {
+			SystemManager.getInstance().logPrint("cancelled " + resMsg, SystemManager.LogLevel.NORMAL);
+		} else {
+			SystemManager.getInstance().logPrint("not enough chunk data received", SystemManager.LogLevel.DEBUG);
+			SystemManager.getInstance().logPrint("failed " + resMsg, SystemManager.LogLevel.NORMAL);
+		}
 	}
 	
 	/**
-	 * Submits thread that runs the server for this enhanced RESTORE protocol.
+	 * Asks the other Peers for the info of the file and waits for the first INFO response, asking
+	 * again with twice the timeout if none arrives, until the restore is cancelled. The first wait
+	 * is the control channel's timeout, but at least {@value Peer#baseTimeoutMS}ms.
 	 * 
 	 * @param peer the singleton Peer instance
+	 * @return the file info, null if it couldn't be retrieved
 	 */
-	private void runRestoreServer(Peer peer) {
+	private FileInfo retrieveFileInfo(Peer peer) {
+		
+		String retrieveKey = this.initializeRetrieveProtocol(peer);
+		ProtocolState retrieveState = peer.getProtocols().get(retrieveKey);
 		
-		// Run server if it doesn't exist
-		if(this.server != null) return;
+		// A cancellation that arrived before the future was set must still complete it
+		this.retrieved = retrieveState.getRetrievedInfo();
+		if(this.request.isCancelled()) this.retrieved.cancel(false);
 		
+		long timeoutMS = Math.max(Peer.baseTimeoutMS, peer.getMcc().getRTT().getTimeoutMS());
+		FileInfo info = null;
+		
+		// Send request for file info and wait for the response, a lost RETRIEVE or INFO is sent again
 		try {
-
-			this.serverPort = Peer.getInstance().findNextPortAllowed();
-			this.server = new ServerSocket(this.serverPort);
-		} catch (IOException e) {
-			SystemManager.getInstance().logPrint("I/O Exception creating server socket!", SystemManager.LogLevel.NORMAL);
+			byte[] msg = retrieveState.getParser().createRetrieveMsg(peer.getPeerID(), peer.getProtocolVersion(), this.filepath);
+			
+			for(int attempt = 1; info == null; attempt++) {
+				peer.getMcc().send(msg);
+				
+				try {
+					info = this.retrieved.get(timeoutMS, TimeUnit.MILLISECONDS);
+				} catch(TimeoutException e) {
+					if(attempt >= Peer.maxRetrieveAttempts) throw e;
+					
+					SystemManager.getInstance().logPrint("no INFO whithin " + timeoutMS + "ms, requesting file info again", SystemManager.LogLevel.DEBUG);
+					timeoutMS *= 2;
+				}
+			}
+		} catch(TimeoutException e) {
+			SystemManager.getInstance().logPrint("could not retrieve file info after " + Peer.maxRetrieveAttempts + " attempts, might not exist in the system", SystemManager.LogLevel.NORMAL);
+		} catch(CancellationException e) {
+			SystemManager.getInstance().logPrint("cancelled restore: " + this.filepath, SystemManager.LogLevel.NORMAL);
+		} catch(IOException | InterruptedException | ExecutionException e) {
+			SystemManager.getInstance().logPrint("I/O Exception or thread interruption retrieving info!", SystemManager.LogLevel.NORMAL);
 			e.printStackTrace();
-			return;
 		}
 		
-		peer.getExecutor().submit(new RestoreServer(this.server, consecutiveMsgCount));
+		peer.getProtocols().remove(retrieveKey);
+		SystemManager.getInstance().logPrint("key removed: " + retrieveKey, SystemManager.LogLevel.VERBOSE);
+		return info;
 	}
-
+	
+	/**
+	 * Cancels the restore this protocol was started for, detaching it from the restore fetching its
+	 * chunks, which gives up on the chunks no other restore wants.
+	 */
+	private void cancel() {
+		
+		RestoreProtocol pipeline = this.request.cancel();
+		if(pipeline != null) pipeline.detach(this.request);
+		
+		// Wake the wait for file info, if any
+		CompletableFuture<FileInfo> retrieved = this.retrieved;
+		if(retrieved != null) retrieved.cancel(false);
+	}
+	
+	/**
+	 * Wakes the GETCHUNK loop when a sink releases chunks it held, freeing slots in the window.
+	 */
+	public synchronized void sinkDrained() {
+		this.notifyAll();
+	}
+	
+	/**
+	 * Attaches a restore of the file to this one, the chunks of its range not in flight are
+	 * requested again and the ones in flight are written to it as well when they arrive.
+	 * 
+	 * @param request the restore to attach
+	 * @return whether the restore was attached, false if this one already ended
+	 */
+	public synchronized boolean attach(RestoreRequest request) {
+		
+		if(this.stopped) return false;
+		
+		// A restore cancelled before attaching is finished by the GETCHUNK loop like any other
+		if(!request.attachTo(this)) {
+			this.completed.add(request);
+			this.notifyAll();
+			return true;
+		}
+		
+		this.requests.add(request);
+		for(long chunkNo = request.getFirstChunkNo(); chunkNo <= request.getLastChunkNo(); chunkNo++) {
+			if(!this.attempts.containsKey(chunkNo)) this.unrequested.set((int) chunkNo);
+		}
+		
+		this.notifyAll();
+		return true;
+	}
+	
 	/**
-	 * Initialises the ProtocolState object relevant to this restore procedure.
+	 * Detaches a cancelled or failed restore, the GETCHUNK loop finishes it.
+	 * 
+	 * @param request the restore to detach
+	 */
+	public synchronized void detach(RestoreRequest request) {
+		
+		if(this.requests.remove(request)) {
+			this.completed.add(request);
+			this.notifyAll();
+		}
+	}
+	
+	/**
+	 * @return the restores that completed or were detached since the last call
+	 */
+	private synchronized ArrayList<RestoreRequest> takeCompleted() {
+		
+		ArrayList<RestoreRequest> done = new ArrayList<RestoreRequest>(this.completed);
+		this.completed.clear();
+		return done;
+	}
+	
+	/**
+	 * @return the number of chunks held in memory by the sinks of the attached restores
+	 */
+	private synchronized int getBufferedChunks() {
+		
+		int buffered = 0;
+		for(RestoreRequest request : this.requests) {
+			buffered += request.getBufferedChunks();
+		}
+		
+		return buffered;
+	}
+	
+	/**
+	 * Initialises the ProtocolState object relevant to this restore procedure, unless a restore of
+	 * the same file is already running on this Peer, in which case this one is attached to it.
 	 * 
 	 * @param peer the singleton Peer instance
-	 * @return the protocol key
+	 * @return the protocol key, null if attached to the restore already running
 	 */
 	private String initializeProtocolInstance(Peer peer) throws NoSuchAlgorithmException, IOException {
 		
 		ProtocolState state = new ProtocolState(ProtocolState.ProtocolType.RESTORE, new ServiceMessage());
 		
-		state.initRestoreState(peer.getProtocolVersion(), this.fileInfo);
+		state.initRestoreState(peer.getProtocolVersion(), this.fileInfo, 0, this.fileInfo.getTotalChunks() - 1);
+		state.setRestoreProtocol(this);
+		this.attach(this.request);
 		
 		String protocolKey = peer.getPeerID() + state.getHashHex() + state.getProtocolType().name();
-		peer.getProtocols().put(protocolKey, state);
+		while(true) {
+			
+			ProtocolState running = peer.getProtocols().putIfAbsent(protocolKey, state);
+			if(running == null) break;
+			if(running.getRestoreProtocol().attach(this.request)) return null;
+			
+			// Restore running already ended, take its place
+			if(peer.getProtocols().replace(protocolKey, running, state)) break;
+		}
 		
 		SystemManager.getInstance().logPrint("key inserted: " + protocolKey, SystemManager.LogLevel.VERBOSE);
 		return protocolKey;
@@ -190,159 +354,596 @@ public class RestoreProtocol implements Runnable {
 	}
 	
 	/**
-	 * Sends the required GETCHUNK messages for backing up a file and then waits on reception of all
-	 * the relevant CHUNK messages.
+	 * Keeps a window of GETCHUNK messages waiting for CHUNK messages, sending the next GETCHUNK
+	 * as soon as a chunk arrives, until every attached restore has every chunk of its range. The
+	 * thread sleeps on this object's monitor until a chunk arrives or the earliest retransmission
+	 * timer expires, then re-requests only the chunks whose timer expired. Enhanced Peers stripe
+	 * the free slots of the window across the known holders with a GETCHUNKS message per stripe,
+	 * and retransmit from another holder. Attached restores that complete are finished by this thread.
 	 * 
 	 * @param peer the singleton Peer instance
 	 * @param state the Protocol State object relevant to this operation
-	 * @return whether the restore was successful
+	 * @return whether every attached restore was successful
 	 */
 	private boolean getchunkLoop(Peer peer, ProtocolState state) throws IOException {
 		
-		while(!state.isFinished()) {
-
-			// Run TCP server if enhanced Peer
-			if(!peer.getProtocolVersion().equals("1.0")) {
-				this.runRestoreServer(peer);
+		int window = peer.getRestoreWindow();
+		ArrayList<Long> expired = new ArrayList<Long>();
+		
+		while(true) {
+			
+			// Finish the restores that completed or were detached, outside the lock as their sinks may block
+			for(RestoreRequest request : this.takeCompleted()) {
+				this.finishRequest(request);
 			}
 			
-			// Starting point for the next batch
-			this.currentStartChunkNo = state.getCurrentChunkNo();
+			// Wait for a free slot in the window, an expired retransmission timer or the end of the restore
+			int free;
+			expired.clear();
+			synchronized(this) {
+				while(true) {
+					
+					if(this.stopped) return false;
+					// Restores of the file from now on start their own protocol
+					if(this.requests.isEmpty() && this.completed.isEmpty()) {
+						this.stopped = true;
+						return true;
+					}
+					
+					long now = System.nanoTime();
+					long waitNS = Long.MAX_VALUE;
+					for(Map.Entry<Long, Long> entry : this.pending.entrySet()) {
+						
+						long remainingNS = entry.getValue() - now;
+						if(remainingNS <= 0) expired.add(entry.getKey());
+						else waitNS = Math.min(waitNS, remainingNS);
+					}
+					
+					// Chunks held in memory by the sinks use up the window as well
+					free = this.unrequested.isEmpty() ? 0 : window - this.pending.size() - this.getBufferedChunks();
+					if(free > 0 || expired.size() > 0 || this.completed.size() > 0) break;
+					
+					try {
+						TimeUnit.NANOSECONDS.timedWait(this, waitNS);
+					} catch(InterruptedException e) {
+						return false;
+					}
+				}
+			}
 			
-			int sent = 0;
-			while(sent < consecutiveMsgCount && !state.isFinished()) {
+			// Re-request the chunks whose timer expired
+			for(long chunkNo : expired) {
+				if(!this.chunkTimeout(peer, state, chunkNo)) return false;
+			}
 			
-				// Create and send the GETCHUNK message for the current chunk, according to protocol version
-				byte[] msg;
-				if(peer.getProtocolVersion().equals("1.0")) {
-					msg = state.getParser().createGetchunkMsg(peer.getPeerID(), state);
-				} else {
-					msg = state.getParser().createEnhGetchunkMsg(peer.getPeerID(), state, this.serverPort);
-				}
-				peer.getMcc().send(msg);
-
-				try {
-					Thread.sleep(Peer.consecutiveMsgWaitMS);
-				} catch(InterruptedException e) {
-					// ignore
-				}
+			// Refill the window with the next chunks
+			if(free > 0) this.requestNextChunks(peer, state, free);
+		}
+	}
+	
+	/**
+	 * Requests the next chunks wanted by the attached restores, with GETCHUNKS messages striping them
+	 * across their holders if the Peer is enhanced, otherwise with a GETCHUNK message per chunk.
+	 * 
+	 * @param peer the singleton Peer instance
+	 * @param state the Protocol State object relevant to this operation
+	 * @param count the maximum number of chunks to request
+	 */
+	private void requestNextChunks(Peer peer, ProtocolState state, int count) throws IOException {
+		
+		long timeoutMS = peer.getMdr().getRTT().getTimeoutMS();
+		
+		// Take the lowest chunks not requested yet, skipping the ones of restores detached meanwhile
+		ArrayList<Long> chunks = new ArrayList<Long>();
+		synchronized(this) {
+			for(int next = this.unrequested.nextSetBit(0); next >= 0 && chunks.size() < count; next = this.unrequested.nextSetBit(next + 1)) {
 				
-				state.incrementCurrentChunkNo();
-				sent++;
+				this.unrequested.clear(next);
+				if(!this.isWanted(next)) continue;
+				
+				this.attempts.put((long) next, 0);
+				chunks.add((long) next);
 			}
-
-			if(!checkReceivedChunks(state)) return false;
+		}
+		
+		// Chunks stored on this Peer are read from disk alongside the requests for the others
+		ArrayList<Long> remote = new ArrayList<Long>();
+		for(long chunkNo : chunks) {
+			if(new File(this.getLocalChunkPath(peer, state, chunkNo)).isFile()) this.readLocalChunk(peer, state, chunkNo, timeoutMS);
+			else remote.add(chunkNo);
+		}
+		
+		if(remote.size() == 0) return;
+		
+		if(peer.getProtocolVersion().equals("1.0")) {
+			for(long chunkNo : remote) {
+				this.sendGetchunk(peer, state, chunkNo, timeoutMS, noHolder);
+			}
+			return;
+		}
+		
+		// Split the chunks in a stripe per holder, each stripe going to the holder with the lowest cost
+		int holderCount = Math.max(1, this.findHolders(peer, state, remote.get(0)).size());
+		int stripe = (remote.size() + holderCount - 1) / holderCount;
+		
+		long runFirst = remote.get(0);
+		int runHolder = noHolder;
+		for(int i = 0; i < remote.size(); i++) {
 			
-			// Write file as chunks arrive and reset hash map
-			this.writeRestoredChunks(peer, state);
-			state.setRestoredChunks(new ConcurrentHashMap<Long, byte[]>(8, 0.9f, 1));
+			// Keep asking the same holder until the stripe ends or it doesn't store the chunk
+			long chunkNo = remote.get(i);
+			ArrayList<Integer> holders = this.findHolders(peer, state, chunkNo);
+			boolean newStripe = i % stripe == 0;
+			int holder = (!newStripe && holders.contains(runHolder)) ? runHolder : this.chooseHolder(peer, holders, noHolder);
+			
+			// A range ends when the holder changes or a local chunk interrupts it
+			if(i > 0 && (holder != runHolder || chunkNo != remote.get(i - 1) + 1)) {
+				this.sendRange(peer, state, runFirst, remote.get(i - 1), runHolder, 0);
+				runFirst = chunkNo;
+			}
+			
+			runHolder = holder;
+			this.assign(chunkNo, holder);
+			this.armTimer(state, chunkNo, this.getHolderTimeoutMS(peer, holder, timeoutMS));
+		}
+		
+		this.sendRange(peer, state, runFirst, remote.get(remote.size() - 1), runHolder, 0);
+	}
+	
+	/**
+	 * @param chunkNo the chunk number
+	 * @return whether any attached restore still wants the chunk
+	 */
+	private synchronized boolean isWanted(long chunkNo) {
+		
+		for(RestoreRequest request : this.requests) {
+			if(request.wants(chunkNo)) return true;
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * Returns where a chunk of the file would be stored if this Peer holds it.
+	 * 
+	 * @param peer the singleton Peer instance
+	 * @param state the Protocol State object relevant to this operation
+	 * @param chunkNo the chunk number
+	 * @return the chunk path
+	 */
+	private String getLocalChunkPath(Peer peer, ProtocolState state, long chunkNo) {
+		return "../" + Peer.storageFolderName + "/" + Peer.peerFolderPrefix + peer.getPeerID() + "/" + state.getHashHex() + "/" + chunkNo;
+	}
+	
+	/**
+	 * Reads a chunk stored on this Peer on the executor instead of requesting it, the chunk takes
+	 * its slot in the window until written like any other.
+	 * 
+	 * @param peer the singleton Peer instance
+	 * @param state the Protocol State object relevant to this operation
+	 * @param chunkNo the chunk number
+	 * @param timeoutMS the time to wait for the chunk before requesting it from other Peers
+	 */
+	private void readLocalChunk(Peer peer, ProtocolState state, long chunkNo, long timeoutMS) {
+		
+		synchronized(this) {
+			this.pending.put(chunkNo, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMS));
+			this.timeouts.put(chunkNo, timeoutMS);
+		}
+		
+		peer.getExecutor().execute(() -> this.loadLocalChunk(peer, state, chunkNo, timeoutMS));
+	}
+	
+	/**
+	 * Loads and decrypts a chunk stored on this Peer, requesting it from other Peers if it can't
+	 * be read, as it may have been reclaimed meanwhile.
+	 * 
+	 * @param peer the singleton Peer instance
+	 * @param state the Protocol State object relevant to this operation
+	 * @param chunkNo the chunk number
+	 * @param timeoutMS the time to wait for the CHUNK message before retransmitting
+	 */
+	private void loadLocalChunk(Peer peer, ProtocolState state, long chunkNo, long timeoutMS) {
+		
+		try {
+			byte[] data = SecurityHandler.decryptAES128(Files.readAllBytes(Paths.get(this.getLocalChunkPath(peer, state, chunkNo))));
+			this.deliverChunk(chunkNo, data, true, false);
+			return;
+		} catch(IOException e) {
+			SystemManager.getInstance().logPrint("could not read local chunk " + chunkNo + ", requesting it", SystemManager.LogLevel.DEBUG);
+		}
+		
+		try {
+			if(!this.stopped) this.sendGetchunk(peer, state, chunkNo, timeoutMS, noHolder);
+		} catch(IOException e) {
+			SystemManager.getInstance().logPrint("I/O Exception requesting chunk " + chunkNo + "!", SystemManager.LogLevel.NORMAL);
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Sends a GETCHUNKS message for a range of chunks directly to the holder chosen for it, flagged
+	 * so it answers right away, or to every candidate holder if none was chosen.
+	 * 
+	 * @param peer the singleton Peer instance
+	 * @param state the Protocol State object relevant to this operation
+	 * @param first the first chunk number of the range
+	 * @param last the last chunk number of the range, inclusive
+	 * @param holder the numeric identifier of the holder, {@value #noHolder} if none was chosen
+	 * @param attempt the number of previous attempts for the chunks
+	 */
+	private void sendRange(Peer peer, ProtocolState state, long first, long last, int holder, int attempt) throws IOException {
+		
+		SummaryInfo summary = (holder == noHolder) ? null : peer.getSummary(holder);
+		byte[] msg = state.getParser().createGetchunksMsg(peer.getPeerID(), state, first, last, peer.getRestoreAcceptor().getPort(), summary != null);
+		
+		long delayMS;
+		if(summary == null) {
+			delayMS = this.sendToCandidates(peer, state, msg, attempt);
+		} else {
+			SystemManager.getInstance().logPrint("requesting chunks " + first + " to " + last + " from Peer " + holder, SystemManager.LogLevel.VERBOSE);
+			delayMS = peer.getUcc().send(msg, summary.getAddress(), summary.getPort(), TrafficShaper.TrafficClass.USER_RESTORE);
+		}
+		
+		for(long chunkNo = first; chunkNo <= last; chunkNo++) {
+			this.delayTimer(state, chunkNo, attempt, delayMS);
 		}
-
-		return true;
 	}
 	
 	/**
-	 * Checks received chunk data hash map size to verify that expected CHUNK messages
-	 * have been received.
+	 * Returns the Peers known to store a chunk whose summary still indicates they store the file.
+	 * Without records of the chunk's holders, as when restoring a file initiated elsewhere, every
+	 * Peer whose summary indicates it might store the file is returned.
 	 * 
+	 * @param peer the singleton Peer instance
 	 * @param state the Protocol State object relevant to this operation
-	 * @return whether enough CHUNK messages were received
+	 * @param chunkNo the chunk number
+	 * @return the numeric identifiers of the holders
 	 */
-	private boolean checkReceivedChunks(ProtocolState state) {
+	private ArrayList<Integer> findHolders(Peer peer, ProtocolState state, long chunkNo) {
 		
-		ConcurrentHashMap<Long, byte[]> chunks;
+		ChunkInfo chunk = peer.getDatabase().getChunkInfo(state.getHashHex(), chunkNo);
+		boolean recorded = chunk != null && chunk.getPerceivedRepDeg().size() > 0;
+		
+		ArrayList<Integer> holders = new ArrayList<Integer>();
+		for(Map.Entry<Integer, SummaryInfo> entry : peer.getSummaries().entrySet()) {
+			
+			int peerID = entry.getKey();
+			if(peerID == peer.getPeerID() || entry.getValue().isExpired() || !entry.getValue().getFilter().mightContain(state.getHashHex())) continue;
+			if(recorded && !chunk.getPerceivedRepDeg().containsKey(peerID)) continue;
+			
+			holders.add(peerID);
+		}
 		
-		// Find the chunk limit for this batch
-		long diff = state.getChunkTotal() - this.receivedChunks;
-		long limit = (diff > RestoreProtocol.consecutiveMsgCount) ? RestoreProtocol.consecutiveMsgCount : diff;
+		return holders;
+	}
+	
+	/**
+	 * Chooses the holder to request a chunk from, weighing the chunks already in flight to each
+	 * holder by its round trip time and backing off exponentially from holders that timed out.
+	 * 
+	 * @param peer the singleton Peer instance
+	 * @param holders the numeric identifiers of the holders of the chunk
+	 * @param exclude the holder to avoid if there are others, {@value #noHolder} for none
+	 * @return the numeric identifier of the holder, {@value #noHolder} if there are none
+	 */
+	private synchronized int chooseHolder(Peer peer, ArrayList<Integer> holders, int exclude) {
 		
-		boolean valid = true;
-		do {
+		int best = noHolder;
+		double bestCost = Double.MAX_VALUE;
+		for(int holder : holders) {
 			
-            long timeBefore = System.currentTimeMillis();
+			if(holder == exclude && holders.size() > 1) continue;
 			
-			if(Thread.interrupted()) {
-				if(this.timeoutMS != 0 && this.timeElapsed >= this.timeoutMS) return false;
+			double rttMS = Math.max(1, peer.getPeerRTT(holder).getSrttMS());
+			int penalty = 1 << Math.min(this.failures.getOrDefault(holder, 0), maxPenaltyShift);
+			double cost = (this.outstanding.getOrDefault(holder, 0) + 1) * rttMS * penalty;
+			
+			if(cost < bestCost) {
+				best = holder;
+				bestCost = cost;
 			}
+		}
+		
+		return best;
+	}
+	
+	/**
+	 * Records the holder a chunk is requested from.
+	 * 
+	 * @param chunkNo the chunk number
+	 * @param holder the numeric identifier of the holder, {@value #noHolder} if none was chosen
+	 */
+	private synchronized void assign(long chunkNo, int holder) {
+		
+		this.assigned.put(chunkNo, holder);
+		if(holder != noHolder) this.outstanding.merge(holder, 1, Integer::sum);
+	}
+	
+	/**
+	 * Releases the holder a chunk was requested from, once the chunk arrived or its timer expired.
+	 * 
+	 * @param chunkNo the chunk number
+	 * @param failed whether the holder didn't send the chunk in time
+	 * @return the numeric identifier of the holder, {@value #noHolder} if none was chosen
+	 */
+	private synchronized int release(long chunkNo, boolean failed) {
+		
+		Integer holder = this.assigned.remove(chunkNo);
+		if(holder == null || holder == noHolder) return noHolder;
+		
+		this.outstanding.merge(holder, -1, Integer::sum);
+		if(failed) this.failures.merge(holder, 1, Integer::sum);
+		else this.failures.put(holder, 0);
+		
+		return holder;
+	}
+	
+	/**
+	 * Handles the retransmission timeout of a chunk by resending its GETCHUNK message with twice
+	 * the timeout, or giving up on the restore if the chunk has used all its attempts.
+	 * 
+	 * @param peer the singleton Peer instance
+	 * @param state the Protocol State object relevant to this operation
+	 * @param chunkNo the chunk number whose timer expired
+	 * @return whether the chunk was requested again
+	 */
+	private boolean chunkTimeout(Peer peer, ProtocolState state, long chunkNo) throws IOException {
+		
+		long timeoutMS;
+		int attempt;
+		synchronized(this) {
 			
-			valid = true;
-			chunks = state.getRestoredChunks();
+			// Chunk may have arrived since its timer was found expired
+			if(!this.pending.containsKey(chunkNo)) return true;
 			
-			// Check that every expected chunk arrived
-			for(long i = this.currentStartChunkNo; i < this.currentStartChunkNo + limit; i++) {
-				
-				if(!chunks.containsKey(i)) valid = false;
+			// Restores that wanted the chunk may have been detached meanwhile
+			if(!this.isWanted(chunkNo)) {
+				this.pending.remove(chunkNo);
+				this.timeouts.remove(chunkNo);
+				this.attempts.remove(chunkNo);
+				this.release(chunkNo, false);
+				return true;
 			}
 			
-            timeElapsed = (System.currentTimeMillis() - timeBefore);
-		} while(!valid);
+			timeoutMS = this.timeouts.get(chunkNo);
+			attempt = this.attempts.get(chunkNo) + 1;
+			this.attempts.put(chunkNo, attempt);
+			
+			if(attempt >= Peer.maxAttempts) {
+				SystemManager.getInstance().logPrint("giving up on chunk " + chunkNo + " after " + attempt + " attempts", SystemManager.LogLevel.DEBUG);
+				this.stopped = true;
+				return false;
+			}
+		}
+		
+		// Double the timeout of this chunk and keep the channel timeout backed off until a new sample arrives
+		SystemManager.getInstance().logPrint("no CHUNK whithin " + timeoutMS + "ms for chunk " + chunkNo, SystemManager.LogLevel.DEBUG);
+		peer.getMdr().getRTT().backoff(timeoutMS);
+		int failed = this.release(chunkNo, true);
+		if(failed != noHolder) peer.getPeerRTT(failed).backoff(timeoutMS);
+		this.sendGetchunk(peer, state, chunkNo, Math.max(peer.getMdr().getRTT().getTimeoutMS(), 2 * timeoutMS), failed);
 		
-		this.receivedChunks += limit;
 		return true;
 	}
 	
 	/**
-	 * Writes a set of chunk data to a single file using the file path created previously.
+	 * Sends the GETCHUNK message for a chunk according to protocol version and sets its retransmission timer.
+	 * Enhanced Peers ask a single holder other than the one that timed out, if they know of any,
+	 * with that holder's own timeout.
 	 * 
 	 * @param peer the singleton Peer instance
 	 * @param state the Protocol State object relevant to this operation
+	 * @param chunkNo the chunk number to request
+	 * @param timeoutMS the time to wait for the CHUNK message before retransmitting
+	 * @param failed the holder that timed out, {@value #noHolder} for none
 	 */
-	private void writeRestoredChunks(Peer peer, ProtocolState state) throws IOException {
+	private void sendGetchunk(Peer peer, ProtocolState state, long chunkNo, long timeoutMS, int failed) throws IOException {
 		
-		ConcurrentHashMap<Long, byte[]> chunks = state.getRestoredChunks();
-
-		// Append binary data to form restored file
-		File chunk = new File(this.restoredFilepath);
-		FileOutputStream output = new FileOutputStream(chunk, true);
-		for(Map.Entry<Long, byte[]> entry : chunks.entrySet()) {
-			SystemManager.getInstance().logPrint("restored chunk no: " + entry.getKey(), SystemManager.LogLevel.VERBOSE);
-			output.write(entry.getValue());
+		int holder = noHolder;
+		if(!peer.getProtocolVersion().equals("1.0")) holder = this.chooseHolder(peer, this.findHolders(peer, state, chunkNo), failed);
+		
+		int attempt = this.armTimer(state, chunkNo, this.getHolderTimeoutMS(peer, holder, timeoutMS));
+		if(attempt < 0) return;
+		
+		if(holder != noHolder) {
+			this.assign(chunkNo, holder);
+			this.sendRange(peer, state, chunkNo, chunkNo, holder, attempt);
+			return;
+		}
+		
+		// The GETCHUNK may be delayed by the rate limit of user restores
+		long delayMS;
+		if(peer.getProtocolVersion().equals("1.0")) {
+			byte[] msg = state.getParser().createGetchunkMsg(peer.getPeerID(), state, chunkNo);
+			delayMS = peer.getMcc().send(msg, TrafficShaper.TrafficClass.USER_RESTORE);
+		} else {
+			byte[] msg = state.getParser().createEnhGetchunkMsg(peer.getPeerID(), state, chunkNo, peer.getRestoreAcceptor().getPort());
+			delayMS = this.sendToCandidates(peer, state, msg, attempt);
 		}
-		output.close();
 		
-		SystemManager.getInstance().logPrint("restored " + chunks.size() + " chunks", SystemManager.LogLevel.VERBOSE);
+		this.delayTimer(state, chunkNo, attempt, delayMS);
 	}
 	
 	/**
-	 * Creates the file path for restoring a file.
+	 * Returns the retransmission timeout of a request sent to a single holder, from the round trip
+	 * times measured for that holder once there are any, so a slow holder doesn't set the timeout
+	 * of the others.
 	 * 
 	 * @param peer the singleton Peer instance
+	 * @param holder the numeric identifier of the holder, {@value #noHolder} if none was chosen
+	 * @param timeoutMS the channel timeout, used without a holder or samples from it
+	 * @return the time to wait for the CHUNK message before retransmitting
+	 */
+	private long getHolderTimeoutMS(Peer peer, int holder, long timeoutMS) {
+		
+		if(holder == noHolder) return timeoutMS;
+		
+		RTTEstimator rtt = peer.getPeerRTTs().get(holder);
+		if(rtt == null || rtt.getSampleCount() == 0) return timeoutMS;
+		
+		return rtt.getTimeoutMS();
+	}
+	
+	/**
+	 * Sets the retransmission timer of a chunk about to be requested.
+	 * 
 	 * @param state the Protocol State object relevant to this operation
+	 * @param chunkNo the chunk number about to be requested
+	 * @param timeoutMS the time to wait for the CHUNK message before retransmitting
+	 * @return the number of previous attempts for the chunk, -1 if it arrived meanwhile
 	 */
-	private void createRestoredPath(Peer peer, ProtocolState state) throws IOException {
+	private int armTimer(ProtocolState state, long chunkNo, long timeoutMS) {
+		
+		// Jitter keeps chunks that timed out together from being retransmitted together
+		long jitterMS = (long) (ThreadLocalRandom.current().nextDouble() * jitterFraction * timeoutMS);
 		
-		// Create filepaths for restored file
-		String folderPath = "../" + Peer.restoredFolderName;
-		String[] split = this.fileInfo.getFilename().split("[.]");
+		int attempt;
+		synchronized(this) {
+			
+			// Chunk may have arrived since its timer was found expired
+			Integer attempts = this.attempts.get(chunkNo);
+			if(attempts == null) return -1;
+			
+			attempt = attempts;
+			this.pending.put(chunkNo, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMS + jitterMS));
+			this.timeouts.put(chunkNo, timeoutMS);
+		}
 		
-		// Get current date/time
-		DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH-mm-ss"); 
-	    Date date = new Date();  
-	    String dateString = dateFormat.format(date);
+		// Only first transmissions produce round trip time samples
+		if(attempt == 0) state.getSentTimes().put(chunkNo, System.nanoTime());
+		else state.getSentTimes().remove(chunkNo);
 		
-		String restoredFilepath;
-		if(split.length <= 1) {
-			restoredFilepath = folderPath + "/" + dateString + " - " + this.fileInfo.getFilename() + Peer.restoredSuffix + "_" + peer.getPeerID();
-		} else {
-			split[split.length - 2] = split[split.length - 2] + Peer.restoredSuffix + "_" + peer.getPeerID();
-			restoredFilepath = folderPath + "/" + dateString + " - " + String.join(".", split);
+		return attempt;
+	}
+	
+	/**
+	 * Pushes back the retransmission timer of a chunk by the time its request waits for the traffic shaper.
+	 * 
+	 * @param state the Protocol State object relevant to this operation
+	 * @param chunkNo the chunk number requested
+	 * @param attempt the number of previous attempts for the chunk
+	 * @param delayMS the delay in milliseconds before the request is actually sent
+	 */
+	private void delayTimer(ProtocolState state, long chunkNo, int attempt, long delayMS) {
+		
+		if(delayMS == 0) return;
+		
+		synchronized(this) {
+			Long deadline = this.pending.get(chunkNo);
+			if(deadline != null) this.pending.put(chunkNo, deadline + TimeUnit.MILLISECONDS.toNanos(delayMS));
 		}
-
-		peer.createDirIfNotExists(folderPath);
-		this.restoredFilepath = restoredFilepath;
 		
-		SystemManager.getInstance().logPrint("restoring file in \"" + restoredFilepath + "\"", SystemManager.LogLevel.DEBUG);
+		if(attempt == 0) state.getSentTimes().computeIfPresent(chunkNo, (key, sentTime) -> sentTime + TimeUnit.MILLISECONDS.toNanos(delayMS));
 	}
 	
 	/**
-	 * Deletes a restored file using the file path created previously.
+	 * Sends an enhanced GETCHUNK message directly to the Peers whose summary indicates they might
+	 * store the file, falls back to the multicast control channel if no candidate is known or a
+	 * previous round of candidates went unanswered, as the summaries may be out of date.
 	 * 
 	 * @param peer the singleton Peer instance
 	 * @param state the Protocol State object relevant to this operation
+	 * @param msg the GETCHUNK message to send
+	 * @param attempt the number of previous attempts for the chunks
+	 * @return the delay in milliseconds before the last copy of the message is actually sent
+	 */
+	private long sendToCandidates(Peer peer, ProtocolState state, byte[] msg, int attempt) throws IOException {
+		
+		ArrayList<SummaryInfo> candidates = peer.findCandidateHolders(state.getHashHex());
+		
+		if(candidates.size() == 0 || attempt > 0) {
+			return peer.getMcc().send(msg, TrafficShaper.TrafficClass.USER_RESTORE);
+		}
+		
+		SystemManager.getInstance().logPrint("sending GETCHUNK to " + candidates.size() + " candidate holders", SystemManager.LogLevel.VERBOSE);
+		long delayMS = 0;
+		for(SummaryInfo candidate : candidates) {
+			delayMS = Math.max(delayMS, peer.getUcc().send(msg, candidate.getAddress(), candidate.getPort(), TrafficShaper.TrafficClass.USER_RESTORE));
+		}
+		
+		return delayMS;
+	}
+	
+	/**
+	 * Writes a chunk received through a CHUNK message to the sink and frees its slot in the window.
+	 * Chunks multicast for other Peers restoring the file are taken before being requested, unless
+	 * the sinks already hold a window of chunks in memory, other chunks that weren't requested or
+	 * already arrived are ignored.
+	 * 
+	 * @param chunkNo the chunk number
+	 * @param data the decrypted chunk data
 	 */
-	private void deleteRestoredFile(Peer peer, ProtocolState state) {
+	public void chunkReceived(long chunkNo, byte[] data) {
+		this.deliverChunk(chunkNo, data, false, true);
+	}
+	
+	/**
+	 * @param chunkNo the chunk number
+	 * @return whether the chunk is wanted by an attached restore but wasn't requested yet
+	 */
+	private synchronized boolean isUnrequested(long chunkNo) {
+		return chunkNo >= 0 && chunkNo < this.fileInfo.getTotalChunks() && this.unrequested.get((int) chunkNo) && this.isWanted(chunkNo);
+	}
+	
+	/**
+	 * Writes a chunk received or read locally to the sink and frees its slot in the window.
+	 * Chunks that weren't requested or already arrived are ignored.
+	 * 
+	 * @param chunkNo the chunk number
+	 * @param data the decrypted chunk data
+	 * @param local whether the chunk was read from this Peer's storage
+	 * @param adopt whether a chunk not requested yet may be taken
+	 */
+	private void deliverChunk(long chunkNo, byte[] data, boolean local, boolean adopt) {
 		
-		File restored = new File(this.restoredFilepath);
-		if(restored.exists()) restored.delete();
+		// Claim the chunk so a duplicate CHUNK arriving meanwhile isn't written twice
+		ArrayList<RestoreRequest> waiting = new ArrayList<RestoreRequest>();
+		synchronized(this) {
+			if(this.stopped) return;
+			
+			if(this.pending.remove(chunkNo) != null) {
+				this.timeouts.remove(chunkNo);
+				this.attempts.remove(chunkNo);
+				this.release(chunkNo, false);
+			} else if(adopt && this.isUnrequested(chunkNo) && this.getBufferedChunks() < Peer.getInstance().getRestoreWindow()) {
+				SystemManager.getInstance().logPrint("taking chunk " + chunkNo + " multicast for another Peer", SystemManager.LogLevel.VERBOSE);
+				this.unrequested.clear((int) chunkNo);
+			} else {
+				return;
+			}
+			
+			// Every restore attached while the chunk was in flight gets it as well
+			for(RestoreRequest request : this.requests) {
+				if(request.claim(chunkNo)) waiting.add(request);
+			}
+		}
+		
+		SystemManager.getInstance().logPrint("restored " + (local ? "local" : "remote") + " chunk no: " + chunkNo, SystemManager.LogLevel.VERBOSE);
+		
+		for(RestoreRequest request : waiting) {
+			
+			boolean done;
+			try {
+				done = request.write(chunkNo, data, local);
+			} catch(IOException e) {
+				
+				// Sink is closed once the restore is cancelled
+				if(!request.isCancelled()) {
+					SystemManager.getInstance().logPrint("I/O Exception writing restored chunk " + chunkNo + "!", SystemManager.LogLevel.NORMAL);
+					e.printStackTrace();
+				}
+				
+				this.detach(request);
+				continue;
+			}
+			
+			if(done) this.detach(request);
+		}
+		
+		// Wake the GETCHUNK loop, the chunk's slot in the window is free
+		synchronized(this) {
+			this.notifyAll();
+		}
 	}
 }
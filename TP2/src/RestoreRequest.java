@@ -0,0 +1,259 @@
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
+
+public class RestoreRequest {
+
+	private String filepath;
+	private RestoreSink sink;
+	private Job job;
+
+	// Range of the file to restore in bytes, a negative length restores up to the end of the file
+	private long offset;
+	private long length;
+	private long firstChunkNo;
+	private long lastChunkNo;
+
+	// Chunks claimed for this request, and how many of them were written to the sink
+	private BitSet claimed = new BitSet();
+	private long writtenChunks = 0;
+
+	// Restore fetching the chunks, null until attached
+	private RestoreProtocol pipeline = null;
+	private boolean cancelled = false;
+
+	// Whether the range was found to start past the end of the file once its first chunk arrived
+	private boolean pastEnd = false;
+
+	/**
+	 * Restore of a range of a file requested on this Peer, with its own sink and job. Restores of
+	 * the same file running at once on this Peer are attached to a single RESTORE protocol, which
+	 * fetches each chunk once and writes it to every request whose range covers it.
+	 *
+	 * @param filepath the file path to restore
+	 * @param offset the position of the first byte to restore
+	 * @param length the number of bytes to restore, negative for up to the end of the file
+	 * @param sink where the restored chunks are written
+	 * @param job the job to report progress to
+	 */
+	public RestoreRequest(String filepath, long offset, long length, RestoreSink sink, Job job) {
+		this.filepath = filepath;
+		this.offset = offset;
+		this.sink = sink;
+
+		// Ranges ending past the largest position can't be added up, they restore up to the end of the file
+		this.length = (length > Long.MAX_VALUE - offset) ? -1 : length;
+		this.job = job;
+	}
+
+	/**
+	 * Maps the range to the chunks covering it, the last chunk of the file may end before the range.
+	 * Without the file size the range may still start past the end inside the last chunk, which
+	 * is only found once that chunk arrives.
+	 *
+	 * @param fileInfo the object containing info about the file
+	 * @return whether the range covers any chunk of the file
+	 */
+	public boolean setRange(FileInfo fileInfo) {
+
+		if(startsPastEnd(fileInfo, this.offset)) return false;
+
+		int chunkSize = ProtocolState.getChunksize();
+		this.firstChunkNo = this.offset / chunkSize;
+		this.lastChunkNo = fileInfo.getTotalChunks() - 1;
+		if(this.length >= 0) this.lastChunkNo = Math.min(this.lastChunkNo, (this.offset + this.length - 1) / chunkSize);
+
+		if(this.firstChunkNo > this.lastChunkNo) return false;
+
+		this.job.addChunks(this.getChunkCount());
+		return true;
+	}
+
+	/**
+	 * @param fileInfo the object containing info about the file, null if unknown
+	 * @param offset the position of the first byte to restore
+	 * @return whether the file size is known and the range starts at or past it
+	 */
+	public static boolean startsPastEnd(FileInfo fileInfo, long offset) {
+		return fileInfo != null && fileInfo.getFileSize() != null && offset > 0 && offset >= fileInfo.getFileSize();
+	}
+
+	/**
+	 * Prepares the sink for the chunks of the range.
+	 *
+	 * @param fileInfo the object containing info about the file
+	 */
+	public void open(FileInfo fileInfo) throws IOException {
+		this.sink.open(fileInfo, this.getChunkCount(), () -> this.sinkDrained());
+	}
+
+	/**
+	 * Wakes the restore this request is attached to when the sink releases chunks it held.
+	 */
+	private void sinkDrained() {
+
+		RestoreProtocol pipeline;
+		synchronized(this) {
+			pipeline = this.pipeline;
+		}
+
+		if(pipeline != null) pipeline.sinkDrained();
+	}
+
+	/**
+	 * Attaches the request to the restore fetching its chunks, unless it was cancelled meanwhile.
+	 *
+	 * @param pipeline the restore fetching the chunks
+	 * @return whether the request was attached
+	 */
+	public synchronized boolean attachTo(RestoreProtocol pipeline) {
+
+		if(this.cancelled) return false;
+
+		this.pipeline = pipeline;
+		return true;
+	}
+
+	/**
+	 * Cancels the request, chunks arriving from now on are no longer written to its sink.
+	 *
+	 * @return the restore the request is attached to, null if none
+	 */
+	public synchronized RestoreProtocol cancel() {
+
+		this.cancelled = true;
+		return this.pipeline;
+	}
+
+	/**
+	 * Claims a chunk for this request, so a chunk is written once even if it arrives twice.
+	 *
+	 * @param chunkNo the chunk number
+	 * @return whether the chunk is in the range and wasn't claimed before
+	 */
+	public synchronized boolean claim(long chunkNo) {
+
+		if(this.cancelled || chunkNo < this.firstChunkNo || chunkNo > this.lastChunkNo) return false;
+
+		int index = (int) (chunkNo - this.firstChunkNo);
+		if(this.claimed.get(index)) return false;
+
+		this.claimed.set(index);
+		return true;
+	}
+
+	/**
+	 * @param chunkNo the chunk number
+	 * @return whether the chunk is in the range and wasn't claimed yet
+	 */
+	public synchronized boolean wants(long chunkNo) {
+
+		if(this.cancelled || chunkNo < this.firstChunkNo || chunkNo > this.lastChunkNo) return false;
+		return !this.claimed.get((int) (chunkNo - this.firstChunkNo));
+	}
+
+	/**
+	 * Trims a claimed chunk to the range and writes it to the sink.
+	 *
+	 * @param chunkNo the chunk number
+	 * @param data the decrypted chunk data
+	 * @param local whether the chunk was read from this Peer's storage
+	 * @return whether every chunk of the range has been written
+	 */
+	public boolean write(long chunkNo, byte[] data, boolean local) throws IOException {
+
+		long chunkStart = chunkNo * ProtocolState.getChunksize();
+
+		// First chunk of the range ending before the offset, the range starts past the end of the file
+		if(chunkNo == this.firstChunkNo && this.offset > 0 && this.offset - chunkStart >= data.length) {
+			synchronized(this) {
+				this.pastEnd = true;
+			}
+			SystemManager.getInstance().logPrint("range is past the end of " + this.filepath, SystemManager.LogLevel.NORMAL);
+		}
+
+		int from = (int) Math.min(data.length, Math.max(0, this.offset - chunkStart));
+		int to = data.length;
+		if(this.length >= 0) to = (int) Math.max(from, Math.min(to, this.offset + this.length - chunkStart));
+		byte[] trimmed = (from == 0 && to == data.length) ? data : Arrays.copyOfRange(data, from, to);
+
+		this.sink.write(chunkNo - this.firstChunkNo, Math.max(0, chunkStart + from - this.offset), trimmed);
+
+		if(local) this.job.localChunkDone(trimmed.length);
+		else this.job.chunkDone(trimmed.length, false);
+
+		synchronized(this) {
+			this.writtenChunks++;
+			return this.writtenChunks == this.getChunkCount();
+		}
+	}
+
+	/**
+	 * Finishes the restored data, or discards it if some chunk is missing, and ends the job.
+	 *
+	 * @return whether the restored data is complete
+	 */
+	public boolean finish() {
+
+		boolean restored;
+		synchronized(this) {
+			restored = !this.cancelled && !this.pastEnd && this.writtenChunks == this.getChunkCount();
+		}
+
+		restored = this.sink.close(restored);
+		this.job.finish(restored);
+		return restored;
+	}
+
+	/**
+	 * @return the description of the restore used in log messages
+	 */
+	public String getDescription() {
+
+		String resMsg = "restore: " + this.filepath;
+		if(this.offset > 0 || this.length >= 0) resMsg += " from byte " + this.offset + ((this.length >= 0) ? " for " + this.length + " bytes" : " to the end");
+		return resMsg;
+	}
+
+	/**
+	 * @return the number of chunks covering the range
+	 */
+	public long getChunkCount() {
+		return this.lastChunkNo - this.firstChunkNo + 1;
+	}
+
+	/**
+	 * @return the number of chunks written but still held in memory by the sink
+	 */
+	public int getBufferedChunks() {
+		return this.sink.getBufferedChunks();
+	}
+
+	/**
+	 * @return the first chunk number of the range
+	 */
+	public long getFirstChunkNo() {
+		return firstChunkNo;
+	}
+
+	/**
+	 * @return the last chunk number of the range, inclusive
+	 */
+	public long getLastChunkNo() {
+		return lastChunkNo;
+	}
+
+	/**
+	 * @return the job to report progress to
+	 */
+	public Job getJob() {
+		return job;
+	}
+
+	/**
+	 * @return whether the request was cancelled
+	 */
+	public synchronized boolean isCancelled() {
+		return cancelled;
+	}
+}
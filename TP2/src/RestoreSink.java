@@ -0,0 +1,43 @@
+import java.io.IOException;
+
+/**
+ * Destination of the chunks of a restore.
+ * <br><br>
+ * Chunks are written in whatever order their CHUNK messages arrive, trimmed to the range of the
+ * file being restored. Sinks that hold chunks in memory report how many, and the restore requests
+ * that many fewer chunks ahead, so a restore never holds more than its window of chunks regardless
+ * of the file size.
+ */
+public interface RestoreSink {
+
+	/**
+	 * Prepares the sink for the chunks of a file.
+	 *
+	 * @param fileInfo the object containing info about the file
+	 * @param chunkCount the number of chunks restored
+	 * @param drained called whenever chunks held in memory are released
+	 */
+	void open(FileInfo fileInfo, long chunkCount, Runnable drained) throws IOException;
+
+	/**
+	 * Writes a chunk of the file, chunks may arrive in any order but only once each.
+	 *
+	 * @param index the order of the chunk among the chunks restored, starting at 0
+	 * @param position the position of the data in the restored contents
+	 * @param data the decrypted chunk data, trimmed to the range restored
+	 */
+	void write(long index, long position, byte[] data) throws IOException;
+
+	/**
+	 * @return the number of chunks written but still held in memory
+	 */
+	int getBufferedChunks();
+
+	/**
+	 * Finishes the restored data, or discards it if the restore failed.
+	 *
+	 * @param restored whether every chunk was written
+	 * @return whether the restored data is complete
+	 */
+	boolean close(boolean restored);
+}
@@ -20,6 +20,11 @@ public class SecurityHandler {
 	public static final int encryptSizeBit = 128;
 	public static final int encryptSizeByte = 16;
 	
+	// Initialised MAC and ciphers of each thread, reused for every message since they reset after each use
+	private static final ThreadLocal<Mac> macs = ThreadLocal.withInitial(() -> createMac());
+	private static final ThreadLocal<Cipher> encryptCiphers = ThreadLocal.withInitial(() -> createCipher(Cipher.ENCRYPT_MODE));
+	private static final ThreadLocal<Cipher> decryptCiphers = ThreadLocal.withInitial(() -> createCipher(Cipher.DECRYPT_MODE));
+	
 	/**
 	 * Computes a MAC using SHA256 and returns it in textual hex representation.
 	 * 
@@ -27,39 +32,9 @@ public class SecurityHandler {
 	 * @return the computed MAC
 	 */
 	public static String computeMAC(byte[] data) throws IOException {
-		
-		Mac sha256_HMAC = null;
-		try {
-			sha256_HMAC = Mac.getInstance("HmacSHA256");
-		} catch(NoSuchAlgorithmException e) {
-			SystemManager.getInstance().logPrint("HMAC SHA256 algorithm not found!", SystemManager.LogLevel.NORMAL);
-			e.printStackTrace();
-			System.exit(-1);
-		}
-		
-		SecretKey sk = null;
-		try {
-			sk = Peer.getInstance().getKsManager().getKey(Peer.macAlias);
-		} catch(NoSuchAlgorithmException e) {
-			SystemManager.getInstance().logPrint("HMAC SHA256 algorithm not found!", SystemManager.LogLevel.NORMAL);
-			e.printStackTrace();
-			System.exit(-1);
-		} catch(CertificateException | KeyStoreException | UnrecoverableEntryException e) {
-			SystemManager.getInstance().logPrint("Exception retrieving key from keystore!", SystemManager.LogLevel.NORMAL);
-			e.printStackTrace();
-			System.exit(-1);
-		}
-		
-		try {
-			sha256_HMAC.init(sk);
-		} catch (InvalidKeyException e) {
-			SystemManager.getInstance().logPrint("Invalid key for HMAC SHA256!", SystemManager.LogLevel.NORMAL);
-			e.printStackTrace();
-			System.exit(-1);
-		}
 
 		// Finish MAC operation and return the array
-		byte[] mac = sha256_HMAC.doFinal(data);
+		byte[] mac = macs.get().doFinal(data);
 		String hex = DatatypeConverter.printHexBinary(mac);
 		SystemManager.getInstance().logPrint("Computed MAC: " + hex, SystemManager.LogLevel.VERBOSE);
 		return hex;
@@ -73,58 +48,83 @@ public class SecurityHandler {
 	 */
 	public static byte[] encryptAES128(byte[] data) throws IOException {
 		
-		SecretKey sk = null;
 		try {
-			sk = Peer.getInstance().getKsManager().getKey(Peer.encryptAlias);
-		} catch(NoSuchAlgorithmException e) {
-			SystemManager.getInstance().logPrint("AES-128 algorithm not found!", SystemManager.LogLevel.NORMAL);
+			return encryptCiphers.get().doFinal(data);
+		} catch(IllegalBlockSizeException | BadPaddingException e) {
+			SystemManager.getInstance().logPrint("Exception running cipher!", SystemManager.LogLevel.NORMAL);
 			e.printStackTrace();
 			System.exit(-1);
-		} catch(CertificateException | KeyStoreException | UnrecoverableEntryException e) {
-			SystemManager.getInstance().logPrint("Exception retrieving key from keystore!", SystemManager.LogLevel.NORMAL);
+		}
+		
+		return data;
+	}
+	
+	/**
+	 * Decrypts binary data using AES-128 algorithm.
+	 * 
+	 * @param data the data to decrypt
+	 * @return the decrypted data
+	 */
+	public static byte[] decryptAES128(byte[] data) throws IOException {
+		
+		try {
+			return decryptCiphers.get().doFinal(data);
+		} catch(IllegalBlockSizeException | BadPaddingException e) {
+			SystemManager.getInstance().logPrint("Exception running cipher!", SystemManager.LogLevel.NORMAL);
 			e.printStackTrace();
 			System.exit(-1);
 		}
 		
-		Cipher cipher = null;
+		return data;
+	}
+	
+	/**
+	 * Creates a HMAC SHA256 instance initialised with the secret key from the keystore.
+	 * 
+	 * @return the MAC instance
+	 */
+	private static Mac createMac() {
+		
+		Mac sha256_HMAC = null;
 		try {
-			cipher = Cipher.getInstance("AES/ECB/PKCS5Padding");
+			sha256_HMAC = Mac.getInstance("HmacSHA256");
 		} catch(NoSuchAlgorithmException e) {
-			SystemManager.getInstance().logPrint("AES-128 algorithm not found!", SystemManager.LogLevel.NORMAL);
-			e.printStackTrace();
-			System.exit(-1);
-		} catch(NoSuchPaddingException e) {
-			SystemManager.getInstance().logPrint("PKCS5 padding not found!", SystemManager.LogLevel.NORMAL);
+			SystemManager.getInstance().logPrint("HMAC SHA256 algorithm not found!", SystemManager.LogLevel.NORMAL);
 			e.printStackTrace();
 			System.exit(-1);
 		}
 		
+		SecretKey sk = null;
 		try {
-			cipher.init(Cipher.ENCRYPT_MODE, sk);
-		} catch (InvalidKeyException e) {
-			SystemManager.getInstance().logPrint("Invalid key for AES-128!", SystemManager.LogLevel.NORMAL);
+			sk = Peer.getInstance().getKsManager().getKey(Peer.macAlias);
+		} catch(NoSuchAlgorithmException e) {
+			SystemManager.getInstance().logPrint("HMAC SHA256 algorithm not found!", SystemManager.LogLevel.NORMAL);
+			e.printStackTrace();
+			System.exit(-1);
+		} catch(IOException | CertificateException | KeyStoreException | UnrecoverableEntryException e) {
+			SystemManager.getInstance().logPrint("Exception retrieving key from keystore!", SystemManager.LogLevel.NORMAL);
 			e.printStackTrace();
 			System.exit(-1);
 		}
 		
 		try {
-			return cipher.doFinal(data);
-		} catch(IllegalBlockSizeException | BadPaddingException e) {
-			SystemManager.getInstance().logPrint("Exception running cipher!", SystemManager.LogLevel.NORMAL);
+			sha256_HMAC.init(sk);
+		} catch (InvalidKeyException e) {
+			SystemManager.getInstance().logPrint("Invalid key for HMAC SHA256!", SystemManager.LogLevel.NORMAL);
 			e.printStackTrace();
 			System.exit(-1);
 		}
 		
-		return data;
+		return sha256_HMAC;
 	}
 	
 	/**
-	 * Decrypts binary data using AES-128 algorithm.
+	 * Creates an AES-128 cipher initialised with the secret key from the keystore.
 	 * 
-	 * @param data the data to decrypt
-	 * @return the decrypted data
+	 * @param mode the cipher mode, encryption or decryption
+	 * @return the cipher instance
 	 */
-	public static byte[] decryptAES128(byte[] data) throws IOException {
+	private static Cipher createCipher(int mode) {
 		
 		SecretKey sk = null;
 		try {
@@ -133,7 +133,7 @@ public class SecurityHandler {
 			SystemManager.getInstance().logPrint("AES-128 algorithm not found!", SystemManager.LogLevel.NORMAL);
 			e.printStackTrace();
 			System.exit(-1);
-		} catch(CertificateException | KeyStoreException | UnrecoverableEntryException e) {
+		} catch(IOException | CertificateException | KeyStoreException | UnrecoverableEntryException e) {
 			SystemManager.getInstance().logPrint("Exception retrieving key from keystore!", SystemManager.LogLevel.NORMAL);
 			e.printStackTrace();
 			System.exit(-1);
@@ -153,21 +153,13 @@ public class SecurityHandler {
 		}
 		
 		try {
-			cipher.init(Cipher.DECRYPT_MODE, sk);
+			cipher.init(mode, sk);
 		} catch (InvalidKeyException e) {
 			SystemManager.getInstance().logPrint("Invalid key for AES-128!", SystemManager.LogLevel.NORMAL);
 			e.printStackTrace();
 			System.exit(-1);
 		}
 		
-		try {
-			return cipher.doFinal(data);
-		} catch(IllegalBlockSizeException | BadPaddingException e) {
-			SystemManager.getInstance().logPrint("Exception running cipher!", SystemManager.LogLevel.NORMAL);
-			e.printStackTrace();
-			System.exit(-1);
-		}
-		
-		return data;
+		return cipher;
 	}
 }
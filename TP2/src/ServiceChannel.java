@@ -3,16 +3,23 @@ import java.net.DatagramPacket;
 import java.net.InetAddress;
 import java.net.MulticastSocket;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 public class ServiceChannel implements Runnable {
 
 	private static final int packetSize = 65000;
 
+	// Room for a full restore window of CHUNK messages arriving at once
+	private static final int receiveBufferSize = 4 * 1024 * 1024;
+
 	// Multicast socket settings
 	private InetAddress addr;
 	private int port;
 	private String channelName;
+	private boolean isMulticast;
 	private MulticastSocket socket;
+	private RTTEstimator rtt = new RTTEstimator();
+	private CongestionController congestion = new CongestionController(rtt);
 	private LinkedBlockingQueue<DatagramPacket> messages = new LinkedBlockingQueue<DatagramPacket>();
 
 	/**
@@ -28,9 +35,35 @@ public class ServiceChannel implements Runnable {
 		this.addr = addr;
 		this.port = port;
 		this.channelName = channelName;
+		this.isMulticast = true;
 
 		try {
 			this.socket = new MulticastSocket(port);
+			this.socket.setReceiveBufferSize(receiveBufferSize);
+		} catch(IOException e) {
+
+			String msg = "failed to open socket with name \"" + channelName + "\"";
+			SystemManager.getInstance().logPrint(msg, SystemManager.LogLevel.NORMAL);
+			e.printStackTrace();
+			System.exit(-1);
+		}
+	}
+
+	/**
+	 * A unicast Service Channel receives UDP packets sent directly to this Peer on an ephemeral port
+	 * and sends UDP packets directly to other Peers.
+	 * 
+	 * @param channelName the channel name
+	 */
+	public ServiceChannel(String channelName) {
+
+		this.channelName = channelName;
+		this.isMulticast = false;
+
+		try {
+			this.socket = new MulticastSocket(0);
+			this.socket.setReceiveBufferSize(receiveBufferSize);
+			this.port = this.socket.getLocalPort();
 		} catch(IOException e) {
 
 			String msg = "failed to open socket with name \"" + channelName + "\"";
@@ -53,25 +86,107 @@ public class ServiceChannel implements Runnable {
 		String msg = "receiving packets on \"" + this.channelName + "\"";
 		SystemManager.getInstance().logPrint(msg, SystemManager.LogLevel.DEBUG);
 
-		socket.joinGroup(this.addr);
-		socket.receive(packet);
-		socket.leaveGroup(this.addr);
+		if(this.isMulticast) {
+			socket.joinGroup(this.addr);
+			socket.receive(packet);
+			socket.leaveGroup(this.addr);
+		} else socket.receive(packet);
 
 		return packet;
 	}
 
 	/**
-	 * Sends a packet on the UDP socket.
+	 * Sends a control packet on the UDP socket.
 	 * 
 	 * @param data the data to send
 	 */
-	public synchronized void send(byte[] data) throws IOException {
+	public void send(byte[] data) throws IOException {
+		this.send(data, TrafficShaper.TrafficClass.CONTROL);
+	}
+
+	/**
+	 * Sends a packet on the UDP socket, paced by the rate of its traffic class.
+	 * 
+	 * @param data the data to send
+	 * @param trafficClass the traffic class the data belongs to
+	 * @return the delay in milliseconds before the packet is actually sent
+	 */
+	public long send(byte[] data, TrafficShaper.TrafficClass trafficClass) throws IOException {
 
 		DatagramPacket packet = new DatagramPacket(data, data.length, this.addr, this.port);
 
 		String sent = "sending packets on \"" + this.channelName + "\"";
 		SystemManager.getInstance().logPrint(sent, SystemManager.LogLevel.DEBUG);
 
+		return this.sendPaced(packet, trafficClass);
+	}
+
+	/**
+	 * Sends a control packet on the UDP socket directly to the specified destination.
+	 * 
+	 * @param data the data to send
+	 * @param addr the destination address
+	 * @param port the destination port
+	 */
+	public void send(byte[] data, InetAddress addr, int port) throws IOException {
+		this.send(data, addr, port, TrafficShaper.TrafficClass.CONTROL);
+	}
+
+	/**
+	 * Sends a packet on the UDP socket directly to the specified destination, paced by the rate of its traffic class.
+	 * 
+	 * @param data the data to send
+	 * @param addr the destination address
+	 * @param port the destination port
+	 * @param trafficClass the traffic class the data belongs to
+	 * @return the delay in milliseconds before the packet is actually sent
+	 */
+	public long send(byte[] data, InetAddress addr, int port, TrafficShaper.TrafficClass trafficClass) throws IOException {
+
+		DatagramPacket packet = new DatagramPacket(data, data.length, addr, port);
+
+		String sent = "sending packets on \"" + this.channelName + "\" to " + addr.getHostAddress() + ":" + port;
+		SystemManager.getInstance().logPrint(sent, SystemManager.LogLevel.DEBUG);
+
+		return this.sendPaced(packet, trafficClass);
+	}
+
+	/**
+	 * Sends a packet immediately if its traffic class has tokens for it, otherwise schedules it
+	 * on the Peer's executor for when the tokens become available.
+	 * 
+	 * @param packet the packet to send
+	 * @param trafficClass the traffic class the packet belongs to
+	 * @return the delay in milliseconds before the packet is actually sent
+	 */
+	private long sendPaced(DatagramPacket packet, TrafficShaper.TrafficClass trafficClass) throws IOException {
+
+		Peer peer = Peer.getInstance();
+		long delayNS = peer.getShaper().reserve(trafficClass, packet.getLength());
+
+		if(delayNS == 0) {
+			this.sendPacket(packet);
+			return 0;
+		}
+
+		peer.getExecutor().schedule(() -> {
+			try {
+				this.sendPacket(packet);
+			} catch(IOException e) {
+				SystemManager.getInstance().logPrint("I/O Exception sending paced packet on \"" + this.channelName + "\"!", SystemManager.LogLevel.NORMAL);
+				e.printStackTrace();
+			}
+		}, delayNS, TimeUnit.NANOSECONDS);
+
+		return TimeUnit.NANOSECONDS.toMillis(delayNS);
+	}
+
+	/**
+	 * Sends a packet on the UDP socket.
+	 * 
+	 * @param packet the packet to send
+	 */
+	private synchronized void sendPacket(DatagramPacket packet) throws IOException {
 		this.socket.send(packet);
 	}
 
@@ -94,6 +209,27 @@ public class ServiceChannel implements Runnable {
 		}
 	}
 
+	/**
+	 * @return the local port the socket is bound to
+	 */
+	public int getLocalPort() {
+		return this.socket.getLocalPort();
+	}
+
+	/**
+	 * @return the round trip time estimator for requests sent on this channel
+	 */
+	public RTTEstimator getRTT() {
+		return rtt;
+	}
+
+	/**
+	 * @return the congestion controller shared by every request sent on this channel
+	 */
+	public CongestionController getCongestion() {
+		return congestion;
+	}
+
 	/**
 	 * @return the queue of received messages
 	 */
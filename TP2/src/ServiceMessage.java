@@ -3,6 +3,7 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 
@@ -29,10 +30,14 @@ public class ServiceMessage {
 	private static final int removedMinMsgLen = 5;
 	private static final int startedMinMsgLen = 3;
 	private static final int enhancedGetchunkMinMsgLen = 6;
+	private static final int getchunksMinMsgLen = 7;
+	private static final int directedGetchunksMsgLen = 8;
 	private static final int retrieveMinMsgLen = 4;
 	private static final int infoMinMsgLen = 7;
+	private static final int summaryMinMsgLen = 4;
 	
 	private static final int maxChunkNo = 1000000;
+	private static final int maxRangeChunks = 1024;
 	private static final int minRepDeg = 1;
 	private static final int maxRepDeg = 9;
 	
@@ -49,6 +54,9 @@ public class ServiceMessage {
 	// Enhanced RESTORE header indices
 	public static final int addressI = 5;
 	
+	// Flag of GETCHUNKS messages sent to a single holder
+	public static final String directedFlag = "DIRECTED";
+	
 	// Strict service message parsing flag
 	private static final boolean ignoreMinorErrors = false;
 	
@@ -63,23 +71,14 @@ public class ServiceMessage {
 	 * @param peerID the numeric identifier of the sending Peer
 	 * @param state the Protocol State object relevant to this operation
 	 * @param chunkNo the chunk number relevant to this operation
+	 * @param buf the chunk data read from the file, encrypted into the body
+	 * @param nRead the number of bytes of chunk data, 0 or less if the chunk is empty
 	 * @return the binary data representing the message
 	 */
-	public byte[] createPutchunkMsg(int peerID, ProtocolState state, Long chunkNo) throws IOException {
-
-		// Get binary file data
-	    byte[] buf = new byte[dataSize];
-		int nRead = this.getData(state.getFilepath(), chunkNo, buf, false);
+	public byte[] createPutchunkMsg(int peerID, ProtocolState state, long chunkNo, byte[] buf, int nRead) throws IOException {
 		
 		byte[] data = null;
-		if(nRead > 0) {
-			
-			ByteArrayOutputStream output = new ByteArrayOutputStream();
-			output.write(buf, 0, nRead);
-			byte[] bodyData = output.toByteArray();
-			
-			data = SecurityHandler.encryptAES128(bodyData);
-		}
+		if(nRead > 0) data = SecurityHandler.encryptAES128((nRead == buf.length) ? buf : Arrays.copyOf(buf, nRead));
 		
         String readMsg = "putchunk nRead: " + nRead;
         SystemManager.getInstance().logPrint(readMsg, SystemManager.LogLevel.VERBOSE);
@@ -87,7 +86,7 @@ public class ServiceMessage {
 	    // Merge header and body to single byte[]
         String header = "PUTCHUNK " + state.getProtocolVersion() + " " + peerID + " " + state.getHashHex() + " " + chunkNo + " " + state.getDesiredRepDeg() + headerTermination;
 	    
-        SystemManager.getInstance().logPrint("sending: " + header.trim(), SystemManager.LogLevel.SERVICE_MSG);
+        SystemManager.getInstance().logPrint("prepared: " + header.trim(), SystemManager.LogLevel.SERVICE_MSG);
 		
         byte[] msg;
 		if(nRead <= 0) msg = header.getBytes();
@@ -146,11 +145,12 @@ public class ServiceMessage {
 	 * 
 	 * @param peerID the numeric identifier of the sending Peer
 	 * @param state the Protocol State object relevant to this operation
+	 * @param chunkNo the chunk number relevant to this operation
 	 * @return the binary data representing the message
 	 */
-	public byte[] createGetchunkMsg(int peerID, ProtocolState state) throws IOException {
+	public byte[] createGetchunkMsg(int peerID, ProtocolState state, Long chunkNo) throws IOException {
 
-		String header = "GETCHUNK " + state.getProtocolVersion() + " " + peerID + " " + state.getHashHex() + " " + state.getCurrentChunkNo() + headerTermination;
+		String header = "GETCHUNK " + state.getProtocolVersion() + " " + peerID + " " + state.getHashHex() + " " + chunkNo + headerTermination;
         
 		SystemManager.getInstance().logPrint("sending: " + header.trim().replaceAll(lineTermination, " / "), SystemManager.LogLevel.SERVICE_MSG);
         return this.appendMAC(header.getBytes());
@@ -161,19 +161,41 @@ public class ServiceMessage {
 	 * 
 	 * @param peerID the numeric identifier of the sending Peer
 	 * @param state the Protocol State object relevant to this operation
+	 * @param chunkNo the chunk number relevant to this operation
 	 * @param port enhanced restore server port
 	 * @return the binary data representing the message
 	 */
-	public byte[] createEnhGetchunkMsg(int peerID, ProtocolState state, int port) throws IOException {
+	public byte[] createEnhGetchunkMsg(int peerID, ProtocolState state, Long chunkNo, int port) throws IOException {
 
 		InetAddress addr = InetAddress.getLocalHost();
-		String header = "GETCHUNK " + state.getProtocolVersion() + " " + peerID + " " + state.getHashHex() + " " + state.getCurrentChunkNo() + lineTermination;
+		String header = "GETCHUNK " + state.getProtocolVersion() + " " + peerID + " " + state.getHashHex() + " " + chunkNo + lineTermination;
 		header += addr.getHostAddress() + ":" + port + headerTermination;
 
 		SystemManager.getInstance().logPrint("sending: " + header.trim().replaceAll(lineTermination, " / "), SystemManager.LogLevel.SERVICE_MSG);
         return this.appendMAC(header.getBytes());
 	}
 	
+	/**
+	 * Returns a service message with the following format: "GETCHUNKS &lt;Version&gt; &lt;SenderID&gt; &lt;FileID&gt; &lt;FirstChunkNo&gt; &lt;LastChunkNo&gt; &lt;CRLF&gt; &lt;ip:port&gt; [DIRECTED]".
+	 * 
+	 * @param peerID the numeric identifier of the sending Peer
+	 * @param state the Protocol State object relevant to this operation
+	 * @param firstChunkNo the first chunk number of the range
+	 * @param lastChunkNo the last chunk number of the range, inclusive
+	 * @param port enhanced restore server port
+	 * @param directed whether the message is sent to a single holder, which then answers without delay
+	 * @return the binary data representing the message
+	 */
+	public byte[] createGetchunksMsg(int peerID, ProtocolState state, Long firstChunkNo, Long lastChunkNo, int port, boolean directed) throws IOException {
+
+		InetAddress addr = InetAddress.getLocalHost();
+		String header = "GETCHUNKS " + state.getProtocolVersion() + " " + peerID + " " + state.getHashHex() + " " + firstChunkNo + " " + lastChunkNo + lineTermination;
+		header += addr.getHostAddress() + ":" + port + (directed ? " " + directedFlag : "") + headerTermination;
+
+		SystemManager.getInstance().logPrint("sending: " + header.trim().replaceAll(lineTermination, " / "), SystemManager.LogLevel.SERVICE_MSG);
+        return this.appendMAC(header.getBytes());
+	}
+	
 	/**
 	 * Returns a service message with the following format: "CHUNK &lt;Version&gt; &lt;SenderID&gt; &lt;FileID&gt; &lt;ChunkNo&gt;".
 	 * 
@@ -201,6 +223,27 @@ public class ServiceMessage {
 		return this.appendMAC(msg);
 	}
 
+	/**
+	 * Returns a CHUNK message carrying chunk data already in memory, copied once into the message.
+	 * 
+	 * @param peerID the numeric identifier of the sending Peer
+	 * @param state the Protocol State object relevant to this operation
+	 * @param body the encrypted chunk data, from its position to its limit
+	 * @return the binary data representing the message
+	 */
+	public byte[] createChunkMsg(int peerID, ProtocolState state, ByteBuffer body) throws IOException {
+		
+		byte[] header = ("CHUNK " + state.getProtocolVersion() + " " + peerID + " " + state.getHashHex() + " " + state.getCurrentChunkNo() + headerTermination).getBytes();
+		
+        SystemManager.getInstance().logPrint("sending: " + new String(header).trim(), SystemManager.LogLevel.SERVICE_MSG);
+		
+        byte[] msg = new byte[header.length + body.remaining()];
+        System.arraycopy(header, 0, msg, 0, header.length);
+        body.get(msg, header.length, body.remaining());
+        
+		return this.appendMAC(msg);
+	}
+
 	/**
 	 * Returns a service message with the following format: "CHUNK &lt;Version&gt; &lt;SenderID&gt; &lt;FileID&gt; &lt;ChunkNo&gt;".
 	 * No chunk data is sent with this version of the CHUNK message.
@@ -216,7 +259,43 @@ public class ServiceMessage {
         SystemManager.getInstance().logPrint("sending: " + header.trim(), SystemManager.LogLevel.SERVICE_MSG);
         return this.appendMAC(header.getBytes());
 	}
-	
+
+	/**
+	 * Returns the header of a CHUNK message, for sending the chunk data straight from its file.
+	 *
+	 * @param peerID the numeric identifier of the sending Peer
+	 * @param protocolVersion the backup system version
+	 * @param hash textual representation of the hexadecimal values of a SHA256
+	 * @param chunkNo the chunk number
+	 * @return the binary data representing the header
+	 */
+	public byte[] createChunkHeader(int peerID, String protocolVersion, String hash, long chunkNo) {
+
+		String header = "CHUNK " + protocolVersion + " " + peerID + " " + hash + " " + chunkNo + headerTermination;
+		return header.getBytes();
+	}
+
+	/**
+	 * Computes the MAC of a CHUNK message from its header and chunk data.
+	 *
+	 * @param header the header of the CHUNK message
+	 * @param body the chunk data
+	 * @return the MAC as hexadecimal text
+	 */
+	public String computeChunkMAC(byte[] header, byte[] body) throws IOException {
+		return SecurityHandler.computeMAC(this.mergeByte(header, header.length, body, body.length));
+	}
+
+	/**
+	 * Returns the MAC trailer that follows the header and body of a service message.
+	 *
+	 * @param mac the MAC as hexadecimal text
+	 * @return the binary data representing the trailer
+	 */
+	public byte[] createMACTrailer(String mac) {
+		return (macSeparator + mac).getBytes();
+	}
+
 	/**
 	 * Returns a service message with the following format: "REMOVED &lt;Version&gt; &lt;SenderID&gt; &lt;FileID&gt; &lt;ChunkNo&gt;".
 	 * 
@@ -308,6 +387,30 @@ public class ServiceMessage {
         return this.appendMAC(header.getBytes());
 	}
 	
+	/**
+	 * Returns a service message with the following format: "SUMMARY &lt;Version&gt; &lt;SenderID&gt; &lt;UnicastPort&gt;".
+	 * The body holds the Bloom filter of file IDs stored by the sending Peer.
+	 *  
+	 * @param peerID the numeric identifier of the sending Peer
+	 * @param protocolVersion the backup system version
+	 * @param port the port of the sending Peer's unicast control channel
+	 * @param filter the Bloom filter of file IDs stored by the sending Peer
+	 * @return the binary data representing the message
+	 */
+	public byte[] createSummaryMsg(int peerID, String protocolVersion, int port, BloomFilter filter) throws IOException {
+		
+		String header = "SUMMARY " + protocolVersion + " " + peerID + " " + port + headerTermination;
+		byte[] body = filter.toByteArray();
+		
+        SystemManager.getInstance().logPrint("sending: " + header.trim(), SystemManager.LogLevel.SERVICE_MSG);
+        
+        byte[] msg;
+		if(body.length == 0) msg = header.getBytes();
+		else msg = this.mergeByte(header.getBytes(), header.getBytes().length, body, body.length);
+		
+		return this.appendMAC(msg);
+	}
+	
 	/**
 	 * Merges two byte arrays by copying from the start of each one up to a specified length for each.
 	 * The second array is appended to the end of the first one.
@@ -533,6 +636,15 @@ public class ServiceMessage {
 			if(!validateGetchunk(fields)) return false;
 			return true;
 		
+		// RESTORE protocol initiator message for a range of chunks
+		case "GETCHUNKS":
+			
+			if(fields.length != directedGetchunksMsgLen) {
+				if(!validateHeaderSize(fields.length, getchunksMinMsgLen, "GETCHUNKS")) return false;
+			}
+			if(!validateGetchunks(fields)) return false;
+			return true;
+		
 		// RESTORE protocol response message
 		case "CHUNK":
 			
@@ -568,6 +680,13 @@ public class ServiceMessage {
 			if(!validateInfo(fields)) return false;
 			return true;
 			
+		// Peer summary of stored files
+		case "SUMMARY":
+			
+			if(!validateHeaderSize(fields.length, summaryMinMsgLen, "SUMMARY")) return false;
+			if(!validateSummary(fields)) return false;
+			return true;
+			
 		// Unknown protocols
 		default:
 			SystemManager.getInstance().logPrint("unrecognized protocol, ignoring message...", SystemManager.LogLevel.DEBUG);
@@ -649,6 +768,36 @@ public class ServiceMessage {
 		return validate;
 	}
 	
+	/**
+	 * Validates a GETCHUNKS message and returns whether it's valid.
+	 * 
+	 * @param fields the header fields
+	 * @return whether the GETCHUNKS message is valid
+	 */
+	private boolean validateGetchunks(String[] fields) {
+		
+		boolean validate = validateVersion(fields[protocolVersionI]) && validateSenderID(fields[senderI])
+				&& validateHash(fields[hashI]) && validateChunkNo(fields[backChunkNoI]) && validateChunkNo(fields[Peer.lastChunkNoI])
+				&& validateAddress(fields[Peer.rangeAddressI]);
+		
+		if(!validate) return false;
+		
+		if(fields.length == directedGetchunksMsgLen && !fields[Peer.rangeDirectedI].equals(directedFlag)) {
+			SystemManager.getInstance().logPrint("unknown GETCHUNKS flag " + fields[Peer.rangeDirectedI] + ", ignoring message...", SystemManager.LogLevel.DEBUG);
+			return false;
+		}
+		
+		long first = Long.parseLong(fields[backChunkNoI]);
+		long last = Long.parseLong(fields[Peer.lastChunkNoI]);
+		
+		if(last < first || last - first >= maxRangeChunks) {
+			SystemManager.getInstance().logPrint("chunk range must have between 1 and " + maxRangeChunks + " chunks, ignoring message...", SystemManager.LogLevel.DEBUG);
+			return false;
+		}
+		
+		return true;
+	}
+	
 	/**
 	 * Validates a CHUNK message and returns whether it's valid.
 	 * 
@@ -717,6 +866,20 @@ public class ServiceMessage {
 		return validate;
 	}
 	
+	/**
+	 * Validates a SUMMARY message and returns whether it's valid.
+	 * 
+	 * @param fields the header fields
+	 * @return whether the SUMMARY message is valid
+	 */
+	private boolean validateSummary(String[] fields) {
+		
+		boolean validate = validateVersion(fields[protocolVersionI]) && validateSenderID(fields[senderI])
+				&& validatePort(fields[Peer.summaryPortI]);
+		
+		return validate;
+	}
+	
 	/**
 	 * Validates the number of fields in the header and returns whether it's valid.
 	 * 
@@ -863,6 +1026,30 @@ public class ServiceMessage {
 		return true;
 	}
 	
+	/**
+	 * Validates the port field and returns whether it's valid.
+	 * 
+	 * @param port the port field
+	 * @return whether the port field is valid
+	 */
+	private boolean validatePort(String port) {
+		
+		int value;
+		try {
+			value = Integer.parseInt(port);
+		} catch(NumberFormatException e) {
+			SystemManager.getInstance().logPrint("port isn't a number, ignoring message...", SystemManager.LogLevel.DEBUG);
+			return false;
+		}
+		
+		if(value < 1 || value > 65535) {
+			SystemManager.getInstance().logPrint("port outside [1, 65535] range, ignoring message...", SystemManager.LogLevel.DEBUG);
+			return false;
+		}
+		
+		return true;
+	}
+	
 	/**
 	 * Extracts the data body from a service message, returning the underlying byte array.
 	 * 
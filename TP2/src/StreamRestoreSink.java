@@ -0,0 +1,161 @@
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.TreeMap;
+
+public class StreamRestoreSink implements RestoreSink, Runnable {
+
+	private static final int connectTimeoutMS = 5000;
+	private static final int bufferSize = 64 * 1024;
+
+	private Socket socket;
+	private OutputStream output;
+	private Runnable drained;
+	private Thread writer;
+
+	// Chunks waiting for the chunks before them, and the next chunk to send
+	private TreeMap<Long, byte[]> reorder = new TreeMap<Long, byte[]>();
+	private long nextIndex = 0;
+	private boolean sending = false;
+	private boolean closing = false;
+	private boolean aborted = false;
+	private IOException failure = null;
+
+	/**
+	 * Streams the decrypted contents of a restored file, in order, to a client listening on a TCP
+	 * port, instead of writing them to a file. Chunks that arrive ahead of the next one are held
+	 * until it arrives, and are sent by a dedicated thread so a slow client never blocks the
+	 * threads receiving CHUNK messages.
+	 *
+	 * @param addr the address of the client
+	 * @param port the port the client listens on
+	 */
+	public StreamRestoreSink(InetAddress addr, int port) throws IOException {
+
+		this.socket = new Socket();
+		try {
+			this.socket.connect(new InetSocketAddress(addr, port), connectTimeoutMS);
+			this.output = new BufferedOutputStream(this.socket.getOutputStream(), bufferSize);
+		} catch(IOException e) {
+			this.socket.close();
+			throw e;
+		}
+	}
+
+	@Override
+	public void open(FileInfo fileInfo, long chunkCount, Runnable drained) throws IOException {
+
+		this.drained = drained;
+		this.writer = new Thread(null, this, "restore stream " + fileInfo.getFilename());
+		this.writer.start();
+	}
+
+	@Override
+	public synchronized void write(long index, long position, byte[] data) throws IOException {
+
+		if(this.failure != null) throw this.failure;
+
+		this.reorder.put(index, data);
+		if(index == this.nextIndex) this.notifyAll();
+	}
+
+	@Override
+	public synchronized int getBufferedChunks() {
+		return this.reorder.size() + (this.sending ? 1 : 0);
+	}
+
+	@Override
+	public void run() {
+
+		while(true) {
+
+			// Wait for the next chunk in order, or for the restore to end
+			byte[] data;
+			synchronized(this) {
+				while(!this.aborted && !this.reorder.containsKey(this.nextIndex)) {
+					if(this.closing) return;
+
+					try {
+						this.wait();
+					} catch(InterruptedException e) {
+						return;
+					}
+				}
+
+				if(this.aborted) return;
+
+				data = this.reorder.remove(this.nextIndex);
+				this.sending = true;
+			}
+
+			// Send outside the lock, the client may be slower than the holders
+			try {
+				this.output.write(data);
+				if(!this.isNextChunkWaiting()) this.output.flush();
+			} catch(IOException e) {
+				SystemManager.getInstance().logPrint("I/O Exception streaming restored chunk " + this.nextIndex + ", client gone", SystemManager.LogLevel.NORMAL);
+
+				synchronized(this) {
+					this.failure = e;
+					this.sending = false;
+					this.reorder.clear();
+				}
+
+				this.drained.run();
+				return;
+			}
+
+			synchronized(this) {
+				this.nextIndex++;
+				this.sending = false;
+			}
+
+			this.drained.run();
+		}
+	}
+
+	/**
+	 * @return whether the chunk after the one being sent already arrived, so flushing can wait
+	 */
+	private synchronized boolean isNextChunkWaiting() {
+		return this.reorder.containsKey(this.nextIndex + 1);
+	}
+
+	@Override
+	public boolean close(boolean restored) {
+
+		// A successful restore sends every chunk held before closing, a failed one stops right away
+		synchronized(this) {
+			this.closing = true;
+			if(!restored) this.aborted = true;
+			this.notifyAll();
+		}
+
+		if(this.writer != null) {
+			try {
+				this.writer.join();
+			} catch(InterruptedException e) {
+				restored = false;
+			}
+		}
+
+		try {
+			if(restored && this.failure == null) this.output.flush();
+		} catch(IOException e) {
+			this.failure = e;
+		}
+
+		try {
+			this.socket.close();
+		} catch(IOException e) {
+			SystemManager.getInstance().logPrint("I/O Exception closing restore stream!", SystemManager.LogLevel.VERBOSE);
+		}
+
+		synchronized(this) {
+			return restored && this.failure == null;
+		}
+	}
+}
@@ -0,0 +1,58 @@
+import java.net.InetAddress;
+
+public class SummaryInfo {
+
+	private BloomFilter filter;
+	private InetAddress address;
+	private int port;
+	private long receivedTime;
+
+	/**
+	 * Creates summary info using specified parameters.
+	 *
+	 * @param filter the Bloom filter of file IDs stored by the Peer
+	 * @param address the address of the Peer
+	 * @param port the port of the Peer's unicast control channel
+	 */
+	public SummaryInfo(BloomFilter filter, InetAddress address, int port) {
+		this.filter = filter;
+		this.address = address;
+		this.port = port;
+		this.receivedTime = System.currentTimeMillis();
+	}
+
+	/**
+	 * @return the Bloom filter of file IDs stored by the Peer
+	 */
+	public BloomFilter getFilter() {
+		return filter;
+	}
+
+	/**
+	 * @return the address of the Peer
+	 */
+	public InetAddress getAddress() {
+		return address;
+	}
+
+	/**
+	 * @return the port of the Peer's unicast control channel
+	 */
+	public int getPort() {
+		return port;
+	}
+
+	/**
+	 * @return the time in milliseconds when the summary was received
+	 */
+	public long getReceivedTime() {
+		return receivedTime;
+	}
+
+	/**
+	 * @return whether the summary is older than {@value Peer#summaryExpiryMS}ms, the Peer having stopped sending them
+	 */
+	public boolean isExpired() {
+		return System.currentTimeMillis() - receivedTime >= Peer.summaryExpiryMS;
+	}
+}
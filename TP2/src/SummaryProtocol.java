@@ -0,0 +1,59 @@
+import java.io.File;
+import java.io.IOException;
+
+public class SummaryProtocol implements Runnable {
+
+	@Override
+	public void run() {
+
+		Thread.currentThread().setName("Summary " + Thread.currentThread().getId());
+
+		Peer peer = Peer.getInstance();
+
+		// Rebuild filter so deleted and reclaimed files are dropped
+		BloomFilter filter = peer.rebuildLocalFilter(() -> this.buildLocalFilter(peer));
+		
+		// Peers that stopped sending summaries are no longer candidate holders
+		peer.removeExpiredSummaries();
+
+		// Only enhanced Peers understand SUMMARY messages
+		if(peer.getProtocolVersion().equals("1.0")) return;
+
+		try {
+			byte[] msg = new ServiceMessage().createSummaryMsg(peer.getPeerID(), peer.getProtocolVersion(), peer.getUcc().getLocalPort(), filter);
+			peer.getMcc().send(msg);
+		} catch(IOException e) {
+			SystemManager.getInstance().logPrint("I/O Exception sending summary!", SystemManager.LogLevel.NORMAL);
+			e.printStackTrace();
+			return;
+		}
+	}
+
+	/**
+	 * Builds a Bloom filter with the file IDs that have at least one chunk in this Peer's storage area.
+	 *
+	 * @param peer the singleton Peer instance
+	 * @return the Bloom filter of locally stored file IDs
+	 */
+	private BloomFilter buildLocalFilter(Peer peer) {
+
+		BloomFilter filter = new BloomFilter();
+
+		String peerFolder = "../" + Peer.storageFolderName + "/" + Peer.peerFolderPrefix + peer.getPeerID();
+		File[] hashFolders = new File(peerFolder).listFiles();
+		if(hashFolders == null) return filter;
+
+		int count = 0;
+		for(File hashFolder : hashFolders) {
+
+			String[] chunks = hashFolder.list();
+			if(chunks == null || chunks.length == 0) continue;
+
+			filter.add(hashFolder.getName());
+			count++;
+		}
+
+		SystemManager.getInstance().logPrint("local summary has " + count + " files", SystemManager.LogLevel.VERBOSE);
+		return filter;
+	}
+}
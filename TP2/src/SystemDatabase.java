@@ -10,15 +10,19 @@ import java.util.Map;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 public class SystemDatabase implements Serializable, Runnable {
 
 	private static final long serialVersionUID = -3900468368934039133L;
 	private static final long backupDelay = 5000;
+	private static final long progressSaveDelay = 500;
 
 	private ConcurrentHashMap<String, ConcurrentHashMap<Long, ChunkInfo>> chunks = new ConcurrentHashMap<String, ConcurrentHashMap<Long, ChunkInfo>>(8, 0.9f, 1);
 	private ConcurrentHashMap<String, FileInfo> initiatedFiles = new ConcurrentHashMap<String, FileInfo>(8, 0.9f, 1);
 	private ConcurrentHashMap<Integer, HashSet<String>> filesToDelete = new ConcurrentHashMap<Integer, HashSet<String>>(8, 0.9f, 1);
+	private ConcurrentHashMap<String, FileInfo> pendingBackups = new ConcurrentHashMap<String, FileInfo>(8, 0.9f, 1);
+	private transient boolean saveScheduled = false;
 
 	/**
 	 * Backs up the current database to file.
@@ -39,6 +43,32 @@ public class SystemDatabase implements Serializable, Runnable {
 		SystemManager.getInstance().logPrint("Saved database", SystemManager.LogLevel.VERBOSE);
 	}
 
+	/**
+	 * Saves the database soon after backup progress was made, coalescing the progress
+	 * made within {@value #progressSaveDelay}ms into a single save.
+	 */
+	public void saveProgress() {
+		
+		synchronized(this.pendingBackups) {
+			if(this.saveScheduled) return;
+			this.saveScheduled = true;
+		}
+		
+		Peer.getInstance().getExecutor().schedule(() -> {
+			
+			synchronized(this.pendingBackups) {
+				this.saveScheduled = false;
+			}
+			
+			try {
+				this.saveDatabase();
+			} catch(IOException e) {
+				SystemManager.getInstance().logPrint("I/O Exception saving backup progress!", SystemManager.LogLevel.NORMAL);
+				e.printStackTrace();
+			}
+		}, SystemDatabase.progressSaveDelay, TimeUnit.MILLISECONDS);
+	}
+
 	/**
 	 * Loads a backed up database.
 	 * 
@@ -58,6 +88,9 @@ public class SystemDatabase implements Serializable, Runnable {
 			input.close();
 			file.close();
 			
+			// Databases saved before pending backups were tracked don't have them
+			if(database.pendingBackups == null) database.pendingBackups = new ConcurrentHashMap<String, FileInfo>(8, 0.9f, 1);
+			
 			SystemManager.getInstance().logPrint("Loaded database", SystemManager.LogLevel.NORMAL);
 			return database;
 		} else return null;
@@ -126,13 +159,62 @@ public class SystemDatabase implements Serializable, Runnable {
 		String hashKey = state.getFields()[Peer.hashI];
 
 		this.initiatedFiles.remove(hashKey);
+		this.pendingBackups.remove(hashKey);
 		this.chunks.remove(hashKey);
 		
     	SystemManager.getInstance().logPrint("removed hash " + hashKey, SystemManager.LogLevel.DATABASE);
 	}
 	
+	/**
+	 * Records a backup that is starting so it can be resumed if the Peer stops before it finishes.
+	 * 
+	 * @param state the Protocol State object relevant to this operation
+	 */
+	public void backupStarted(ProtocolState state) {
+		
+		String hash = state.getHashHex();
+		this.pendingBackups.put(hash, new FileInfo(state.getFilepath(), hash, state.getChunkTotal(), state.getDesiredRepDeg()));
+		
+		SystemManager.getInstance().logPrint("pending backup \"" + hash + "\" with path " + state.getFilepath(), SystemManager.LogLevel.DATABASE);
+	}
+	
+	/**
+	 * Returns whether the perceived replication degree of a chunk already reaches the desired replication degree.
+	 * 
+	 * @param hash textual representation of the hexadecimal values of a SHA256
+	 * @param chunkNo the chunk number
+	 * @param repDeg desired replication degree
+	 * @return whether enough Peers are known to store the chunk
+	 */
+	public boolean isChunkReplicated(String hash, long chunkNo, int repDeg) {
+		
+		ConcurrentHashMap<Long, ChunkInfo> chunksInfo = this.chunks.get(hash);
+		if(chunksInfo == null) return false;
+		
+		ChunkInfo chunk = chunksInfo.get(chunkNo);
+		if(chunk == null) return false;
+		
+		return chunk.getPerceivedRepDeg().size() >= repDeg;
+	}
+
+	/**
+	 * Returns the info about a chunk, if any.
+	 *
+	 * @param hash textual representation of the hexadecimal values of a SHA256
+	 * @param chunkNo the chunk number
+	 * @return the chunk info, null if there is none
+	 */
+	public ChunkInfo getChunkInfo(String hash, long chunkNo) {
+
+		ConcurrentHashMap<Long, ChunkInfo> chunksInfo = this.chunks.get(hash);
+		if(chunksInfo == null) return null;
+
+		return chunksInfo.get(chunkNo);
+	}
+
 	/**
 	 * Updates the database with the initiated backup. Inserts new file info.
+	 * The backup is no longer pending.
 	 * If file info already exists updates the file path and desired replication degree.
 	 * 
 	 * @param state the Protocol State object relevant to this operation
@@ -146,12 +228,17 @@ public class SystemDatabase implements Serializable, Runnable {
 		int repDeg = state.getDesiredRepDeg();
 		String fileKey = hash;
 		
+		this.pendingBackups.remove(fileKey);
+		
 		if(this.initiatedFiles.putIfAbsent(fileKey, new FileInfo(filepath, hash, chunkTotal, repDeg)) != null) {
 			this.initiatedFiles.get(fileKey).setFilepath(filepath);
 			this.initiatedFiles.get(fileKey).setTotalChunks(chunkTotal);
 			this.initiatedFiles.get(fileKey).setDesiredRepDeg(repDeg);
 			SystemManager.getInstance().logPrint("updated file \"" + fileKey + "\" with path " + filepath + " and desired repDeg " + repDeg, SystemManager.LogLevel.DATABASE);
 		} else SystemManager.getInstance().logPrint("new file \"" + fileKey + "\" with path " + filepath + " and desired repDeg " + repDeg, SystemManager.LogLevel.DATABASE);
+
+		// Known size lets byte range restores past the end of the file fail right away
+		this.initiatedFiles.get(fileKey).setFileSize(new File(filepath).length());
 	}
 	
 	/**
@@ -301,6 +388,13 @@ public class SystemDatabase implements Serializable, Runnable {
 		return filesToDelete;
 	}
 
+	/**
+	 * @return the map containing info about the backups that were started but haven't finished
+	 */
+	public ConcurrentHashMap<String, FileInfo> getPendingBackups() {
+		return pendingBackups;
+	}
+
 	@Override
 	public void run() {
 		
@@ -82,6 +82,12 @@ public class SystemHandler implements Runnable {
 			this.handleGetchunk(peer, state);
 			break;
 			
+		// RESTORE protocol initiated for a range of chunks
+		case "GETCHUNKS":
+			
+			this.handleGetchunks(peer, state);
+			break;
+			
 		// RESTORE protocol response
 		case "CHUNK":
 			
@@ -111,6 +117,12 @@ public class SystemHandler implements Runnable {
 			
 			this.handleInfo(peer, state);
 			break;
+			
+		// Peer summary of stored files for routing GETCHUNK messages
+		case "SUMMARY":
+			
+			this.handleSummary(peer, state);
+			break;
 		}
 	}
 
@@ -165,16 +177,29 @@ public class SystemHandler implements Runnable {
 		// Add sender ID to set of peer IDs that have responded to this chunk's backup
 		int senderID = Integer.parseInt(state.getFields()[Peer.senderI]);
 		long currChunk = Long.parseLong(state.getFields()[Peer.chunkNoI]);
-		if(currState.getRespondedID().get(currChunk).add(senderID)) {
-			SystemManager.getInstance().logPrint("added peer ID \"" + senderID + "\" to responded for chunk " + currChunk, SystemManager.LogLevel.DEBUG);
+		HashSet<Integer> responded = currState.getRespondedID().get(currChunk);
+		if(responded == null) return;
+		
+		int responseCount;
+		boolean added;
+		synchronized(responded) {
+			added = responded.add(senderID);
+			if(added) {
+				SystemManager.getInstance().logPrint("added peer ID \"" + senderID + "\" to responded for chunk " + currChunk, SystemManager.LogLevel.DEBUG);
+			}
+			responseCount = responded.size();
 		}
 
 		// Print the current status
-		int responseCount = currState.getRespondedID().get(currChunk).size();
 		int desiredCount = currState.getDesiredRepDeg();
 		
 		String respondedMsg = responseCount + " / " + desiredCount + " unique peers for chunk " + currChunk;
 		SystemManager.getInstance().logPrint(respondedMsg, SystemManager.LogLevel.DEBUG);
+		
+		// Complete the chunk as soon as enough unique STORED messages arrived
+		if(added && currState.getBackupProtocol() != null) {
+			currState.getBackupProtocol().storedReceived(currChunk, senderID, responseCount >= desiredCount);
+		}
 	}
 
 	/**
@@ -208,6 +233,7 @@ public class SystemHandler implements Runnable {
 
 	    	// Delete chunk folder
 	    	folder.delete();
+	    	peer.getChunkCache().invalidateFile(state.getFields()[Peer.hashI]);
 
 	    	SystemManager.getInstance().logPrint("deleted: " + state.getFields()[Peer.hashI], SystemManager.LogLevel.NORMAL);
 	    }
@@ -250,37 +276,128 @@ public class SystemHandler implements Runnable {
 		
 		// Add sender ID to set of peer IDs that have responded to this deletion
 		int senderID = Integer.parseInt(state.getFields()[Peer.senderI]);
-		if(currState.getRespondedID().get(0L).add(senderID)) {
+		HashSet<Integer> responded = currState.getRespondedID().get(0L);
+		boolean added;
+		
+		// Wake the DELETE protocol waiting for confirmations
+		synchronized(responded) {
+			added = responded.add(senderID);
+			if(added) responded.notifyAll();
+		}
+		
+		if(added) {
 			SystemManager.getInstance().logPrint("added peer ID \"" + senderID + "\" to responded", SystemManager.LogLevel.DEBUG);
+			peer.sampleRTT(peer.getMcc(), senderID, currState.getSentTimes().get(0L));
 		}
 	}
 	
 	/**
 	 * Handles RESTORE protocol by checking local storage for requested SHA256 + chunkNo and sending
-	 * the CHUNK message if found.
+	 * the CHUNK message if found. Chunks following a sequence of requests are prefetched.
 	 * 
 	 * @param peer the singleton Peer instance
 	 * @param state the Protocol State object relevant to this operation
 	 */
 	private void handleGetchunk(Peer peer, ProtocolState state) throws IOException, InterruptedException {
 		
+		// Check in-memory summary of stored files before touching storage
+		if(!peer.getLocalFilter().mightContain(state.getFields()[Peer.hashI])) {
+		    SystemManager.getInstance().logPrint("file not in local summary, ignoring message", SystemManager.LogLevel.DEBUG);
+			return;
+		}
+		
+		this.scheduleChunk(peer, state, false);
+		
+		long chunkNo = Long.parseLong(state.getFields()[Peer.chunkNoI]);
+		peer.getReadAhead().requested(state.getFields()[Peer.senderI], state.getFields()[Peer.hashI], chunkNo, chunkNo);
+	}
+	
+	/**
+	 * Handles range RESTORE requests by answering each chunk of the range stored on this Peer
+	 * as if it had been requested by its own GETCHUNK message, so each chunk gets the same
+	 * random delay and suppression of unneeded CHUNK messages.
+	 * 
+	 * @param peer the singleton Peer instance
+	 * @param state the Protocol State object relevant to this operation
+	 */
+	private void handleGetchunks(Peer peer, ProtocolState state) {
+		
+		// Check in-memory summary of stored files before touching storage
+		if(!peer.getLocalFilter().mightContain(state.getFields()[Peer.hashI])) {
+		    SystemManager.getInstance().logPrint("file not in local summary, ignoring message", SystemManager.LogLevel.DEBUG);
+			return;
+		}
+		
+		String[] fields = state.getFields();
+		long first = Long.parseLong(fields[Peer.chunkNoI]);
+		long last = Long.parseLong(fields[Peer.lastChunkNoI]);
+		
+		// Ranges striped to this Peer alone are flagged, no other holder competes for them
+		boolean directed = fields.length > Peer.rangeDirectedI;
+		
+		for(long chunkNo = first; chunkNo <= last; chunkNo++) {
+			
+			// Equivalent enhanced GETCHUNK for this chunk of the range
+			ProtocolState chunkState = new ProtocolState(new ServiceMessage());
+			chunkState.setPacket(state.getPacket());
+			chunkState.setFields(new String[] { "GETCHUNK", fields[Peer.protocolVersionI], fields[Peer.senderI], fields[Peer.hashI], Long.toString(chunkNo), fields[Peer.rangeAddressI] });
+			
+			this.scheduleChunk(peer, chunkState, directed);
+		}
+		
+		peer.getReadAhead().requested(fields[Peer.senderI], fields[Peer.hashI], first, last);
+	}
+	
+	/**
+	 * Schedules the CHUNK message for a requested chunk after a random delay if it is stored on this Peer.
+	 * A request for a chunk whose CHUNK message is already scheduled joins it instead, so a chunk
+	 * requested by several Peers at once is sent once.
+	 * 
+	 * @param peer the singleton Peer instance
+	 * @param state the Protocol State object of the GETCHUNK message requesting the chunk
+	 * @param directed whether the chunk was requested from this Peer alone and should be sent right away
+	 */
+	private void scheduleChunk(Peer peer, ProtocolState state, boolean directed) {
+		
 	    // Construct relevant chunk path and verify that it exists in this Peer's storage
 		String chunkPath = "../" + Peer.storageFolderName + "/" + Peer.peerFolderPrefix + peer.getPeerID() + "/" + state.getFields()[Peer.hashI] + "/" + state.getFields()[Peer.chunkNoI];
 
-	    File chunk = new File(chunkPath);
-	    if(!chunk.exists()) {
+	    // Cached chunks are known to be stored without touching storage
+	    long chunkNo = Long.parseLong(state.getFields()[Peer.chunkNoI]);
+	    if(!peer.getChunkCache().contains(state.getFields()[Peer.hashI], chunkNo) && !new File(chunkPath).exists()) {
 		    SystemManager.getInstance().logPrint("don't have the file, ignoring message", SystemManager.LogLevel.DEBUG);
 	    	return;
 	    }
 	    
-	    // Create CHUNK_STOP protocol for stopping unneeded CHUNK messages
+	    // Enhanced requesters are served through TCP, base ones on the multicast channel
+	    boolean enhanced = !state.getFields()[Peer.protocolVersionI].equals("1.0") && !peer.getProtocolVersion().equals("1.0");
+	    String server = enhanced ? state.getFields()[Peer.addressI] : null;
+	    
+	    ChunkResponse response = new ChunkResponse();
+	    response.addRequester(server);
+	    state.setChunkResponse(response);
+	    
+	    // Create CHUNK_STOP protocol for stopping unneeded CHUNK messages, or join the one already scheduled
 	    String protocolKey = peer.getPeerID() + state.getFields()[Peer.hashI] + state.getFields()[Peer.chunkNoI] + ProtocolState.ProtocolType.CHUNK_STOP.name();
-	    if(peer.getProtocols().putIfAbsent(protocolKey, state) == null) {
-	    	SystemManager.getInstance().logPrint("key inserted: " + protocolKey, SystemManager.LogLevel.VERBOSE);
+	    while(true) {
+	    	
+	    	ProtocolState scheduled = peer.getProtocols().putIfAbsent(protocolKey, state);
+	    	if(scheduled == null) break;
+	    	
+	    	// Another holder's CHUNK message seen meanwhile was sent before this request
+	    	if(!scheduled.isChunkMsgAlreadySent() && scheduled.getChunkResponse().addRequester(server)) {
+	    		SystemManager.getInstance().logPrint("joined CHUNK already scheduled, key: " + protocolKey, SystemManager.LogLevel.DEBUG);
+	    		return;
+	    	}
+	    	
+	    	// Scheduled CHUNK was sent or is being sent, schedule a new one
+	    	if(peer.getProtocols().replace(protocolKey, scheduled, state)) break;
 	    }
+	    
+	    SystemManager.getInstance().logPrint("key inserted: " + protocolKey, SystemManager.LogLevel.VERBOSE);
 
 	    // Wait a random millisecond delay from a previously specified range and then send the message
-	    int waitTimeMS = ThreadLocalRandom.current().nextInt(Peer.minResponseWaitMS, Peer.maxResponseWaitMS + 1);
+	    int waitTimeMS = directed ? 0 : ThreadLocalRandom.current().nextInt(Peer.minResponseWaitMS, Peer.maxResponseWaitMS + 1);
 	    SystemManager.getInstance().logPrint("waiting " + waitTimeMS + "ms", SystemManager.LogLevel.DEBUG);
 
 	    peer.getExecutor().schedule(new TimeoutHandler(state, ProtocolState.ProtocolType.RESTORE, this.channelName, protocolKey, chunkPath), waitTimeMS, TimeUnit.MILLISECONDS);
@@ -297,13 +414,14 @@ public class SystemHandler implements Runnable {
 		// Check if a GETCHUNK for this CHUNK exists and if so set CHUNK already sent flag
 	    String chunkKey = peer.getPeerID() + state.getFields()[Peer.hashI] + state.getFields()[Peer.chunkNoI] + ProtocolState.ProtocolType.CHUNK_STOP.name();
 	    ProtocolState chunkState = peer.getProtocols().get(chunkKey);
+	    byte[] body = state.getParser().stripBody(state.getPacket());
 	    
 	    if(chunkState != null) {
-	    	chunkState.setChunkMsgAlreadySent(true);
+	    	if(chunkState.getChunkResponse().isServedBy(body.length > 0)) chunkState.setChunkMsgAlreadySent(true);
 	    } else SystemManager.getInstance().logPrint("received CHUNK but no CHUNK_STOP protocol matched, key: " + chunkKey, SystemManager.LogLevel.VERBOSE);
 	    
-	    // Abort storing chunk data if both sending and current Peer are enhanced
-	    if(!state.getFields()[Peer.protocolVersionI].equals("1.0") && !peer.getProtocolVersion().equals("1.0")) {
+	    // Abort storing chunk data if both sending and current Peer are enhanced, unless the CHUNK serves several requesters
+	    if(!state.getFields()[Peer.protocolVersionI].equals("1.0") && !peer.getProtocolVersion().equals("1.0") && body.length == 0) {
 	    	SystemManager.getInstance().logPrint("not storing CHUNK because enhanced RESTORE", SystemManager.LogLevel.DEBUG);
 	    	return;
 	    }
@@ -319,10 +437,12 @@ public class SystemHandler implements Runnable {
 
 		// Store chunk number and chunk data received
 		Long chunkNo = Long.parseLong(state.getFields()[Peer.chunkNoI]);
-		byte[] data = SecurityHandler.decryptAES128(state.getParser().stripBody(state.getPacket()));
+		byte[] data = SecurityHandler.decryptAES128(body);
+		
+		peer.sampleRTT(peer.getMdr(), Integer.parseInt(state.getFields()[Peer.senderI]), currState.getSentTimes().remove(chunkNo));
 		
 		SystemManager.getInstance().logPrint("restored chunk \"" + state.getFields()[Peer.hashI] + "." + chunkNo + "\"", SystemManager.LogLevel.DEBUG);
-		currState.getRestoredChunks().put(chunkNo, data);
+		currState.getRestoreProtocol().chunkReceived(chunkNo, data);
 	}
 	
 	/**
@@ -373,6 +493,13 @@ public class SystemHandler implements Runnable {
 		}
 		
 		int senderID = Integer.parseInt(state.getFields()[Peer.senderI]);
+		
+		// Send summary of stored files so the started Peer can route its GETCHUNK messages
+		if(senderID != peer.getPeerID()) {
+			int waitTimeMS = ThreadLocalRandom.current().nextInt(Peer.minResponseWaitMS, Peer.maxResponseWaitMS + 1);
+			peer.getExecutor().schedule(new SummaryProtocol(), waitTimeMS, TimeUnit.MILLISECONDS);
+		}
+		
 		HashSet<String> filesToDelete = peer.getDatabase().getFilesToDelete().get(senderID);
 		
 		// Check if there are files pending deletion
@@ -441,7 +568,28 @@ public class SystemHandler implements Runnable {
 		}
 	
 		FileInfo fileInfo = new FileInfo(state.getFields()[Peer.pathI], state.getFields()[Peer.nameI], state.getFields()[Peer.hashI], Long.parseLong(state.getFields()[Peer.chunkTotalI]));
-		retrieveState.setFileInfo(fileInfo);
-		retrieveState.setRetrieveMsgResponded(true);
+		retrieveState.getRetrievedInfo().complete(fileInfo);
+	}
+	
+	/**
+	 * Handles SUMMARY messages by storing the received Bloom filter of file IDs and the
+	 * unicast endpoint of the sending Peer.
+	 * 
+	 * @param peer the singleton Peer instance
+	 * @param state the Protocol State object relevant to this operation
+	 */
+	private void handleSummary(Peer peer, ProtocolState state) throws IOException {
+		
+		int senderID = Integer.parseInt(state.getFields()[Peer.senderI]);
+		if(senderID == peer.getPeerID()) {
+			SystemManager.getInstance().logPrint("own SUMMARY, ignoring", SystemManager.LogLevel.VERBOSE);
+			return;
+		}
+		
+		BloomFilter filter = new BloomFilter(state.getParser().stripBody(state.getPacket()));
+		int port = Integer.parseInt(state.getFields()[Peer.summaryPortI]);
+		
+		peer.getSummaries().put(senderID, new SummaryInfo(filter, state.getPacket().getAddress(), port));
+		SystemManager.getInstance().logPrint("updated summary of Peer " + senderID, SystemManager.LogLevel.VERBOSE);
 	}
 }
@@ -1,11 +1,17 @@
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
 import java.rmi.UnknownHostException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 
 public class TestApp {
 
@@ -17,12 +23,19 @@ public class TestApp {
 	private static final int protocolI = 1;
 	private static final int opnd1I = 2;
 	private static final int opnd2I = 3;
+	private static final int opnd3I = 4;
 	private static final int hostI = 0;
 	private static final int remoteNameI = 1;
 	private static final int splitHostI = 1;
 	private static final int splitRemoteNameI = 2;
 	private static final int minAccessLen = 5;
 	
+	// Streaming restore parameters
+	private static final int streamAcceptTimeoutMS = 10000;
+	private static final int streamBufferSize = 64 * 1024;
+	private static final int streamStatusPolls = 50;
+	private static final long streamStatusPollMS = 100;
+	
 	private TestApp() {}
 
 	/**
@@ -30,8 +43,9 @@ public class TestApp {
 	 *  
 	 * @param args 1.  service access point (RMI Object name)
 	 * @param args 2.  protocol to invoke
-	 * @param args 3.  operand 1 (pathname, max KB if RECLAIM)
-	 * @param args 4.  operand 2 (repDeg if BACKUP)
+	 * @param args 3.  operand 1 (pathname, directory if BACKUPDIR, max KB if RECLAIM, traffic class if RATE, chunks if WINDOW, job ID if STATUS or CANCEL)
+	 * @param args 4.  operand 2 (repDeg if BACKUP or BACKUPDIR, bytes per second if RATE, more job IDs if STATUS, output file if STREAM, offset if RESTORE)
+	 * @param args 5.  operand 3 (length if RESTORE)
 	 */
 	public static void main(String[] args) {
 
@@ -56,12 +70,30 @@ public class TestApp {
 			runBackup(args[opnd1I], parseRepDeg(args[opnd2I]));
 			break;
 
-		// Validate filepath and run remote restore method
+		// Validate directory and replication degree and run remote directory backup method
+		case "backupdir":
+
+			if(args.length != 4) cmdErr("wrong argument number for BACKUPDIR protocol!", "backupdir");
+			if(!checkDirectory(args[opnd1I])) printErrExit("path specified does not exist or is not a directory!");
+			
+			runBackupDirectory(args[opnd1I], parseRepDeg(args[opnd2I]));
+			break;
+
+		// Validate filepath and run remote restore method, of a byte range if offset and length are given
 		case "restore":
 			
-			if(args.length != 3) cmdErr("wrong argument number for RESTORE protocol!", "restore");
+			if(args.length != 3 && args.length != 5) cmdErr("wrong argument number for RESTORE protocol!", "restore");
 
-			runRestore(args[opnd1I]);
+			if(args.length == 5) runRestoreRange(args[opnd1I], parseOffset(args[opnd2I]), parseLength(args[opnd3I]));
+			else runRestore(args[opnd1I]);
+			break;
+			
+		// Validate filepath and run remote streaming restore method, no output file streams to stdout
+		case "stream":
+			
+			if(args.length != 3 && args.length != 4) cmdErr("wrong argument number for STREAM command!", "stream");
+			
+			runStream(args[opnd1I], (args.length == 4) ? args[opnd2I] : null);
 			break;
 			
 		// Validate filepath and run remote delete method
@@ -86,6 +118,41 @@ public class TestApp {
 			runState();
 			break;
 			
+		// Validate traffic class and rate and run remote set rate method
+		case "rate":
+			
+			if(args.length != 4) cmdErr("wrong argument number for RATE command!", "rate");
+			
+			runSetRate(parseTrafficClass(args[opnd1I]), parseRate(args[opnd2I]));
+			break;
+			
+		// Validate window size and run remote set restore window method
+		case "window":
+			
+			if(args.length != 3) cmdErr("wrong argument number for WINDOW command!", "window");
+			
+			runSetRestoreWindow(parseWindow(args[opnd1I]));
+			break;
+			
+		// Validate job IDs and run remote job status method, no job IDs lists every job
+		case "status":
+			
+			long[] jobIDs = new long[args.length - opnd1I];
+			for(int i = 0; i < jobIDs.length; i++) {
+				jobIDs[i] = parseJobID(args[opnd1I + i]);
+			}
+			
+			runStatus(jobIDs);
+			break;
+			
+		// Validate job ID and run remote cancel method
+		case "cancel":
+			
+			if(args.length != 3) cmdErr("wrong argument number for CANCEL command!", "cancel");
+			
+			runCancel(parseJobID(args[opnd1I]));
+			break;
+			
 		// Didn't match with any of the known protocols
 		default:
 			cmdErr("unrecognized protocol \"" + args[protocolI] + "\"!", "all");
@@ -102,7 +169,7 @@ public class TestApp {
 	private static void runBackup(String filepath, int repDeg) {
 		
 		try {
-			remoteObj.remoteBackup(filepath, repDeg);
+			printJobStarted(remoteObj.remoteBackup(filepath, repDeg));
 		} catch(IOException e) {
 			System.out.println("TestApp: IO exception executing remote backup " + e.toString());
 			e.printStackTrace();
@@ -115,6 +182,24 @@ public class TestApp {
 		}
 	}
 	
+	/**
+	 * Executes the BACKUP protocol for every file under the specified directory with the specified replication degree.
+	 * 
+	 * @param dirpath path to directory to backup
+	 * @param repDeg desired replication degree
+	 */
+	private static void runBackupDirectory(String dirpath, int repDeg) {
+		
+		try {
+			long jobID = remoteObj.remoteBackupDirectory(dirpath, repDeg);
+			if(jobID < 0) System.out.println("TestApp: \"" + dirpath + "\" is already being backed up");
+			else printJobStarted(jobID);
+		} catch(RemoteException e) {
+			System.out.println("TestApp: exception executing remote directory backup " + e.toString());
+			e.printStackTrace();
+		}
+	}
+	
 	/**
 	 * Executes the RESTORE protocol with the specified filepath.
 	 * 
@@ -123,7 +208,7 @@ public class TestApp {
 	private static void runRestore(String filepath) {
 		
 		try {
-			remoteObj.remoteRestore(filepath);
+			printJobStarted(remoteObj.remoteRestore(filepath));
 		} catch(RemoteException e) {
 		} catch(IOException e) {
 			System.out.println("TestApp: IO exception executing remote restore " + e.toString());
@@ -137,6 +222,96 @@ public class TestApp {
 		}
 	}
 	
+	/**
+	 * Executes the RESTORE protocol for a range of bytes of the specified filepath.
+	 * 
+	 * @param filepath path to file to restore
+	 * @param offset the position of the first byte to restore
+	 * @param length the number of bytes to restore
+	 */
+	private static void runRestoreRange(String filepath, long offset, long length) {
+		
+		try {
+			printJobStarted(remoteObj.remoteRestore(filepath, offset, length));
+		} catch(IOException e) {
+			System.out.println("TestApp: IO exception executing remote restore " + e.toString());
+			e.printStackTrace();
+		} catch(NoSuchAlgorithmException e) {
+			System.out.println("TestApp: no such algorithm exception executing remote restore " + e.toString());
+			e.printStackTrace();
+		} catch(InterruptedException e) {
+			System.out.println("TestApp: interrupted thread exception executing remote restore " + e.toString());
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Executes the RESTORE protocol with the specified filepath, receiving the restored contents
+	 * through a TCP port instead of the Peer writing them to a file. Messages are printed to
+	 * stderr so the contents can be piped from stdout.
+	 * 
+	 * @param filepath path to file to restore
+	 * @param outputPath path to write the contents to, null for stdout
+	 */
+	private static void runStream(String filepath, String outputPath) {
+		
+		long jobID = 0;
+		long bytes = 0;
+		try(ServerSocket server = new ServerSocket(0)) {
+			
+			server.setSoTimeout(streamAcceptTimeoutMS);
+			jobID = remoteObj.remoteRestoreStream(filepath, server.getLocalPort());
+			System.err.println("TestApp: started job " + jobID);
+			
+			OutputStream output = (outputPath == null) ? System.out : new FileOutputStream(outputPath);
+			try(Socket socket = server.accept()) {
+				
+				InputStream input = socket.getInputStream();
+				byte[] buf = new byte[streamBufferSize];
+				int nRead;
+				while((nRead = input.read(buf)) > 0) {
+					output.write(buf, 0, nRead);
+					bytes += nRead;
+				}
+			} finally {
+				output.flush();
+				if(outputPath != null) output.close();
+			}
+		} catch(IOException e) {
+			System.err.println("TestApp: IO exception executing remote streaming restore " + e.toString());
+			e.printStackTrace();
+			System.exit(-1);
+		} catch(NoSuchAlgorithmException e) {
+			System.err.println("TestApp: no such algorithm exception executing remote streaming restore " + e.toString());
+			e.printStackTrace();
+			System.exit(-1);
+		} catch(InterruptedException e) {
+			System.err.println("TestApp: interrupted thread exception executing remote streaming restore " + e.toString());
+			e.printStackTrace();
+			System.exit(-1);
+		}
+		
+		// The stream ends a little before the job does, wait for its outcome
+		JobStatus status = null;
+		try {
+			for(int i = 0; i < streamStatusPolls; i++) {
+				status = remoteObj.remoteGetJobStatus(jobID);
+				if(status == null || status.getState() != JobStatus.State.RUNNING) break;
+				Thread.sleep(streamStatusPollMS);
+			}
+		} catch(RemoteException | InterruptedException e) {
+			System.err.println("TestApp: exception getting status of streaming restore " + e.toString());
+			e.printStackTrace();
+		}
+		
+		if(status == null || status.getState() != JobStatus.State.FINISHED) {
+			System.err.println("TestApp: streaming restore of \"" + filepath + "\" did not finish, " + bytes + " bytes received are incomplete");
+			System.exit(-1);
+		}
+		
+		System.err.println("TestApp: restored " + bytes + " bytes");
+	}
+	
 	/**
 	 * Executes the DELETE protocol with the specified filepath.
 	 * 
@@ -145,7 +320,7 @@ public class TestApp {
 	private static void runDelete(String filepath) {
 		
 		try {
-			remoteObj.remoteDelete(filepath);
+			printJobStarted(remoteObj.remoteDelete(filepath));
 		} catch(IOException e) {
 			System.out.println("TestApp: IO exception executing remote delete " + e.toString());
 			e.printStackTrace();
@@ -166,7 +341,7 @@ public class TestApp {
 	private static void runReclaim(long maxKB) {
 		
 		try {
-			remoteObj.remoteReclaim(maxKB);
+			printJobStarted(remoteObj.remoteReclaim(maxKB));
 		} catch(RemoteException e) {
 			System.out.println("TestApp: exception executing remote reclaim " + e.toString());
 			e.printStackTrace();
@@ -186,6 +361,82 @@ public class TestApp {
 		}
 	}
 	
+	/**
+	 * Executes the remote method for limiting the rate of a traffic class.
+	 * 
+	 * @param trafficClass the traffic class to limit
+	 * @param bytesPerSec rate in bytes per second, 0 for no limit
+	 */
+	private static void runSetRate(String trafficClass, long bytesPerSec) {
+		
+		try {
+			remoteObj.remoteSetRate(trafficClass, bytesPerSec);
+		} catch(RemoteException e) {
+			System.out.println("TestApp: exception executing remote set rate " + e.toString());
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Executes the remote method for sizing the restore window.
+	 * 
+	 * @param window the restore window in chunks
+	 */
+	private static void runSetRestoreWindow(int window) {
+		
+		try {
+			if(!remoteObj.remoteSetRestoreWindow(window)) System.out.println("TestApp: restore window of " + window + " chunks was rejected");
+		} catch(RemoteException e) {
+			System.out.println("TestApp: exception executing remote set restore window " + e.toString());
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Executes the remote method for getting the progress of jobs and prints it.
+	 * 
+	 * @param jobIDs the job IDs, empty for every job known by the Peer
+	 */
+	private static void runStatus(long[] jobIDs) {
+		
+		try {
+			ArrayList<JobStatus> statuses = remoteObj.remoteGetJobStatuses(jobIDs);
+			if(statuses.size() == 0) System.out.println("TestApp: no jobs found");
+			
+			for(JobStatus status : statuses) {
+				System.out.println(status.toString());
+			}
+		} catch(RemoteException e) {
+			System.out.println("TestApp: exception executing remote job status " + e.toString());
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Executes the remote method for cancelling a job.
+	 * 
+	 * @param jobID the job ID
+	 */
+	private static void runCancel(long jobID) {
+		
+		try {
+			if(remoteObj.remoteCancelJob(jobID)) System.out.println("TestApp: cancelled job " + jobID);
+			else System.out.println("TestApp: job " + jobID + " is not running or can't be cancelled");
+		} catch(RemoteException e) {
+			System.out.println("TestApp: exception executing remote cancel " + e.toString());
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Prints the job ID returned by a remote protocol method.
+	 * 
+	 * @param jobID the job ID
+	 */
+	private static void printJobStarted(long jobID) {
+		System.out.println("TestApp: started job " + jobID);
+	}
+	
 	/**
 	 * Looks up the RMI registry for a object matching the specified "//host/name" and returns it.
 	 * 
@@ -257,6 +508,18 @@ public class TestApp {
 		return false;
 	}
 
+	/**
+	 * Returns whether a directory path is valid or not.
+	 * 
+	 * @param dirpath directory path to verify
+	 * @return true if valid, false otherwise
+	 */
+	private static boolean checkDirectory(String dirpath) {
+		
+		File f = new File(dirpath);
+		return f.isDirectory();
+	}
+
 	/**
 	 * Validates and parses replication degree for BACKUP protocol
 	 * 
@@ -297,6 +560,128 @@ public class TestApp {
 		return maxKB;
 	}
 	
+	/**
+	 * Validates the traffic class for the RATE command.
+	 * 
+	 * @param trafficClass string representing the traffic class
+	 * @return the traffic class name in upper case
+	 */
+	private static String parseTrafficClass(String trafficClass) {
+		
+		try {
+			return TrafficShaper.TrafficClass.valueOf(trafficClass.toUpperCase()).name();
+		} catch(IllegalArgumentException e) {
+			printErrExit("traffic class must be one of USER_BACKUP, USER_RESTORE, REPAIR or CONTROL!");
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * Validates and parses the rate in bytes per second for the RATE command.
+	 * 
+	 * @param rate rate in bytes per second, 0 for no limit
+	 * @return numeric value of the rate
+	 */
+	private static long parseRate(String rate) {
+		
+		long bytesPerSec = 0;
+		
+		try {
+			bytesPerSec = Long.parseLong(rate);
+		} catch(NumberFormatException e) {
+			printErrExit("rate must be a number of bytes per second between 0 and LONG_MAX!");
+		}
+		
+		if(bytesPerSec < 0) printErrExit("rate must be a number of bytes per second between 0 and LONG_MAX!");
+		
+		return bytesPerSec;
+	}
+	
+	/**
+	 * Validates and parses the restore window for the WINDOW command.
+	 * 
+	 * @param window string representing the restore window in chunks
+	 * @return numeric value of the restore window
+	 */
+	private static int parseWindow(String window) {
+		
+		int chunks = 0;
+		
+		try {
+			chunks = Integer.parseInt(window);
+		} catch(NumberFormatException e) {
+			printErrExit("restore window must be a number of chunks between 1 and 1024!");
+		}
+		
+		if(chunks < 1 || chunks > 1024) printErrExit("restore window must be a number of chunks between 1 and 1024!");
+		
+		return chunks;
+	}
+	
+	/**
+	 * Validates and parses the offset of a byte range for the RESTORE protocol.
+	 * 
+	 * @param offset string representing the position of the first byte
+	 * @return numeric value of the offset
+	 */
+	private static long parseOffset(String offset) {
+		
+		long position = 0;
+		
+		try {
+			position = Long.parseLong(offset);
+		} catch(NumberFormatException e) {
+			printErrExit("offset must be a number of bytes between 0 and LONG_MAX!");
+		}
+		
+		if(position < 0) printErrExit("offset must be a number of bytes between 0 and LONG_MAX!");
+		
+		return position;
+	}
+	
+	/**
+	 * Validates and parses the length of a byte range for the RESTORE protocol.
+	 * 
+	 * @param length string representing the number of bytes
+	 * @return numeric value of the length
+	 */
+	private static long parseLength(String length) {
+		
+		long bytes = 0;
+		
+		try {
+			bytes = Long.parseLong(length);
+		} catch(NumberFormatException e) {
+			printErrExit("length must be a number of bytes between 1 and LONG_MAX!");
+		}
+		
+		if(bytes < 1) printErrExit("length must be a number of bytes between 1 and LONG_MAX!");
+		
+		return bytes;
+	}
+	
+	/**
+	 * Validates and parses a job ID for the STATUS and CANCEL commands.
+	 * 
+	 * @param jobID string representing the job ID
+	 * @return numeric value of the job ID
+	 */
+	private static long parseJobID(String jobID) {
+		
+		long id = 0;
+		
+		try {
+			id = Long.parseLong(jobID);
+		} catch(NumberFormatException e) {
+			printErrExit("job ID must be a number between 1 and LONG_MAX!");
+		}
+		
+		if(id < 1) printErrExit("job ID must be a number between 1 and LONG_MAX!");
+		
+		return id;
+	}
+	
 	/**
 	 * Prints error message and program usage. Exits program with error code -1.
 	 * 
@@ -309,10 +694,17 @@ public class TestApp {
 		System.out.println("Example usage:");
 
 		if(protocol.equals("all") || protocol.equals("backup")) System.out.println("\t java TestApp Peer1 BACKUP test1.pdf 3");
+		if(protocol.equals("all") || protocol.equals("backupdir")) System.out.println("\t java TestApp Peer1 BACKUPDIR docs 3");
 		if(protocol.equals("all") || protocol.equals("restore")) System.out.println("\t java TestApp Peer1 RESTORE test1.pdf");
+		if(protocol.equals("all") || protocol.equals("restore")) System.out.println("\t java TestApp Peer1 RESTORE test1.pdf 1000000 65536");
+		if(protocol.equals("all") || protocol.equals("stream")) System.out.println("\t java TestApp Peer1 STREAM test1.pdf copy.pdf");
 		if(protocol.equals("all") || protocol.equals("delete")) System.out.println("\t java TestApp Peer1 DELETE test1.pdf");
 		if(protocol.equals("all") || protocol.equals("reclaim")) System.out.println("\t java TestApp Peer1 RECLAIM 0");
 		if(protocol.equals("all") || protocol.equals("state")) System.out.println("\t java TestApp Peer1 STATE");
+		if(protocol.equals("all") || protocol.equals("rate")) System.out.println("\t java TestApp Peer1 RATE REPAIR 100000");
+		if(protocol.equals("all") || protocol.equals("window")) System.out.println("\t java TestApp Peer1 WINDOW 32");
+		if(protocol.equals("all") || protocol.equals("status")) System.out.println("\t java TestApp Peer1 STATUS 1 2");
+		if(protocol.equals("all") || protocol.equals("cancel")) System.out.println("\t java TestApp Peer1 CANCEL 1");
 		
 		System.exit(-1);
 	}
@@ -1,10 +1,13 @@
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectOutputStream;
 import java.net.InetAddress;
-import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 public class TimeoutHandler implements Runnable {
 
@@ -160,8 +163,14 @@ public class TimeoutHandler implements Runnable {
 			SystemManager.getInstance().logPrint("written: " + this.state.getFields()[Peer.hashI] + "." + this.state.getFields()[Peer.chunkNoI], SystemManager.LogLevel.NORMAL);
 	    } else SystemManager.getInstance().logPrint("chunk already stored", SystemManager.LogLevel.DEBUG);
 	    
+	    // Publish a new summary when the first chunk of a file is stored
+	    if(peer.addToLocalFilter(this.state.getFields()[Peer.hashI])) {
+	    	peer.getExecutor().execute(new SummaryProtocol());
+	    }
+	    
 	    // Update local database
 	    peer.getDatabase().putchunkUpdate(this.state, bodyData.length);
+	    if(!peer.getProtocolVersion().equals("1.0")) this.cacheChunkMAC(peer, bodyData);
 	    peer.getExecutor().execute(new ReclaimProtocol());
 	    	    
 	    // Prepare the necessary fields for the response message
@@ -244,74 +253,204 @@ public class TimeoutHandler implements Runnable {
 	
 	/**
 	 * Sends a CHUNK message relevant to this protocol instance. CHUNK message is only sent if no other
-	 * CHUNK message is received for the same SHA256.chunkNo combination.
+	 * CHUNK message is received for the same SHA256.chunkNo combination. Requests for the chunk that
+	 * joined this one are served by the same message.
 	 * 
 	 * @param peer the singleton Peer instance
 	 */
 	private void sendChunkMsg(Peer peer) throws IOException {
 		
+	    // Requests arriving from now on schedule a new CHUNK message
+	    ChunkResponse response = this.state.getChunkResponse();
+	    response.close();
+	    peer.getProtocols().remove(this.stopKey, this.state);
+	    SystemManager.getInstance().logPrint("key removed: " + this.stopKey, SystemManager.LogLevel.VERBOSE);
+	    
 	    // Check if CHUNK message for the same chunk was received to avoid flooding of CHUNK messages
-	    ProtocolState chunkState = peer.getProtocols().get(this.stopKey);
-	    if(chunkState.isChunkMsgAlreadySent()) {
+	    if(this.state.isChunkMsgAlreadySent()) {
 	    	SystemManager.getInstance().logPrint("detected CHUNK message for same chunk, aborting...", SystemManager.LogLevel.DEBUG);
-		    peer.getProtocols().remove(this.stopKey);
-		    SystemManager.getInstance().logPrint("key removed: " + this.stopKey, SystemManager.LogLevel.VERBOSE);
 		    return;
 	    }
 	    
-	    peer.getProtocols().remove(this.stopKey);
-	    SystemManager.getInstance().logPrint("key removed: " + this.stopKey, SystemManager.LogLevel.VERBOSE);
-	    
 	    // Prepare the necessary fields for the response message and send it
 	    this.state.initRestoreResponseState(peer.getProtocolVersion(), state.getFields()[Peer.hashI], this.chunkPath, state.getFields()[Peer.chunkNoI]);
 
-	    // Run enhanced RESTORE response if current Peer and sending Peer are enhanced
-	    if(!state.getFields()[Peer.protocolVersionI].equals("1.0") && !peer.getProtocolVersion().equals("1.0")) {
+	    // Run enhanced RESTORE response if the only requester is enhanced
+	    ArrayList<String> servers = response.getServers();
+	    if(!response.isMulticast() && servers.size() == 1) {
 	    	
 		    byte[] msg = this.state.getParser().createEmptyChunkMsg(peer.getPeerID(), state);
-		    peer.getMdr().send(msg);
+		    peer.getMdr().send(msg, TrafficShaper.TrafficClass.USER_RESTORE);
 	    	
 	    	SystemManager.getInstance().logPrint("initiating enhanced RESTORE response", SystemManager.LogLevel.DEBUG);
-	    	this.sendChunkTCP(peer, state);
-	    // Else run regular RESTORE
+	    	this.sendChunkTCP(peer, state, servers.get(0));
+	    // Else run regular RESTORE, a single multicast CHUNK serves every requester
 	    } else {
 	    	
-		    byte[] msg = this.state.getParser().createChunkMsg(peer.getPeerID(), state);
-		    peer.getMdr().send(msg);
+	    	if(servers.size() > 0) SystemManager.getInstance().logPrint("serving " + servers.size() + " enhanced requesters with one multicast CHUNK", SystemManager.LogLevel.DEBUG);
+	    	
+		    // Send the chunk from the cache, or from storage caching it in the background
+		    String hash = state.getFields()[Peer.hashI];
+		    long chunkNo = Long.parseLong(state.getFields()[Peer.chunkNoI]);
+		    ChunkCache.PinnedChunk cached = peer.getChunkCache().pin(hash, chunkNo);
+		    
+		    byte[] msg;
+		    if(cached == null) {
+		    	msg = this.state.getParser().createChunkMsg(peer.getPeerID(), state);
+		    	this.cacheChunk(peer, hash, chunkNo);
+		    } else {
+		    	try {
+		    		msg = this.state.getParser().createChunkMsg(peer.getPeerID(), state, cached.getData());
+		    	} finally {
+		    		cached.release();
+		    	}
+		    }
+		    
+		    peer.getMdr().send(msg, TrafficShaper.TrafficClass.USER_RESTORE);
 	    }
 	}
 	
 	/**
-	 * Sends CHUNK message through TCP by connecting to the server specified by the
-	 * GETCHUNK message received.
+	 * Sends CHUNK message through TCP to the server specified by the GETCHUNK message
+	 * received, over a pooled connection shared with other CHUNK messages to that server.
+	 * The stored chunk is already encrypted so it is sent straight from its slot in the chunk
+	 * cache, or transferred from its file by the kernel and cached in the background, using the
+	 * MAC cached when it was stored.
 	 * 
 	 * @param peer the singleton Peer instance
 	 * @param state the Protocol State object relevant to this operation
+	 * @param server the address and port of the requesting Peer's restore server
 	 */
-	private void sendChunkTCP(Peer peer, ProtocolState state) throws IOException {
+	private void sendChunkTCP(Peer peer, ProtocolState state, String server) throws IOException {
 	
-		// Prepare message to send through TCP socket
-	    this.state.initRestoreResponseState(peer.getProtocolVersion(), state.getFields()[Peer.hashI], this.chunkPath, state.getFields()[Peer.chunkNoI]);
-	    byte[] msg = this.state.getParser().createChunkMsg(peer.getPeerID(), state);
+		// Prepare header and MAC of the message to send through TCP socket
+		String hash = state.getFields()[Peer.hashI];
+		long chunkNo = Long.parseLong(state.getFields()[Peer.chunkNoI]);
+		byte[] header = this.state.getParser().createChunkHeader(peer.getPeerID(), peer.getProtocolVersion(), hash, chunkNo);
+		byte[] trailer = this.state.getParser().createMACTrailer(this.getChunkMAC(peer, header));
+		String chunkPath = this.chunkPath;
+		
+		SystemManager.getInstance().logPrint("sending: " + new String(header).trim(), SystemManager.LogLevel.SERVICE_MSG);
 	    
 	    // Get address and port sent by the requesting Peer
-	    String[] split = state.getFields()[Peer.addressI].split(":");
+	    String[] split = server.split(":");
 	    InetAddress addr = InetAddress.getByName(split[0]);
 	    int port = Integer.parseInt(split[1]);
 	    
 	    SystemManager.getInstance().logPrint("address: " + addr + " port: " + port, SystemManager.LogLevel.VERBOSE);
 	    
-	    // Connect to server and port specified by GETCHUNK message
-	    Socket s = new Socket(addr, port);
-	    ObjectOutputStream out = new ObjectOutputStream(s.getOutputStream());
+	    // Pinned once nothing can fail before the CHUNK message is sent, which releases it
+	    ChunkCache.PinnedChunk cached = peer.getChunkCache().pin(hash, chunkNo);
 	    
-	    // Send the payload through TCP
-	    RestorePayload payload = new RestorePayload(msg);
+	    // Delay the payload if the rate limit of restores doesn't allow it yet
+	    int bodyLength = (int) ((cached == null) ? new File(chunkPath).length() : cached.getData().remaining());
+	    int msgLength = header.length + bodyLength + trailer.length;
+	    long delayNS = peer.getShaper().reserve(TrafficShaper.TrafficClass.USER_RESTORE, msgLength);
+	    if(delayNS == 0) {
+	    	this.sendChunkFrame(peer, addr, port, header, cached, trailer);
+	    	return;
+	    }
 	    
-	    out.writeObject(payload);
-	    out.flush();
-	    out.close();
-	    s.close();
+	    try {
+		    peer.getExecutor().schedule(() -> {
+		    	try {
+		    		this.sendChunkFrame(peer, addr, port, header, cached, trailer);
+		    	} catch(IOException e) {
+		    		SystemManager.getInstance().logPrint("I/O Exception on paced CHUNK!", SystemManager.LogLevel.NORMAL);
+		    		e.printStackTrace();
+		    	}
+		    }, delayNS, TimeUnit.NANOSECONDS);
+	    } catch(RejectedExecutionException e) {
+	    	if(cached != null) cached.release();
+	    	throw e;
+	    }
+	}
+	
+	/**
+	 * Sends a CHUNK message through TCP, from the chunk's slot in the cache if it's cached, otherwise
+	 * from its file, which is then cached in the background.
+	 * 
+	 * @param peer the singleton Peer instance
+	 * @param addr the address of the restoring Peer
+	 * @param port the port of the restoring Peer's server
+	 * @param header the header of the CHUNK message
+	 * @param cached the chunk pinned in the cache, null if it isn't cached
+	 * @param trailer the MAC trailer of the CHUNK message
+	 */
+	private void sendChunkFrame(Peer peer, InetAddress addr, int port, byte[] header, ChunkCache.PinnedChunk cached, byte[] trailer) throws IOException {
+		
+		if(cached == null) {
+			peer.getRestoreConnections().send(addr, port, header, this.chunkPath, trailer);
+			this.cacheChunk(peer, this.state.getHashHex(), this.state.getCurrentChunkNo());
+			return;
+		}
+		
+		try {
+			peer.getRestoreConnections().send(addr, port, header, cached.getData(), trailer);
+		} finally {
+			cached.release();
+		}
+	}
+	
+	/**
+	 * Loads a chunk just served from storage into the chunk cache on the executor, so the
+	 * CHUNK message isn't held up by the copy.
+	 * 
+	 * @param peer the singleton Peer instance
+	 * @param hash textual representation of the hexadecimal values of a SHA256
+	 * @param chunkNo the chunk number
+	 */
+	private void cacheChunk(Peer peer, String hash, long chunkNo) {
+		
+		String chunkPath = this.chunkPath;
+		peer.getExecutor().execute(() -> {
+			try {
+				peer.getChunkCache().fill(hash, chunkNo, chunkPath);
+			} catch(IOException e) {
+				SystemManager.getInstance().logPrint("couldn't cache " + hash + "." + chunkNo + ", " + e.getMessage(), SystemManager.LogLevel.DEBUG);
+			}
+		});
+	}
+	
+	/**
+	 * Returns the MAC of the CHUNK message serving the chunk relevant to this protocol instance.
+	 * Chunks stored before their MAC was cached, or by a different protocol version, have it
+	 * computed from the chunk file once and cached.
+	 * 
+	 * @param peer the singleton Peer instance
+	 * @param header the header of the CHUNK message
+	 * @return the MAC as hexadecimal text
+	 */
+	private String getChunkMAC(Peer peer, byte[] header) throws IOException {
+		
+		ChunkInfo chunk = peer.getDatabase().getChunkInfo(this.state.getFields()[Peer.hashI], Long.parseLong(this.state.getFields()[Peer.chunkNoI]));
+		String mac = (chunk == null) ? null : chunk.getChunkMAC(new String(header));
+		if(mac != null) return mac;
+		
+		SystemManager.getInstance().logPrint("no cached MAC for chunk, computing it", SystemManager.LogLevel.DEBUG);
+		mac = this.state.getParser().computeChunkMAC(header, Files.readAllBytes(Paths.get(this.chunkPath)));
+		if(chunk != null) chunk.setChunkMAC(new String(header), mac);
+		
+		return mac;
+	}
+	
+	/**
+	 * Caches the MAC of the CHUNK message that will serve a chunk just stored, so restores can
+	 * send the chunk straight from its file.
+	 * 
+	 * @param peer the singleton Peer instance
+	 * @param bodyData the chunk data
+	 */
+	private void cacheChunkMAC(Peer peer, byte[] bodyData) throws IOException {
+		
+		String hash = this.state.getFields()[Peer.hashI];
+		long chunkNo = Long.parseLong(this.state.getFields()[Peer.chunkNoI]);
+		
+		ChunkInfo chunk = peer.getDatabase().getChunkInfo(hash, chunkNo);
+		if(chunk == null) return;
+		
+		byte[] header = this.state.getParser().createChunkHeader(peer.getPeerID(), peer.getProtocolVersion(), hash, chunkNo);
+		chunk.setChunkMAC(new String(header), this.state.getParser().computeChunkMAC(header, bodyData));
 	}
 	
 	/**
@@ -331,6 +470,12 @@ public class TimeoutHandler implements Runnable {
 		    return;
 	    }
 	    
+	    // Wait for room in the backup channel's congestion window, running again when a slot is released
+	    if(!peer.getMdb().getCongestion().acquire(this)) {
+	    	SystemManager.getInstance().logPrint("backup channel congested, delaying PUTCHUNK", SystemManager.LogLevel.DEBUG);
+	    	return;
+	    }
+	    
 	    peer.getProtocols().remove(this.stopKey);
 	    SystemManager.getInstance().logPrint("key removed: " + this.stopKey, SystemManager.LogLevel.VERBOSE);
 	    
@@ -343,6 +488,14 @@ public class TimeoutHandler implements Runnable {
 	    // Prepare the necessary fields for the response message and send it
 	    this.state.initReclaimState(peer.getProtocolVersion(), state.getFields()[Peer.hashI], state.getFields()[Peer.chunkNoI], chunkPath, this.desiredRepDeg);
 	    byte[] msg = this.state.getParser().createReclaimMsg(peer.getPeerID(), state);
-	    peer.getMdb().send(msg);
+	    
+	    try {
+	    	peer.getMdb().send(msg, TrafficShaper.TrafficClass.REPAIR);
+	    } finally {
+	    	
+	    	// STORED replies aren't tracked for reclaim, so the slot is held for one timeout
+	    	long timeoutMS = peer.getMdb().getRTT().getTimeoutMS();
+	    	peer.getExecutor().schedule(() -> peer.getMdb().getCongestion().release(false), timeoutMS, TimeUnit.MILLISECONDS);
+	    }
 	}
 }
@@ -0,0 +1,77 @@
+public class TokenBucket {
+
+	private static final long burstMS = 100;
+
+	private long bytesPerSec;
+	private double tokens;
+	private long lastRefillTime;
+
+	/**
+	 * Paces outgoing data to a rate in bytes per second. Tokens accumulate for up to {@value #burstMS}ms
+	 * of traffic, a sender that takes more tokens than available goes into debt and must delay its data
+	 * until the debt is paid, so concurrent senders are served in the order they arrived.
+	 *
+	 * @param bytesPerSec the rate in bytes per second, 0 for no limit
+	 */
+	public TokenBucket(long bytesPerSec) {
+		this.bytesPerSec = bytesPerSec;
+		this.tokens = this.getBurst();
+		this.lastRefillTime = System.nanoTime();
+	}
+
+	/**
+	 * Takes tokens for the given number of bytes and returns how long the data must be delayed.
+	 *
+	 * @param bytes the number of bytes about to be sent
+	 * @return the delay in nanoseconds before the data can be sent, 0 to send immediately
+	 */
+	public synchronized long reserve(int bytes) {
+
+		if(this.bytesPerSec <= 0) return 0;
+
+		this.refill();
+		this.tokens -= bytes;
+		if(this.tokens >= 0) return 0;
+
+		return (long) (-this.tokens * 1000000000L / this.bytesPerSec);
+	}
+
+	/**
+	 * Adds the tokens earned since the last refill, up to the burst size.
+	 */
+	private void refill() {
+
+		long now = System.nanoTime();
+		this.tokens = Math.min(this.getBurst(), this.tokens + (now - this.lastRefillTime) * this.bytesPerSec / 1000000000.0);
+		this.lastRefillTime = now;
+	}
+
+	/**
+	 * @return the maximum number of tokens that can accumulate
+	 */
+	private double getBurst() {
+		return this.bytesPerSec * burstMS / 1000.0;
+	}
+
+	/**
+	 * @return the rate in bytes per second, 0 for no limit
+	 */
+	public synchronized long getRate() {
+		return bytesPerSec;
+	}
+
+	/**
+	 * Changes the rate, debt already taken by waiting senders is kept.
+	 *
+	 * @param bytesPerSec the rate in bytes per second, 0 for no limit
+	 */
+	public synchronized void setRate(long bytesPerSec) {
+
+		if(this.bytesPerSec > 0) this.refill();
+		else this.tokens = 0;
+
+		this.bytesPerSec = bytesPerSec;
+		this.tokens = Math.min(this.getBurst(), this.tokens);
+		this.lastRefillTime = System.nanoTime();
+	}
+}
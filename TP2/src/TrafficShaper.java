@@ -0,0 +1,52 @@
+import java.util.EnumMap;
+
+public class TrafficShaper {
+
+	public static enum TrafficClass {
+		USER_BACKUP, USER_RESTORE, REPAIR, CONTROL
+	}
+
+	private EnumMap<TrafficClass, TokenBucket> buckets = new EnumMap<TrafficClass, TokenBucket>(TrafficClass.class);
+
+	/**
+	 * Paces the outgoing traffic of a Peer with one token bucket per traffic class, so each class
+	 * can be limited independently. Every class starts with no limit.
+	 */
+	public TrafficShaper() {
+
+		for(TrafficClass trafficClass : TrafficClass.values()) {
+			this.buckets.put(trafficClass, new TokenBucket(0));
+		}
+	}
+
+	/**
+	 * Reserves the given number of bytes within the rate of the traffic class.
+	 *
+	 * @param trafficClass the traffic class the data belongs to
+	 * @param bytes the number of bytes about to be sent
+	 * @return the delay in nanoseconds before the data can be sent, 0 to send immediately
+	 */
+	public long reserve(TrafficClass trafficClass, int bytes) {
+		return this.buckets.get(trafficClass).reserve(bytes);
+	}
+
+	/**
+	 * Sets the rate limit of a traffic class.
+	 *
+	 * @param trafficClass the traffic class to limit
+	 * @param bytesPerSec the rate in bytes per second, 0 for no limit
+	 */
+	public void setRate(TrafficClass trafficClass, long bytesPerSec) {
+
+		this.buckets.get(trafficClass).setRate(bytesPerSec);
+		SystemManager.getInstance().logPrint("rate of " + trafficClass.name() + " set to " + bytesPerSec + " B/s", SystemManager.LogLevel.NORMAL);
+	}
+
+	/**
+	 * @param trafficClass the traffic class
+	 * @return the rate in bytes per second of the traffic class, 0 for no limit
+	 */
+	public long getRate(TrafficClass trafficClass) {
+		return this.buckets.get(trafficClass).getRate();
+	}
+}